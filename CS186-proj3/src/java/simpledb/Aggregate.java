@@ -116,14 +116,23 @@ public class Aggregate extends Operator {
 	public void open() throws NoSuchElementException, DbException,
 			TransactionAbortedException {
 		// some code goes here
+		this.aggIterator = this.computeAggregate();
+		super.open();
+		this.aggIterator.open();
+	}
+
+	/**
+	 * Compute the aggregate over all of the child's tuples; called by open.
+	 * 
+	 * @return an iterator over the aggregate results
+	 */
+	protected DbIterator computeAggregate() throws DbException,
+			TransactionAbortedException {
 		this.childIterator.open();
 		while(this.childIterator.hasNext()){
 			this.agg.mergeTupleIntoGroup(this.childIterator.next());
 		}
-
-		this.aggIterator = this.agg.iterator();
-		super.open();
-		this.aggIterator.open();
+		return this.agg.iterator();
 	}
 
 	/**
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A BloomFilter is a Predicate that passes the tuples whose field might be one
+ * of a set of keys. False positives are possible (at roughly the rate the
+ * filter was sized for), false negatives are not.
+ * <p>
+ * {@link HashEquiJoin} fills one with the join keys of its build side and
+ * pushes it into the {@link SeqScan} of its probe side, which can then drop
+ * rows that won't join before they are ever turned into tuples. Until the
+ * join loads its keys, the filter passes everything.
+ */
+public class BloomFilter extends Predicate {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final String source;
+    private boolean loaded = false;
+    private Field min, max;
+
+    /**
+     * Create an empty Bloom filter.
+     *
+     * @param field
+     *            the field of the tuples to look up
+     * @param expectedKeys
+     *            the number of keys the filter is sized for
+     * @param falsePositiveRate
+     *            the fraction of other values that should pass the filter
+     *            with that many keys
+     * @param source
+     *            where the keys come from, for explain output
+     */
+    public BloomFilter(int field, int expectedKeys, double falsePositiveRate, String source) {
+        super(field, Op.EQUALS, null);
+        int n = Math.max(expectedKeys, 1);
+        double m = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numHashes = (int) Math.max(1, Math.round((double) numBits / n * Math.log(2)));
+        this.bits = new long[(numBits + 63) / 64];
+        this.source = source;
+    }
+
+    /**
+     * Remove all keys, and start filtering tuples.
+     */
+    public void clear() {
+        Arrays.fill(bits, 0);
+        min = null;
+        max = null;
+        loaded = true;
+    }
+
+    /**
+     * Add a key to the filter.
+     */
+    public void add(Field key) {
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int b = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[b >>> 6] |= 1L << b;
+        }
+        if (min == null || key.compare(Op.LESS_THAN, min))
+            min = key;
+        if (max == null || key.compare(Op.GREATER_THAN, max))
+            max = key;
+    }
+
+    /**
+     * @return true if f might be one of the keys, false if it is not
+     */
+    public boolean filter(Field f) {
+        if (!loaded)
+            return true;
+        if (min == null)
+            return false;
+        int h1 = mix(f.hashCode());
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int b = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if no key lies between lo and hi
+     */
+    public boolean mightMatch(Field lo, Field hi) {
+        if (!loaded)
+            return true;
+        if (min == null)
+            return false;
+        return !hi.compare(Op.LESS_THAN, min) && !lo.compare(Op.GREATER_THAN, max);
+    }
+
+    /** the finalizer of MurmurHash3, so that similar keys spread out */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public String toString() {
+        return "bloom(" + source + ")";
+    }
+}
@@ -2,6 +2,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -11,6 +18,24 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Read-only transactions take no locks: they read the pages as of when they
+ * started, which the BufferPool keeps a copy of before they are modified
+ * (see {@link SnapshotManager}).
+ * <p>
+ * The pages are kept in frames, which a concurrent page table maps page ids
+ * to, so that threads finding their pages in the pool never wait for each
+ * other. When the pool is full, a page is evicted with the CLOCK policy: a
+ * hand goes around the frames, clearing the reference bit that each use of a
+ * page sets, and evicts the first page whose bit is already clear.
+ * <p>
+ * {@link #getPage} pins the page it returns, and the page is only evicted
+ * once every user has released it again with {@link #releasePage}. If every
+ * page in the pool is pinned, reading another page fails.
+ * <p>
+ * Pages can also be read into the pool in the background, ahead of a scan
+ * that will need them (see {@link ReadAhead}); getPage waits for such a read
+ * to complete rather than reading the page again.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -21,8 +46,67 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private LinkedHashMap<PageId, Page> bufferPool;
-    private int maxPages;
+    /** A page in the pool, and what the replacement policy knows of it */
+    private static class Frame {
+        final Page page;
+        /** set when the page is used, cleared when the clock hand passes */
+        volatile boolean referenced = true;
+        /**
+         * the number of users that need the page to stay in the pool, or -1
+         * once the frame is being evicted
+         */
+        final AtomicInteger pins;
+
+        /** A frame for a page, pinned by the user that read it, if any */
+        Frame(Page page, boolean pinned) {
+            this.page = page;
+            this.pins = new AtomicInteger(pinned ? 1 : 0);
+        }
+
+        /** @return true if the frame was pinned, false if it is being evicted */
+        boolean pin() {
+            while (true) {
+                int n = this.pins.get();
+                if (n < 0)
+                    return false;
+                if (this.pins.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        void unpin() {
+            while (true) {
+                int n = this.pins.get();
+                if (n <= 0 || this.pins.compareAndSet(n, n - 1))
+                    return;
+            }
+        }
+    }
+
+    /** the page table */
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    /** the frames, in the order the clock hand passes them */
+    private final ConcurrentLinkedQueue<Frame> clock = new ConcurrentLinkedQueue<Frame>();
+    private final AtomicInteger numFrames = new AtomicInteger(0);
+    private final int maxPages;
+    /** the reads of pages started by {@link #prefetchPages} that are still running */
+    private final ConcurrentHashMap<PageId, Future<?>> reading =
+            new ConcurrentHashMap<PageId, Future<?>>();
+    private final AtomicLong pagesPrefetched = new AtomicLong(0);
+    /**
+     * the number of times pages were written out; a page read ahead while
+     * a newer copy of it was written out may be stale
+     */
+    private final AtomicLong pageWrites = new AtomicLong(0);
+    private final SnapshotManager snapshots = new SnapshotManager();
+
+    /**
+     * The version of each table, incremented after each tuple inserted into
+     * or deleted from it. Kept across buffer pools, so that a version never
+     * refers to two different contents of a table.
+     */
+    private static final ConcurrentHashMap<Integer, AtomicLong> tableVersions =
+            new ConcurrentHashMap<Integer, AtomicLong>();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -31,7 +115,7 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
-        this.bufferPool = new LinkedHashMap<PageId, Page>(numPages, 1.0F, false);
+        this.frames = new ConcurrentHashMap<PageId, Frame>(numPages);
         this.maxPages = numPages;
     }
 
@@ -46,33 +130,252 @@ public class BufferPool {
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
      *
+     * The page is pinned, and stays in the buffer pool until the caller
+     * releases it with {@link #releasePage}. A read-only transaction gets a
+     * copy of the version of the page it reads instead, which isn't pinned.
+     *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DbException if the page is not in the buffer pool, and every
+     *         page that is has been pinned
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.bufferPool.containsKey(pid)) {
-            Page p = this.bufferPool.get(pid);
-        	this.bufferPool.remove(pid);
-        	this.bufferPool.put(pid, p);
+        if (perm == Permissions.READ_WRITE) {
+        	Page p = this.pinPage(pid);
+        	try {
+        		this.snapshots.beforeWrite(tid, p);
+        	} catch (DbException e) {
+        		// a read-only transaction; it doesn't get the page
+        		this.releasePage(p);
+        		throw e;
+        	}
         	return p;
         }
+        if (!this.snapshots.isSnapshot(tid))
+        	return this.pinPage(pid);
+        // a read-only transaction reads an earlier version, or a copy of the
+        // page that writers can't change while it reads it
+        Page p = this.snapshots.getVersion(tid, pid);
+        if (p != null)
+        	return p;
+        p = this.pinPage(pid);
+        try {
+        	return this.snapshots.readVersion(tid, p);
+        } finally {
+        	this.releasePage(p);
+        }
+    }
+
+    /** Pin a page in the buffer pool, reading it first if it isn't there */
+    private Page pinPage(PageId pid) throws DbException {
+        while (true) {
+        	Frame f = this.frames.get(pid);
+        	Future<?> r;
+        	if (f == null && (r = this.reading.get(pid)) != null) {
+        		// the page is being read ahead; wait for it rather than
+        		// reading it twice
+        		try {
+        			r.get();
+        		} catch (Exception e) {
+        			// read it here instead
+        		}
+        		f = this.frames.get(pid);
+        	}
+        	if (f == null) {
+        		// several threads of a query may read pages at the same time
+        		// (see MorselScheduler); if they read the same page, the first
+        		// one to put it into the page table wins
+        		Page addPage = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+        		f = new Frame(addPage, true);
+        		Frame prev = this.frames.putIfAbsent(pid, f);
+        		if (prev == null) {
+        			this.clock.offer(f);
+        			if (this.numFrames.incrementAndGet() > this.maxPages) {
+        				try {
+        					this.evictPage();
+        				} catch (DbException e) {
+        					// other threads may have found and pinned the page
+        					// since it was published; leave it to them
+        					f.unpin();
+        					if (f.pins.compareAndSet(0, -1)) {
+        						this.frames.remove(pid, f);
+        						this.clock.remove(f);
+        						this.numFrames.decrementAndGet();
+        					}
+        					throw e;
+        				}
+        			}
+        			return addPage;
+        		}
+        		f = prev;
+        	}
+        	if (f.pin()) {
+        		f.referenced = true;
+        		return f.page;
+        	}
+        	// the page is being evicted; read it again once it is gone
+        	Thread.yield();
+        }
+    }
 
-        Page addPage = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+    /**
+     * Return the cached copy of a page without reading it from disk and
+     * without affecting which page is evicted next.
+     *
+     * @param pid the ID of the requested page
+     * @return the page, or null if it is not in the buffer pool
+     */
+    Page peekPage(PageId pid) {
+        Frame f = this.frames.get(pid);
+        return f == null ? null : f.page;
+    }
+
+    /** Return the number of pages in the buffer pool */
+    int numCachedPages() {
+        return this.numFrames.get();
+    }
 
-        if (this.bufferPool.size() >= this.maxPages) {
-        	this.evictPage();
+    /** Return the number of pages the buffer pool can hold */
+    int getMaxPages() {
+        return this.maxPages;
+    }
 
+    /**
+     * Start reading consecutive pages of a table into the buffer pool in the
+     * background. The pages that aren't there already or being read are
+     * read with one read for each run of consecutive such pages. The pages
+     * aren't pinned, and those there is no room for are dropped.
+     *
+     * @param tableId the table
+     * @param start the number of the first page
+     * @param count the number of pages
+     * @param executor the executor to read the pages on
+     */
+    void prefetchPages(int tableId, int start, int count, Executor executor) {
+        List<PageId> pids = new ArrayList<PageId>();
+        FutureTask<Void> read = pageRead(pids);
+        for (int n = start; n < start + count; n++) {
+            PageId pid = new HeapPageId(tableId, n);
+            if (!this.frames.containsKey(pid) && this.reading.putIfAbsent(pid, read) == null) {
+                pids.add(pid);
+            } else if (!pids.isEmpty()) {
+                // the run ends before a page that is there or being read
+                executor.execute(read);
+                pids = new ArrayList<PageId>();
+                read = pageRead(pids);
+            }
         }
-        this.bufferPool.put(addPage.getId(),addPage);
+        if (!pids.isEmpty())
+            executor.execute(read);
+    }
 
-        return addPage;
+    /**
+     * @return a read of a run of consecutive pages, which are registered as
+     *         being read by it until it completes
+     */
+    private FutureTask<Void> pageRead(final List<PageId> pids) {
+        return new FutureTask<Void>(new Runnable() {
+            public void run() {
+                try {
+                    readAhead(pids);
+                } finally {
+                    for (PageId pid : pids)
+                        reading.remove(pid);
+                }
+            }
+        }, null);
+    }
+
+    /** Read a run of consecutive pages into the buffer pool, without pinning them */
+    private void readAhead(List<PageId> pids) {
+        PageId first = pids.get(0);
+        long writes = this.pageWrites.get();
+        List<Page> pages;
+        try {
+            pages = Database.getCatalog().getDbFile(first.getTableId())
+                    .readPages(first.pageNumber(), pids.size());
+        } catch (IOException e) {
+            // the scan reads the pages itself when it gets there
+            return;
+        }
+        for (Page page : pages)
+            this.cacheUnpinned(page, writes);
     }
 
     /**
-     * Releases the lock on a page.
+     * Add a page to the buffer pool, without pinning it, unless it is there
+     * or a page was written out since it was read.
+     *
+     * @param writes the number of pages written out before it was read
+     */
+    private void cacheUnpinned(Page page, long writes) {
+        PageId pid = page.getId();
+        // the frame stays claimed, so that no one uses the page, until it is
+        // known to be current: a newer copy of the page in the pool is
+        // written out, counting in pageWrites, before it leaves the pool
+        Frame f = new Frame(page, false);
+        f.pins.set(-1);
+        if (this.frames.putIfAbsent(pid, f) != null)
+            return;
+        if (this.pageWrites.get() != writes) {
+            this.frames.remove(pid, f);
+            return;
+        }
+        f.pins.set(0);
+        this.clock.offer(f);
+        this.pagesPrefetched.incrementAndGet();
+        if (this.numFrames.incrementAndGet() > this.maxPages) {
+            try {
+                this.evictPage();
+            } catch (DbException e) {
+                // no room; the scan reads the page itself when it gets there
+                if (f.pins.compareAndSet(0, -1)) {
+                    this.frames.remove(pid, f);
+                    this.clock.remove(f);
+                    this.numFrames.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Return the number of pages read into the buffer pool ahead of scans */
+    public long getPagesPrefetched() {
+        return this.pagesPrefetched.get();
+    }
+
+    /**
+     * Start a read-only transaction, which reads the database as of now
+     * until it completes, and can't modify it.
+     *
+     * @param tid the ID of the transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.snapshots.beginSnapshot(tid);
+    }
+
+    /** Return true if the specified transaction is read-only */
+    public boolean readsSnapshot(TransactionId tid) {
+        return this.snapshots.isSnapshot(tid);
+    }
+
+    /**
+     * Return true if the specified transaction reads an earlier version of
+     * the specified page than the one in the buffer pool (or on disk).
+     */
+    boolean readsOldVersion(TransactionId tid, PageId pid) {
+        return this.snapshots.hasVersion(tid, pid);
+    }
+
+    /** Return the versions of pages kept for read-only transactions */
+    SnapshotManager getSnapshotManager() {
+        return this.snapshots;
+    }
+
+    /**
+     * Releases the lock on a page, and a pin that {@link #getPage} took on it.
      * Calling this is very risky, and may result in wrong behavior. Think hard
      * about who needs to call this and why, and why they can run the risk of
      * calling it.
@@ -83,6 +386,30 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for proj1
+    	Frame f = this.frames.get(pid);
+    	if (f != null)
+    		f.unpin();
+    }
+
+    /**
+     * Release a pin on a page that {@link #getPage} returned. Nothing happens
+     * if the page isn't the one in the buffer pool, such as an earlier
+     * version of it.
+     *
+     * @param page the page, or null
+     */
+    void releasePage(Page page) {
+    	if (page == null)
+    		return;
+    	Frame f = this.frames.get(page.getId());
+    	if (f != null && f.page == page)
+    		f.unpin();
+    }
+
+    /** Return the number of pins on a page, or 0 if it isn't in the buffer pool */
+    int numPins(PageId pid) {
+    	Frame f = this.frames.get(pid);
+    	return f == null ? 0 : Math.max(f.pins.get(), 0);
     }
 
     /**
@@ -93,6 +420,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -113,6 +441,9 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for proj1
+        // there is no rollback, so an aborted transaction's pages stay as
+        // they are, and are committed as well
+        this.snapshots.transactionComplete(tid);
     }
 
     /**
@@ -133,8 +464,14 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
+    	if (this.snapshots.isSnapshot(tid))
+    		throw new DbException("Transaction " + tid.getId() + " is read-only");
     	HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(tableId);
     	hf.insertTuple(tid, t);
+    	TableStats.tupleInserted(tableId, t);
+    	tableModified(tableId);
+    	for (MaterializedView view : Database.getCatalog().getViews(tableId))
+    		view.tupleInserted(tid, t);
     }
 
     /**
@@ -154,8 +491,39 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-    	HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
+    	if (this.snapshots.isSnapshot(tid))
+    		throw new DbException("Transaction " + tid.getId() + " is read-only");
+    	int tableId = t.getRecordId().getPageId().getTableId();
+    	HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(tableId);
     	hf.deleteTuple(tid, t);
+    	TableStats.tupleDeleted(tableId, t);
+    	tableModified(tableId);
+    	for (MaterializedView view : Database.getCatalog().getViews(tableId))
+    		view.tupleDeleted(tid, t);
+    }
+
+    /**
+     * Return the version of a table, which changes whenever a tuple is
+     * inserted into or deleted from it through the buffer pool. A result
+     * computed from a table while its version stays the same is up to date.
+     *
+     * @param tableId the table
+     */
+    public static long getTableVersion(int tableId) {
+        AtomicLong v = tableVersions.get(tableId);
+        return v == null ? 0 : v.get();
+    }
+
+    /** Increment the version of a table, after it has been modified */
+    private static void tableModified(int tableId) {
+        AtomicLong v = tableVersions.get(tableId);
+        if (v == null) {
+            AtomicLong prev = tableVersions.putIfAbsent(
+                    tableId, v = new AtomicLong());
+            if (prev != null)
+                v = prev;
+        }
+        v.incrementAndGet();
     }
 
     /**
@@ -163,11 +531,29 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-    	for(Map.Entry<PageId,Page> entry : this.bufferPool.entrySet()){
-    		this.flushPage(entry.getValue().getId());
+    	// the dirty pages of each table are written in runs of consecutive
+    	// pages (see DbFile#writePages); they are pinned while they are
+    	// written, and pages being evicted are written by evictPage instead
+    	HashMap<Integer, List<Frame>> dirty = new HashMap<Integer, List<Frame>>();
+    	for (Frame f : this.frames.values()) {
+    		if (f.page.isDirty() == null || !f.pin())
+    			continue;
+    		int tableId = f.page.getId().getTableId();
+    		if (!dirty.containsKey(tableId))
+    			dirty.put(tableId, new ArrayList<Frame>());
+    		dirty.get(tableId).add(f);
+    	}
+    	try {
+    		for (Map.Entry<Integer, List<Frame>> e : dirty.entrySet())
+    			this.flushFrames(e.getKey(), e.getValue());
+    	} finally {
+    		for (List<Frame> fs : dirty.values()) {
+    			for (Frame f : fs)
+    				f.unpin();
+    		}
     	}
 
     }
@@ -186,17 +572,56 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for proj1
-    	
-    	Page flushPg = this.bufferPool.get(pid);
-    		
-    	if(flushPg != null && flushPg.isDirty() != null){
-    		// Write to disk
-            Database.getCatalog().getDbFile(pid.getTableId()).writePage(flushPg);
-    		// Mark clean, use same tid as isDirty, not sure if correct tid
-    		flushPg.markDirty(false, flushPg.isDirty());
+    	// the page stays in the pool until it is written, as it is marked
+    	// clean before
+    	Frame f = this.frames.get(pid);
+    	if (f == null || !f.pin())
+    		return;
+    	try {
+    		this.flushFrame(f);
+    	} finally {
+    		f.unpin();
+    	}
+    }
+
+    /** Write the page of a frame to disk, if it is dirty */
+    private void flushFrame(Frame f) throws IOException {
+    	this.flushFrames(f.page.getId().getTableId(), Collections.singletonList(f));
+    }
+
+    /**
+     * Write the pages of frames of a table to disk, if they are dirty. A
+     * page is marked clean before it is written, so that a change made to
+     * it while it is written marks it dirty again.
+     */
+    private void flushFrames(int tableId, List<Frame> fs) throws IOException {
+    	ArrayList<Page> pages = new ArrayList<Page>();
+    	ArrayList<TransactionId> tids = new ArrayList<TransactionId>();
+    	for (Frame f : fs) {
+    		synchronized (f) {
+    			TransactionId tid = f.page.isDirty();
+    			if (tid == null)
+    				continue;
+    			f.page.markDirty(false, tid);
+    			pages.add(f.page);
+    			tids.add(tid);
+    		}
+    	}
+    	if (pages.isEmpty())
+    		return;
+    	boolean written = false;
+    	try {
+    		Database.getCatalog().getDbFile(tableId).writePages(pages);
+    		written = true;
+    	} finally {
+    		this.pageWrites.incrementAndGet();
+    		if (!written) {
+    			for (int i = 0; i < pages.size(); i++)
+    				pages.get(i).markDirty(true, tids.get(i));
+    		}
     	}
     }
 
@@ -210,22 +635,45 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     *
+     * @throws DbException if every page in the buffer pool is pinned
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
-        // not necessary for proj1            
-    	if(!this.bufferPool.isEmpty()){
-    		for(Page pg : this.bufferPool.values()){
-    			try {
-					this.flushPage(pg.getId());
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-    			this.bufferPool.remove(pg.getId());
-    			break;
+        // not necessary for proj1
+    	// the hand clears the reference bits it passes, and evicts the first
+    	// page that is neither referenced nor pinned. One rotation clears
+    	// every bit, so if two rotations find nothing the pages are pinned
+    	// (threads using pinned pages keep setting their bits again)
+    	int steps = 2 * (this.numFrames.get() + 1);
+    	for (int step = 0; step < steps; step++) {
+    		Frame f = this.clock.poll();
+    		if (f == null)
+    			return;
+    		if (f.referenced) {
+    			f.referenced = false;
+    			this.clock.offer(f);
+    			continue;
+    		}
+    		// no one can pin the frame once it is claimed
+    		if (!f.pins.compareAndSet(0, -1)) {
+    			this.clock.offer(f);
+    			continue;
+    		}
+    		try {
+    			this.flushFrame(f);
+    		} catch (IOException e) {
+    			f.pins.set(0);
+    			this.clock.offer(f);
+    			throw new DbException("Unable to write page " + f.page.getId().pageNumber()
+    					+ " out: " + e.getMessage());
     		}
+    		this.frames.remove(f.page.getId(), f);
+    		this.numFrames.decrementAndGet();
+    		return;
     	}
+    	throw new DbException("All " + this.maxPages
+    			+ " pages of the buffer pool are pinned");
     }
 
 }
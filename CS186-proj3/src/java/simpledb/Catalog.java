@@ -40,6 +40,14 @@ public class Catalog {
 	// Create hashmap to store tables. {tableId:...}
 	private HashMap<Integer, Table> tableMap;
 	private HashMap<String, Integer> nameMap;
+	// The materialized views of each table. {tableId:...}
+	private HashMap<Integer, ArrayList<MaterializedView>> viewMap;
+
+	// The folder that table statistics are saved in, if any
+	private File statsFolder;
+
+	/** incremented whenever the set of tables or views changes */
+	private volatile int version = 0;
 	
     /**
      * Constructor.
@@ -49,6 +57,7 @@ public class Catalog {
         // some code goes here
     	this.tableMap = new HashMap<Integer, Table>();
     	this.nameMap = new HashMap<String, Integer>();
+    	this.viewMap = new HashMap<Integer, ArrayList<MaterializedView>>();
 
     }
 
@@ -70,11 +79,20 @@ public class Catalog {
     	// If a table with a given name already exists, we replace the old table with the new
     	if(this.nameMap.containsKey(name)){
     		// remove old table
-    		this.tableMap.remove(this.nameMap.get(name));
+    		int old = this.nameMap.get(name);
+    		this.tableMap.remove(old);
     		this.nameMap.remove(name);
+    		this.viewMap.remove(old);
+    		for (ArrayList<MaterializedView> views : this.viewMap.values()) {
+    			for (Iterator<MaterializedView> it = views.iterator(); it.hasNext();) {
+    				if (it.next().getId() == old)
+    					it.remove();
+    			}
+    		}
     	}
 		this.nameMap.put(name, file.getId());
     	this.tableMap.put(file.getId(), tbl);
+    	this.version++;
     }
 
     public void addTable(DbFile file, String name) {
@@ -147,11 +165,60 @@ public class Catalog {
         return this.tableMap.get(id).tableName;
     }
     
+    /**
+     * Returns the file that the statistics of the specified table are saved
+     * in, next to the catalog file it was loaded from.
+     * @param tableid The id of the table
+     * @return the stats file, or null if the catalog was not loaded from a
+     *     schema file and there is no place to keep statistics
+     */
+    public File getStatsFile(int tableid) {
+    	if (this.statsFolder == null || !this.tableMap.containsKey(tableid)) {
+    		return null;
+    	}
+    	return new File(this.statsFolder, getTableName(tableid) + ".stats");
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
     	this.tableMap.clear();
     	this.nameMap.clear();
+    	this.viewMap.clear();
+    	this.statsFolder = null;
+    	this.version++;
+    }
+
+    /**
+     * Add a materialized view, whose table must already be in the catalog,
+     * to the views of the table it is computed from.
+     */
+    public void addView(MaterializedView view) {
+    	ArrayList<MaterializedView> views = this.viewMap.get(view.getBaseTableId());
+    	if (views == null) {
+    		views = new ArrayList<MaterializedView>();
+    		this.viewMap.put(view.getBaseTableId(), views);
+    	}
+    	views.add(view);
+    	this.version++;
+    }
+
+    /**
+     * @return the materialized views computed from the specified table
+     */
+    public List<MaterializedView> getViews(int tableid) {
+    	ArrayList<MaterializedView> views = this.viewMap.get(tableid);
+    	if (views == null)
+    		return Collections.emptyList();
+    	return views;
+    }
+
+    /**
+     * @return a number that changes whenever a table is added to or removed
+     *    from the catalog, so that names resolved before can be checked
+     */
+    public int getVersion() {
+        return this.version;
     }
     
     /**
@@ -161,11 +228,12 @@ public class Catalog {
     public void loadSchema(String catalogFile) {
         String line = "";
         String baseFolder=new File(catalogFile).getParent();
+        this.statsFolder = new File(baseFolder == null ? "." : baseFolder);
         try {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [slotted|compressed|pax]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -193,10 +261,23 @@ public class Catalog {
                         }
                     }
                 }
+                // an optional keyword after the field list picks the page format
+                String formatName = line.substring(line.indexOf(")") + 1).trim();
+                HeapFile.Format format = HeapFile.Format.FIXED;
+                if (formatName.equals("slotted"))
+                    format = HeapFile.Format.SLOTTED;
+                else if (formatName.equals("compressed"))
+                    format = HeapFile.Format.COMPRESSED;
+                else if (formatName.equals("pax"))
+                    format = HeapFile.Format.PAX;
+                else if (!formatName.equals("")) {
+                    System.out.println("Unknown table format " + formatName);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder, name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder, name + ".dat"), t, format);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,607 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * A HeapPage that stores its tuples column by column, with each column
+ * compressed, for tables with many repeated values.
+ * <p>
+ * The page starts with a 2-byte slot count, a bitmap of the used slots and
+ * the 2-byte offset of each column. The used slots are then stored in slot
+ * order, one column after the other:
+ * <ul>
+ * <li>integer columns use frame-of-reference encoding (the column minimum,
+ * then every value minus the minimum, bit-packed to the width of the
+ * largest one), or run-length encoding (value and run length pairs),
+ * whichever is smaller;</li>
+ * <li>string columns use a sorted dictionary of the distinct values,
+ * followed by the bit-packed dictionary code of each tuple.</li>
+ * </ul>
+ * Columns are only decoded when they are needed, and
+ * {@link #iterator(List, int[])} evaluates predicates on string columns once
+ * per dictionary entry and then just compares codes. Since the dictionary
+ * is sorted, this works for range predicates as well.
+ * <p>
+ * New tuples are always added in a new slot at the end of the page; the
+ * page is re-encoded when it is written.
+ *
+ * @see HeapFile
+ * @see HeapFileEncoder
+ */
+public class CompressedHeapPage extends HeapPage {
+
+    private static final int FOR = 0, RLE = 1;
+
+    /** the page data, until the tuples are materialized */
+    private byte[] data;
+    /** whether each slot holds a tuple */
+    private boolean[] used;
+    private int numRows;
+    private int[] columnOffsets;
+    /** decoded columns: int[] values or StringColumn, null until needed */
+    private Object[] columns;
+
+    /** the tuple in each slot, null until the page is materialized */
+    private ArrayList<Tuple> slots;
+    /** upper bound on the size of the page with the current tuples */
+    private SizeTracker size;
+
+    /**
+     * Create a CompressedHeapPage from a set of bytes of data read from
+     * disk.
+     *
+     * @see CompressedHeapPage
+     */
+    public CompressedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id);
+        this.data = data;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int numSlots = dis.readUnsignedShort();
+        used = new boolean[numSlots];
+        byte[] bitmap = new byte[(numSlots + 7) / 8];
+        dis.readFully(bitmap);
+        for (int i = 0; i < numSlots; i++) {
+            used[i] = ((bitmap[i / 8] >> (i % 8)) & 1) == 1;
+            if (used[i])
+                numRows++;
+        }
+        columnOffsets = new int[td.numFields()];
+        for (int j = 0; j < columnOffsets.length; j++)
+            columnOffsets[j] = dis.readUnsignedShort();
+        dis.close();
+        columns = new Object[td.numFields()];
+
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HeapPage getBeforeImage() {
+        try {
+            return new CompressedHeapPage(pid, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format described in {@link CompressedHeapPage}.
+     */
+    public byte[] getPageData() {
+        if (slots == null)
+            return data.clone();
+        return encode(td, slots, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Delete the specified tuple from the page; the tuple should be updated
+     * to reflect that it is no longer stored on any page.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId()))
+            throw new DbException("Tuple not on this page.");
+        int i = rid.tupleno();
+        if (!isSlotUsed(i))
+            throw new DbException("Tuple slot is already empty.");
+        materialize();
+        slots.get(i).setRecordId(null);
+        t.setRecordId(null);
+        slots.set(i, null);
+        // the size estimate stays an upper bound
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to
+     * reflect that it is now stored on this page.
+     *
+     * @throws DbException if the page does not have room for the tuple or
+     *         tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc()))
+            throw new DbException("The TupleDesc is a mismatch.");
+        if (!hasRoomFor(t))
+            throw new DbException("The page is full.");
+        materialize();
+        t.setRecordId(new RecordId(this.pid, slots.size()));
+        slots.add(t);
+        size.addSlot(t);
+    }
+
+    /**
+     * Returns true if the page still fits once t is added.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return sizeTracker().sizeWith(t) <= BufferPool.PAGE_SIZE;
+    }
+
+    /**
+     * Returns an estimate of the number of tuples that could still be added
+     * to this page, based on the average compressed size of the tuples on
+     * it.
+     */
+    public int getNumEmptySlots() {
+        SizeTracker s = sizeTracker();
+        int free = BufferPool.PAGE_SIZE - s.size();
+        if (s.rows == 0)
+            return free / Math.max(1, td.getSize());
+        double perRow = Math.max(1.0 / 8, (double) s.size() / s.rows);
+        return (int) Math.max(0, Math.floor(free / perRow));
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        if (slots != null)
+            return i >= 0 && i < slots.size() && slots.get(i) != null;
+        return i >= 0 && i < used.length && used[i];
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this
+     *         iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        materialize();
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+        for (Tuple t : slots) {
+            if (t != null)
+                tupleList.add(t);
+        }
+        return Collections.unmodifiableList(tupleList).iterator();
+    }
+
+    /**
+     * Return the tuples on this page that satisfy every predicate in preds,
+     * projected onto fields. Only the columns preds and fields refer to are
+     * decoded; on string columns, a predicate is evaluated once per
+     * dictionary entry.
+     *
+     * @see HeapPage#iterator(List, int[])
+     */
+    public Iterator<Tuple> iterator(List<Predicate> preds, int[] fields) {
+        if (slots != null)
+            return super.iterator(preds, fields);
+        if (fields == null) {
+            fields = new int[td.numFields()];
+            for (int j = 0; j < fields.length; j++)
+                fields[j] = j;
+        }
+        TupleDesc ptd = projectTupleDesc(td, fields);
+
+        boolean[] matches = new boolean[numRows];
+        Arrays.fill(matches, true);
+        if (preds != null) {
+            for (Predicate p : preds)
+                filter(p, matches);
+        }
+
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+        int r = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i])
+                continue;
+            if (matches[r])
+                tupleList.add(tupleAt(i, r, ptd, fields));
+            r++;
+        }
+        return Collections.unmodifiableList(tupleList).iterator();
+    }
+
+    /** Clear the rows of matches that don't satisfy p */
+    private void filter(Predicate p, boolean[] matches) {
+        Object col = column(p.getField());
+        if (col instanceof StringColumn) {
+            StringColumn sc = (StringColumn) col;
+            boolean[] codeMatches = new boolean[sc.dict.length];
+            for (int c = 0; c < sc.dict.length; c++)
+                codeMatches[c] = p.filter(sc.dict[c]);
+            for (int r = 0; r < numRows; r++)
+                matches[r] = matches[r] && codeMatches[sc.codes[r]];
+        } else {
+            int[] values = (int[]) col;
+            for (int r = 0; r < numRows; r++)
+                matches[r] = matches[r] && p.filter(new IntField(values[r]));
+        }
+    }
+
+    /** the decoded dictionary and codes of a string column */
+    private static class StringColumn {
+        StringField[] dict;
+        int[] codes;
+    }
+
+    private Object column(int j) {
+        if (columns[j] == null) {
+            try {
+                columns[j] = decodeColumn(j);
+            } catch (IOException e) {
+                throw new NoSuchElementException("error decoding column " + j);
+            }
+        }
+        return columns[j];
+    }
+
+    private Object decodeColumn(int j) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+                columnOffsets[j], data.length - columnOffsets[j]));
+        if (td.getFieldType(j) == Type.STRING_TYPE) {
+            StringColumn sc = new StringColumn();
+            if (numRows == 0) {
+                sc.dict = new StringField[0];
+                sc.codes = new int[0];
+                return sc;
+            }
+            sc.dict = new StringField[dis.readUnsignedShort()];
+            for (int c = 0; c < sc.dict.length; c++) {
+                byte[] bs = new byte[dis.readUnsignedShort()];
+                dis.readFully(bs);
+                sc.dict[c] = new StringField(new String(bs), Type.STRING_LEN);
+            }
+            int bits = dis.readUnsignedByte();
+            sc.codes = new int[numRows];
+            long[] packed = unpack(dis, numRows, bits);
+            for (int r = 0; r < numRows; r++)
+                sc.codes[r] = (int) packed[r];
+            return sc;
+        }
+
+        int[] values = new int[numRows];
+        if (numRows == 0)
+            return values;
+        if (dis.readUnsignedByte() == RLE) {
+            int runs = dis.readUnsignedShort();
+            int r = 0;
+            for (int k = 0; k < runs; k++) {
+                int v = dis.readInt();
+                int len = dis.readUnsignedShort();
+                for (int l = 0; l < len; l++)
+                    values[r++] = v;
+            }
+        } else {
+            long min = dis.readInt();
+            int bits = dis.readUnsignedByte();
+            long[] packed = unpack(dis, numRows, bits);
+            for (int r = 0; r < numRows; r++)
+                values[r] = (int) (min + packed[r]);
+        }
+        return values;
+    }
+
+    /** Build the tuple in slot i, the r-th used slot, from the columns */
+    private Tuple tupleAt(int i, int r) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, valueAt(j, r));
+        return t;
+    }
+
+    /** Build the tuple in slot i, projected onto fields */
+    private Tuple tupleAt(int i, int r, TupleDesc ptd, int[] fields) {
+        Tuple t = new Tuple(ptd);
+        t.setRecordId(new RecordId(pid, i));
+        for (int k = 0; k < fields.length; k++)
+            t.setField(k, valueAt(fields[k], r));
+        return t;
+    }
+
+    private Field valueAt(int j, int r) {
+        Object col = column(j);
+        if (col instanceof StringColumn) {
+            StringColumn sc = (StringColumn) col;
+            return sc.dict[sc.codes[r]];
+        }
+        return new IntField(((int[]) col)[r]);
+    }
+
+    /** Decode every tuple, so that the page can be modified */
+    private void materialize() {
+        if (slots != null)
+            return;
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(used.length);
+        int r = 0;
+        for (int i = 0; i < used.length; i++)
+            tuples.add(used[i] ? tupleAt(i, r++) : null);
+        slots = tuples;
+        data = null;
+        columns = null;
+    }
+
+    private SizeTracker sizeTracker() {
+        if (size == null) {
+            materialize();
+            size = new SizeTracker(td);
+            for (Tuple t : slots)
+                size.addSlot(t);
+        }
+        return size;
+    }
+
+    /**
+     * Keeps track of the encoded size of a page as tuples are appended to
+     * it, without encoding it.
+     */
+    static class SizeTracker {
+        private final TupleDesc td;
+        private int numSlots, rows;
+        private long[] mins, maxs;
+        private int[] runs, last, runLength;
+        private ArrayList<HashSet<String>> dicts = new ArrayList<HashSet<String>>();
+        private int[] dictBytes;
+
+        SizeTracker(TupleDesc td) {
+            this.td = td;
+            int n = td.numFields();
+            mins = new long[n];
+            maxs = new long[n];
+            runs = new int[n];
+            last = new int[n];
+            runLength = new int[n];
+            dictBytes = new int[n];
+            for (int j = 0; j < n; j++)
+                dicts.add(new HashSet<String>());
+        }
+
+        /** Account for a tuple appended in a new slot (or an empty slot if t is null) */
+        void addSlot(Tuple t) {
+            numSlots++;
+            if (t == null)
+                return;
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (f.getType() == Type.STRING_TYPE) {
+                    String s = truncate(((StringField) f).getValue());
+                    if (dicts.get(j).add(s))
+                        dictBytes[j] += 2 + s.length();
+                } else {
+                    int v = ((IntField) f).getValue();
+                    if (rows == 0 || v < mins[j])
+                        mins[j] = v;
+                    if (rows == 0 || v > maxs[j])
+                        maxs[j] = v;
+                    if (startsRun(j, v)) {
+                        runs[j]++;
+                        runLength[j] = 0;
+                    }
+                    runLength[j]++;
+                    last[j] = v;
+                }
+            }
+            rows++;
+        }
+
+        /** the size of the page if t were appended */
+        int sizeWith(Tuple t) {
+            int s = 2 + (numSlots + 8) / 8 + 2 * td.numFields();
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (f.getType() == Type.STRING_TYPE) {
+                    String v = truncate(((StringField) f).getValue());
+                    boolean isNew = !dicts.get(j).contains(v);
+                    s += stringColumnSize(dicts.get(j).size() + (isNew ? 1 : 0),
+                            dictBytes[j] + (isNew ? 2 + v.length() : 0), rows + 1);
+                } else {
+                    int v = ((IntField) f).getValue();
+                    long min = rows == 0 ? v : Math.min(mins[j], v);
+                    long max = rows == 0 ? v : Math.max(maxs[j], v);
+                    int r = runs[j] + (startsRun(j, v) ? 1 : 0);
+                    s += intColumnSize(min, max, r, rows + 1);
+                }
+            }
+            return s;
+        }
+
+        /** the size of the page with the tuples added so far */
+        int size() {
+            int s = 2 + (numSlots + 7) / 8 + 2 * td.numFields();
+            if (rows == 0)
+                return s;
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) == Type.STRING_TYPE)
+                    s += stringColumnSize(dicts.get(j).size(), dictBytes[j], rows);
+                else
+                    s += intColumnSize(mins[j], maxs[j], runs[j], rows);
+            }
+            return s;
+        }
+
+        /** whether appending v to column j starts a new run */
+        private boolean startsRun(int j, int v) {
+            // the length of a run is stored in 2 bytes
+            return rows == 0 || v != last[j] || runLength[j] == 65535;
+        }
+    }
+
+    private static String truncate(String s) {
+        return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+    }
+
+    private static int bitsFor(long maxValue) {
+        return 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    private static int intColumnSize(long min, long max, int runs, int rows) {
+        int forSize = 1 + 4 + 1 + (int) (((long) rows * bitsFor(max - min) + 7) / 8);
+        int rleSize = 1 + 2 + 6 * runs;
+        return Math.min(forSize, rleSize);
+    }
+
+    private static int stringColumnSize(int dictSize, int dictBytes, int rows) {
+        return 2 + dictBytes + 1 + (int) (((long) rows * bitsFor(dictSize - 1) + 7) / 8);
+    }
+
+    /**
+     * Encode a page holding the specified slots.
+     *
+     * @param slots
+     *            the tuple in each slot, or null for an empty slot
+     * @param pageSize
+     *            the number of bytes in the page
+     * @return the page data, padded to pageSize
+     */
+    static byte[] encode(TupleDesc td, List<Tuple> slots, int pageSize) {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (Tuple t : slots) {
+            if (t != null)
+                rows.add(t);
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeShort(slots.size());
+            byte[] bitmap = new byte[(slots.size() + 7) / 8];
+            for (int i = 0; i < slots.size(); i++) {
+                if (slots.get(i) != null)
+                    bitmap[i / 8] |= 1 << (i % 8);
+            }
+            dos.write(bitmap);
+
+            ByteArrayOutputStream colBAOS = new ByteArrayOutputStream(pageSize);
+            DataOutputStream cols = new DataOutputStream(colBAOS);
+            int base = 2 + bitmap.length + 2 * td.numFields();
+            for (int j = 0; j < td.numFields(); j++) {
+                dos.writeShort(rows.isEmpty() ? 0 : base + cols.size());
+                if (rows.isEmpty())
+                    continue;
+                if (td.getFieldType(j) == Type.STRING_TYPE)
+                    encodeStrings(rows, j, cols);
+                else
+                    encodeInts(rows, j, cols);
+            }
+            cols.flush();
+            colBAOS.writeTo(dos);
+            dos.flush();
+
+            byte[] page = new byte[pageSize];
+            byte[] bytes = baos.toByteArray();
+            if (bytes.length > pageSize)
+                throw new IllegalStateException("compressed page overflow");
+            System.arraycopy(bytes, 0, page, 0, bytes.length);
+            return page;
+        } catch (IOException e) {
+            // writing to a byte array really shouldn't fail
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void encodeInts(List<Tuple> rows, int j, DataOutputStream dos)
+            throws IOException {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        for (Tuple t : rows) {
+            int v = ((IntField) t.getField(j)).getValue();
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            int[] run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (run != null && run[0] == v && run[1] < 65535)
+                run[1]++;
+            else
+                runs.add(new int[] { v, 1 });
+        }
+        int bits = bitsFor(max - min);
+        if (1 + 2 + 6 * runs.size() < 1 + 4 + 1 + ((long) rows.size() * bits + 7) / 8) {
+            dos.writeByte(RLE);
+            dos.writeShort(runs.size());
+            for (int[] run : runs) {
+                dos.writeInt(run[0]);
+                dos.writeShort(run[1]);
+            }
+        } else {
+            dos.writeByte(FOR);
+            dos.writeInt((int) min);
+            dos.writeByte(bits);
+            long[] offsets = new long[rows.size()];
+            for (int r = 0; r < offsets.length; r++)
+                offsets[r] = ((IntField) rows.get(r).getField(j)).getValue() - min;
+            pack(dos, offsets, bits);
+        }
+    }
+
+    private static void encodeStrings(List<Tuple> rows, int j, DataOutputStream dos)
+            throws IOException {
+        TreeSet<String> distinct = new TreeSet<String>();
+        for (Tuple t : rows)
+            distinct.add(truncate(((StringField) t.getField(j)).getValue()));
+        HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        dos.writeShort(distinct.size());
+        for (String s : distinct) {
+            codes.put(s, codes.size());
+            dos.writeShort(s.length());
+            dos.writeBytes(s);
+        }
+        int bits = bitsFor(distinct.size() - 1);
+        dos.writeByte(bits);
+        long[] values = new long[rows.size()];
+        for (int r = 0; r < values.length; r++)
+            values[r] = codes.get(truncate(((StringField) rows.get(r).getField(j)).getValue()));
+        pack(dos, values, bits);
+    }
+
+    /** Write values, most significant bit first, using bits bits each */
+    private static void pack(DataOutputStream dos, long[] values, int bits)
+            throws IOException {
+        int acc = 0, accBits = 0;
+        for (long v : values) {
+            for (int b = bits - 1; b >= 0; b--) {
+                acc = (acc << 1) | (int) ((v >>> b) & 1);
+                if (++accBits == 8) {
+                    dos.writeByte(acc);
+                    acc = 0;
+                    accBits = 0;
+                }
+            }
+        }
+        if (accBits > 0)
+            dos.writeByte(acc << (8 - accBits));
+    }
+
+    private static long[] unpack(DataInputStream dis, int n, int bits)
+            throws IOException {
+        long[] values = new long[n];
+        int acc = 0, accBits = 0;
+        for (int r = 0; r < n; r++) {
+            long v = 0;
+            for (int b = 0; b < bits; b++) {
+                if (accBits == 0) {
+                    acc = dis.readUnsignedByte();
+                    accBits = 8;
+                }
+                v = (v << 1) | ((acc >> --accBits) & 1);
+            }
+            values[r] = v;
+        }
+        return values;
+    }
+
+}
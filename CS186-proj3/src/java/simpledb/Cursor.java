@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A Cursor hands the results of a {@link Query} to its caller in batches. The
+ * query only runs as far as the batches that were fetched, so a caller that
+ * consumes results slowly holds the query back, and the whole result never
+ * has to be kept or printed at once.
+ * <p>
+ * Batches only contain the values of the tuples, so they can be serialized
+ * (e.g. to send them to a client).
+ */
+public class Cursor {
+
+    /** the number of tuples fetched at a time, unless set otherwise */
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    /**
+     * A batch of results: the values of up to fetch size tuples, and whether
+     * they are the last ones.
+     */
+    public static class Batch implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private final Field[][] rows;
+        private final boolean last;
+
+        Batch(TupleDesc td, Field[][] rows, boolean last) {
+            this.td = td;
+            this.rows = rows;
+            this.last = last;
+        }
+
+        /** @return the TupleDesc of the tuples */
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        /** @return the number of tuples in the batch */
+        public int size() {
+            return rows.length;
+        }
+
+        /** @return the ith tuple of the batch */
+        public Tuple getTuple(int i) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < rows[i].length; j++)
+                t.setField(j, rows[i][j]);
+            return t;
+        }
+
+        /** @return the tuples of the batch */
+        public List<Tuple> getTuples() {
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>(rows.length);
+            for (int i = 0; i < rows.length; i++)
+                tuples.add(getTuple(i));
+            return tuples;
+        }
+
+        /** @return true if there are no tuples after this batch */
+        public boolean isLast() {
+            return last;
+        }
+    }
+
+    private final Query query;
+    private final Transaction transaction;
+    private int fetchSize;
+    private boolean started = false;
+    private boolean done = false;
+
+    /**
+     * Constructor.
+     *
+     * @param query
+     *            the query, which the cursor starts on the first fetch
+     * @param fetchSize
+     *            the number of tuples to fetch at a time
+     * @param transaction
+     *            a transaction to commit when the cursor is closed (or abort
+     *            if fetching failed), or null if the caller completes the
+     *            query's transaction itself
+     */
+    public Cursor(Query query, int fetchSize, Transaction transaction) {
+        this.query = query;
+        this.transaction = transaction;
+        setFetchSize(fetchSize);
+    }
+
+    /** @return the TupleDesc of the results */
+    public TupleDesc getTupleDesc() {
+        return query.getOutputTupleDesc();
+    }
+
+    /** Set the number of tuples {@link #fetch()} returns */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 1)
+            throw new IllegalArgumentException("fetch size must be positive");
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /** @return the next batch of fetch size tuples */
+    public Batch fetch() throws IOException, DbException,
+            TransactionAbortedException {
+        return fetch(fetchSize);
+    }
+
+    /**
+     * Run the query until n more tuples are produced, or it ends.
+     *
+     * @return the batch of those tuples; a batch after the last one is empty
+     */
+    public Batch fetch(int n) throws IOException, DbException,
+            TransactionAbortedException {
+        if (done)
+            return new Batch(getTupleDesc(), new Field[0][], true);
+        if (!started) {
+            started = true;
+            try {
+                query.start();
+            } catch (DbException e) {
+                fail();
+                throw e;
+            } catch (TransactionAbortedException e) {
+                fail();
+                throw e;
+            }
+        }
+        ArrayList<Field[]> rows = new ArrayList<Field[]>(Math.min(n, fetchSize));
+        try {
+            while (rows.size() < n && query.hasNext()) {
+                Tuple t = query.next();
+                Field[] values = new Field[t.getTupleDesc().numFields()];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = t.getField(i);
+                rows.add(values);
+            }
+            // the operators compute their next tuple once, so asking again is
+            // cheap, and a full last batch is still marked as the last one
+            done = !query.hasNext();
+        } catch (DbException e) {
+            fail();
+            throw e;
+        } catch (TransactionAbortedException e) {
+            fail();
+            throw e;
+        }
+        return new Batch(getTupleDesc(), rows.toArray(new Field[rows.size()][]), done);
+    }
+
+    /** @return true if every tuple has been fetched */
+    public boolean isDone() {
+        return done;
+    }
+
+    /** Abort the cursor's transaction after a failure */
+    private void fail() throws IOException {
+        done = true;
+        if (started)
+            query.close();
+        started = false;
+        if (transaction != null)
+            transaction.abort();
+    }
+
+    /**
+     * Close the cursor, committing its transaction (if it has one), whether
+     * every tuple was fetched or not.
+     */
+    public void close() throws IOException {
+        if (started)
+            query.close();
+        started = false;
+        done = true;
+        if (transaction != null)
+            transaction.commit();
+    }
+}
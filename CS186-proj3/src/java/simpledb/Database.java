@@ -17,9 +17,13 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private LogFile _logfile;
+    private final StatementCache _statementCache;
+    private final ResultCache _resultCache;
 
     private Database() {
     	_catalog = new Catalog();
+    	_statementCache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+    	_resultCache = new ResultCache(0);
     	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
     	try {
             _logfile = new LogFile(new File(LOGFILENAME));
@@ -46,6 +50,17 @@ public class Database {
         return _instance._catalog;
     }
 
+    /** Return the cache of query plans of the static Database instance*/
+    public static StatementCache getStatementCache() {
+        return _instance._statementCache;
+    }
+
+    /** Return the cache of query results of the static Database instance,
+        which is disabled until it is given a capacity */
+    public static ResultCache getResultCache() {
+        return _instance._resultCache;
+    }
+
     /** Method used for testing -- create a new instance of the
         buffer pool and return it
     */
@@ -28,6 +28,25 @@ public interface DbFile extends Serializable {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Read consecutive pages from disk, with as few reads as possible.
+     *
+     * @param start the number of the first page to read
+     * @param count the number of pages to read
+     * @return the pages, which are fewer than count if the file ends first
+     * @throws IOException if the read fails
+     */
+    public List<Page> readPages(int start, int count) throws IOException;
+
+    /**
+     * Push the specified pages to disk, with one write for each run of
+     * consecutive pages.
+     *
+     * @param pages The pages to write, in any order.
+     * @throws IOException if the write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
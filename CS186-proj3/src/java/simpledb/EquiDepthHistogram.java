@@ -0,0 +1,350 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compressed histogram over a single column: the most common values (MCVs)
+ * are kept with their own frequencies, and the remaining values are split
+ * into equi-depth buckets that each hold roughly the same number of tuples.
+ * <p>
+ * Unlike {@link IntHistogram}, bucket boundaries follow the data, so skewed
+ * columns do not put most of the table into a single bucket, and a single
+ * heavy hitter does not distort the estimates for every other value. The
+ * histogram works for any Comparable value type; Integer columns get linear
+ * interpolation inside a bucket, other types assume the value falls in the
+ * middle of its bucket.
+ */
+public class EquiDepthHistogram<T extends Comparable<T>> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of most common values tracked outside of the buckets */
+    public static final int DEFAULT_MCVS = 16;
+
+    private final ArrayList<T> mcvs = new ArrayList<T>();
+    private final ArrayList<Double> mcvCounts = new ArrayList<Double>();
+
+    private final ArrayList<T> lows = new ArrayList<T>();
+    private final ArrayList<T> highs = new ArrayList<T>();
+    private final ArrayList<Double> counts = new ArrayList<Double>();
+    private final ArrayList<Double> distincts = new ArrayList<Double>();
+
+    private double total;
+
+    /** whether addValue has opened a bucket below / above the sampled range */
+    private boolean grownLow, grownHigh;
+
+    /**
+     * Build a histogram from a sample of the column.
+     *
+     * @param buckets
+     *            the maximum number of equi-depth buckets
+     * @param maxMcvs
+     *            the maximum number of most common values to track
+     * @param sample
+     *            a (uniform) sample of the values in the column; it is sorted
+     *            in place
+     * @param totalTuples
+     *            the number of tuples in the whole column; counts taken from
+     *            the sample are scaled up to this total
+     * @param ndv
+     *            estimated number of distinct values in the whole column, or
+     *            a negative number if unknown
+     */
+    public EquiDepthHistogram(int buckets, int maxMcvs, List<T> sample,
+            int totalTuples, long ndv) {
+        this.total = totalTuples;
+        if (sample.isEmpty())
+            return;
+
+        Collections.sort(sample);
+        double scale = (double) totalTuples / sample.size();
+
+        // collapse the sorted sample into runs of equal values
+        ArrayList<T> values = new ArrayList<T>();
+        ArrayList<Integer> runs = new ArrayList<Integer>();
+        for (T v : sample) {
+            int last = values.size() - 1;
+            if (last >= 0 && values.get(last).compareTo(v) == 0) {
+                runs.set(last, runs.get(last) + 1);
+            } else {
+                values.add(v);
+                runs.add(1);
+            }
+        }
+
+        // a value is "common" if it would fill more than a bucket on its own
+        boolean[] isMcv = new boolean[values.size()];
+        int threshold = Math.max(2, sample.size() / Math.max(1, buckets));
+        for (int n = 0; n < maxMcvs; n++) {
+            int best = -1;
+            for (int i = 0; i < values.size(); i++) {
+                if (!isMcv[i] && runs.get(i) >= threshold
+                        && (best < 0 || runs.get(i) > runs.get(best)))
+                    best = i;
+            }
+            if (best < 0)
+                break;
+            isMcv[best] = true;
+            mcvs.add(values.get(best));
+            mcvCounts.add(runs.get(best) * scale);
+        }
+
+        int rest = 0, restDistinct = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (!isMcv[i]) {
+                rest += runs.get(i);
+                restDistinct++;
+            }
+        }
+        if (rest == 0)
+            return;
+
+        // values that the sample missed are spread over the buckets in
+        // proportion to the distinct values each bucket did see
+        double distinctScale = 1.0;
+        if (ndv - mcvs.size() > restDistinct)
+            distinctScale = (double) (ndv - mcvs.size()) / restDistinct;
+
+        // greedily close a bucket once it holds its share of the tuples;
+        // a value is never split across two buckets
+        double depth = (double) rest / Math.max(1, buckets);
+        int inBucket = 0, bucketDistinct = 0;
+        T low = null;
+        for (int i = 0; i < values.size(); i++) {
+            if (isMcv[i])
+                continue;
+            if (low == null)
+                low = values.get(i);
+            inBucket += runs.get(i);
+            bucketDistinct++;
+            if (inBucket >= depth || lastRest(isMcv, i)) {
+                lows.add(low);
+                highs.add(values.get(i));
+                counts.add(inBucket * scale);
+                distincts.add(bucketDistinct * distinctScale);
+                low = null;
+                inBucket = 0;
+                bucketDistinct = 0;
+            }
+        }
+    }
+
+    private static boolean lastRest(boolean[] isMcv, int i) {
+        for (int k = i + 1; k < isMcv.length; k++) {
+            if (!isMcv[k])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Widen the outermost buckets to the true minimum and maximum of the
+     * column, which a sample can easily miss.
+     */
+    void extendRange(T min, T max) {
+        if (lows.isEmpty())
+            return;
+        if (min.compareTo(lows.get(0)) < 0 && mcvs.indexOf(min) < 0)
+            lows.set(0, min);
+        int last = highs.size() - 1;
+        if (max.compareTo(highs.get(last)) > 0 && mcvs.indexOf(max) < 0)
+            highs.set(last, max);
+    }
+
+    /**
+     * Account for a value inserted after the histogram was built. Bucket
+     * boundaries stay put, except that values beyond either end of the
+     * histogram go to a new bucket at that end (so appended keys do not
+     * dilute the sampled edge bucket), and a value in a gap between two
+     * buckets widens the bucket below it.
+     */
+    void addValue(T v) {
+        total += 1;
+        int m = mcvs.indexOf(v);
+        if (m >= 0) {
+            mcvCounts.set(m, mcvCounts.get(m) + 1);
+            return;
+        }
+        int b = findBucket(v);
+        if (b < 0) {
+            int last = lows.size() - 1;
+            if (last < 0 || (v.compareTo(lows.get(0)) < 0 && !grownLow)) {
+                b = 0;
+                lows.add(b, v);
+                highs.add(b, v);
+                counts.add(b, 0.0);
+                distincts.add(b, 1.0);
+                grownLow = true;
+                grownHigh |= last < 0;
+            } else if (v.compareTo(highs.get(last)) > 0 && !grownHigh) {
+                b = last + 1;
+                lows.add(v);
+                highs.add(v);
+                counts.add(0.0);
+                distincts.add(1.0);
+                grownHigh = true;
+            } else {
+                // below the first bucket, above the last, or in a gap
+                // between two buckets; widen the bucket just below it
+                b = 0;
+                while (b < last && lows.get(b + 1).compareTo(v) < 0)
+                    b++;
+                if (lows.get(b).compareTo(v) > 0)
+                    lows.set(b, v);
+                else
+                    highs.set(b, v);
+                // nothing in the old range of the bucket was equal to v
+                distincts.set(b, distincts.get(b) + 1);
+            }
+        }
+        counts.set(b, counts.get(b) + 1);
+    }
+
+    /**
+     * Account for a value deleted after the histogram was built.
+     */
+    void removeValue(T v) {
+        total = Math.max(0.0, total - 1);
+        int m = mcvs.indexOf(v);
+        if (m >= 0) {
+            mcvCounts.set(m, Math.max(0.0, mcvCounts.get(m) - 1));
+            return;
+        }
+        int b = findBucket(v);
+        if (b >= 0)
+            counts.set(b, Math.max(0.0, counts.get(b) - 1));
+    }
+
+    /**
+     * Estimate the selectivity of <tt>column op v</tt>.
+     *
+     * @param op
+     *            Operator
+     * @param v
+     *            Value
+     * @return Predicted fraction of the tuples that satisfy the predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, T v) {
+        if (total <= 0)
+            return 0.0;
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE: // as with IntHistogram, LIKE is treated as EQUALS
+            sel = equalCount(v) / total;
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - equalCount(v) / total;
+            break;
+        case LESS_THAN:
+            sel = lessCount(v) / total;
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = (lessCount(v) + equalCount(v)) / total;
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - (lessCount(v) + equalCount(v)) / total;
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - lessCount(v) / total;
+            break;
+        default:
+            sel = equalCount(v) / total;
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /** Estimated number of tuples equal to v */
+    private double equalCount(T v) {
+        int m = mcvs.indexOf(v);
+        if (m >= 0)
+            return mcvCounts.get(m);
+        int b = findBucket(v);
+        if (b < 0)
+            return 0.0;
+        return counts.get(b) / Math.max(1.0, distincts.get(b));
+    }
+
+    /** Estimated number of tuples strictly less than v */
+    private double lessCount(T v) {
+        double c = 0.0;
+        for (int i = 0; i < mcvs.size(); i++) {
+            if (mcvs.get(i).compareTo(v) < 0)
+                c += mcvCounts.get(i);
+        }
+        for (int b = 0; b < lows.size(); b++) {
+            if (highs.get(b).compareTo(v) < 0) {
+                c += counts.get(b);
+            } else if (lows.get(b).compareTo(v) < 0) {
+                c += counts.get(b) * fractionBelow(b, v);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Fraction of the tuples of bucket b that are strictly below v, where
+     * low(b) < v <= high(b).
+     */
+    private double fractionBelow(int b, T v) {
+        T lo = lows.get(b), hi = highs.get(b);
+        double d = Math.max(1.0, distincts.get(b));
+        if (v instanceof Integer) {
+            // in longs, since a bucket may span more than Integer.MAX_VALUE
+            long low = (Integer) lo;
+            double width = (double) ((long) (Integer) hi - low) + 1;
+            return Math.min(1.0 - 1.0 / d, ((long) (Integer) v - low) / width);
+        }
+        if (hi.compareTo(v) == 0)
+            return 1.0 - 1.0 / d;
+        return 0.5;
+    }
+
+    private int findBucket(T v) {
+        for (int b = 0; b < lows.size(); b++) {
+            if (lows.get(b).compareTo(v) <= 0 && highs.get(b).compareTo(v) >= 0)
+                return b;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the most common values, most frequent first
+     */
+    public List<T> getMostCommonValues() {
+        return Collections.unmodifiableList(mcvs);
+    }
+
+    /**
+     * @return the number of equi-depth buckets (not counting the MCVs)
+     */
+    public int numBuckets() {
+        return lows.size();
+    }
+
+    /**
+     * @return the number of tuples the histogram describes
+     */
+    public double totalTuples() {
+        return total;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{mcv:");
+        for (int i = 0; i < mcvs.size(); i++)
+            sb.append(mcvs.get(i)).append("=").append(Math.round(mcvCounts.get(i))).append(",");
+        sb.append(" buckets:");
+        for (int b = 0; b < lows.size(); b++) {
+            sb.append("[").append(lows.get(b)).append("-").append(highs.get(b))
+                    .append("]: ").append(Math.round(counts.get(b))).append(",");
+        }
+        return sb.append("}").toString();
+    }
+}
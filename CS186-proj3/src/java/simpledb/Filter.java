@@ -3,14 +3,44 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. It applies a
+ * conjunction of predicates, evaluated in order, so that a tuple is rejected
+ * by the first predicate it fails.
+ * <p>
+ * The order the predicates are given in is a plan-time estimate (see
+ * {@link #orderConjuncts}). An adaptive Filter also counts how often each
+ * predicate passes, and every {@link #REORDER_INTERVAL} tuples re-sorts them
+ * by the pass rates it observed. Since a predicate only sees the tuples that
+ * passed the ones before it, those rates are conditional on the current
+ * order, which is good enough to move a predicate that turns out to reject
+ * most tuples to the front.
+ * <p>
+ * The predicates are compiled by {@link PredicateCompiler} when the Filter
+ * is opened: a fixed order as a single conjunction, an adaptive Filter one
+ * predicate at a time so that it can still count and reorder them.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
-    
-    private Predicate predicate;
+
+    /** relative cost of evaluating a predicate on an int field */
+    public static final double INT_COMPARE_COST = 1.0;
+    /** relative cost of evaluating a predicate on a string field */
+    public static final double STRING_COMPARE_COST = 4.0;
+    /** number of tuples between two reorderings of an adaptive Filter */
+    public static final int REORDER_INTERVAL = 1024;
+
+    private Predicate[] predicates;
     private DbIterator child;
+    private final boolean adaptive;
+    private double[] costs;
+    private int[] evaluated;
+    private int[] passed;
+    private int sinceReorder;
+    /** the compiled conjunction of a Filter that isn't adaptive */
+    private transient PredicateCompiler.CompiledPredicate conjunction;
+    /** the compiled predicates of an adaptive Filter, in predicates' order */
+    private transient PredicateCompiler.CompiledPredicate[] compiled;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -23,13 +53,134 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
-    	this.predicate = p;
-    	this.child = child;
+    	this(Collections.singletonList(p), child, false);
+    }
+
+    /**
+     * Constructor for a Filter that applies a conjunction of predicates.
+     * 
+     * @param preds
+     *            The predicates a tuple must all pass, in the order they
+     *            should be evaluated in
+     * @param child
+     *            The child operator
+     * @param adaptive
+     *            whether to reorder the predicates by their observed pass
+     *            rates while running
+     */
+    public Filter(List<Predicate> preds, DbIterator child, boolean adaptive) {
+        this.predicates = preds.toArray(new Predicate[preds.size()]);
+        this.child = child;
+        this.adaptive = adaptive;
+        this.costs = new double[predicates.length];
+        for (int i = 0; i < predicates.length; i++)
+            costs[i] = evaluationCost(predicates[i], child.getTupleDesc());
+        this.evaluated = new int[predicates.length];
+        this.passed = new int[predicates.length];
     }
 
+    /**
+     * @return the first predicate this Filter evaluates
+     */
     public Predicate getPredicate() {
         // some code goes here
-        return this.predicate;
+        return this.predicates[0];
+    }
+
+    /**
+     * @return the predicates of this Filter, in the order it currently
+     *         evaluates them
+     */
+    public List<Predicate> getPredicates() {
+        return Collections.unmodifiableList(Arrays.asList(predicates.clone()));
+    }
+
+    /**
+     * @return the relative cost of evaluating p on tuples of td
+     */
+    public static double evaluationCost(Predicate p, TupleDesc td) {
+        return td.getFieldType(p.getField()) == Type.STRING_TYPE
+                ? STRING_COMPARE_COST : INT_COMPARE_COST;
+    }
+
+    /**
+     * The order in which to evaluate a conjunction of independent predicates
+     * is cheapest when it is sorted by cost / (1 - selectivity): cheap
+     * predicates that reject most tuples go first.
+     */
+    private static double rank(double cost, double selectivity) {
+        if (selectivity >= 1.0)
+            return Double.POSITIVE_INFINITY;
+        return cost / (1.0 - selectivity);
+    }
+
+    /**
+     * Order a conjunction of predicates for evaluation.
+     * 
+     * @param preds
+     *            the predicates
+     * @param selectivities
+     *            the estimated selectivity of each predicate
+     * @param td
+     *            the TupleDesc of the tuples the predicates are applied to
+     * @return the predicates, in the order they should be evaluated in
+     */
+    public static List<Predicate> orderConjuncts(List<Predicate> preds,
+            List<Double> selectivities, TupleDesc td) {
+        final double[] ranks = new double[preds.size()];
+        Integer[] order = new Integer[preds.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = rank(evaluationCost(preds.get(i), td), selectivities.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(ranks[a], ranks[b]);
+            }
+        });
+        ArrayList<Predicate> ordered = new ArrayList<Predicate>();
+        for (Integer i : order)
+            ordered.add(preds.get(i));
+        return ordered;
+    }
+
+    /**
+     * Re-sort the predicates by their observed pass rates, and halve the
+     * counts so that later tuples weigh more.
+     */
+    private void reorder() {
+        final double[] ranks = new double[predicates.length];
+        Integer[] order = new Integer[predicates.length];
+        for (int i = 0; i < ranks.length; i++) {
+            // smoothed, so that a predicate nothing reached yet counts as 1/2
+            double rate = (passed[i] + 1.0) / (evaluated[i] + 2.0);
+            ranks[i] = rank(costs[i], rate);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(ranks[a], ranks[b]);
+            }
+        });
+        Predicate[] newPredicates = new Predicate[predicates.length];
+        PredicateCompiler.CompiledPredicate[] newCompiled =
+                new PredicateCompiler.CompiledPredicate[predicates.length];
+        double[] newCosts = new double[predicates.length];
+        int[] newEvaluated = new int[predicates.length];
+        int[] newPassed = new int[predicates.length];
+        for (int i = 0; i < order.length; i++) {
+            newPredicates[i] = predicates[order[i]];
+            newCompiled[i] = compiled[order[i]];
+            newCosts[i] = costs[order[i]];
+            newEvaluated[i] = evaluated[order[i]] / 2;
+            newPassed[i] = passed[order[i]] / 2;
+        }
+        predicates = newPredicates;
+        compiled = newCompiled;
+        costs = newCosts;
+        evaluated = newEvaluated;
+        passed = newPassed;
+        sinceReorder = 0;
     }
 
     public TupleDesc getTupleDesc() {
@@ -40,6 +191,15 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+    	TupleDesc td = this.child.getTupleDesc();
+    	if (adaptive) {
+    		this.compiled = new PredicateCompiler.CompiledPredicate[predicates.length];
+    		for (int i = 0; i < predicates.length; i++)
+    			compiled[i] = PredicateCompiler.compile(
+    					Collections.singletonList(predicates[i]), td);
+    	} else {
+    		this.conjunction = PredicateCompiler.compile(Arrays.asList(predicates), td);
+    	}
     	this.child.open();
     	super.open();
     }
@@ -69,7 +229,21 @@ public class Filter extends Operator {
         // some code goes here
     	while (this.child.hasNext()){
     		Tuple nextTuple = this.child.next();
-    		if (this.predicate.filter(nextTuple)){
+    		if (!adaptive) {
+    			if (conjunction.filter(nextTuple))
+    				return nextTuple;
+    			continue;
+    		}
+    		boolean pass = true;
+    		for (int i = 0; i < predicates.length && pass; i++) {
+    			pass = compiled[i].filter(nextTuple);
+    			evaluated[i]++;
+    			if (pass)
+    				passed[i]++;
+    		}
+    		if (predicates.length > 1 && ++sinceReorder == REORDER_INTERVAL)
+    			reorder();
+    		if (pass){
     			return nextTuple;
     		}
     	}
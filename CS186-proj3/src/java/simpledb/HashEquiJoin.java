@@ -4,6 +4,12 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This implementation builds a hash table on the join keys of child1 (the
+ * build side) and probes it with the tuples of child2. If it is given a
+ * {@link BloomFilter} that was pushed into the probe side (see
+ * {@link JoinOptimizer#pushBloomFilter}), it fills the filter with the build
+ * side's keys before the probe side is read.
  */
 public class HashEquiJoin extends Operator {
 
@@ -13,6 +19,7 @@ public class HashEquiJoin extends Operator {
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    private BloomFilter bloomFilter = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -39,6 +46,21 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
+
+    /**
+     * Have this join fill bf with the keys in its hash table whenever it
+     * (re)loads it; bf should already be evaluated somewhere below child2.
+     */
+    public void setBloomFilter(BloomFilter bf) {
+        this.bloomFilter = bf;
+    }
+
+    /**
+     * @return the Bloom filter this join fills, or null if there is none
+     */
+    public BloomFilter getBloomFilter() {
+        return this.bloomFilter;
+    }
     
     public String getJoinField1Name()
     {
@@ -56,8 +78,12 @@ public class HashEquiJoin extends Operator {
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
+        if (bloomFilter != null)
+            bloomFilter.clear();
         while (child1.hasNext()) {
             t1 = child1.next();
+            if (bloomFilter != null)
+                bloomFilter.add(t1.getField(pred.getField1()));
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
             if (list == null) {
                 list = new ArrayList<Tuple>();
@@ -75,8 +101,11 @@ public class HashEquiJoin extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
-        child2.open();
+        // the probe side may start reading as soon as it is opened, so
+        // the Bloom filter has to be filled first
         loadMap();
+        child2.open();
+        super.open();
     }
 
     public void close() {
@@ -91,7 +120,9 @@ public class HashEquiJoin extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
+        loadMap();
         child2.rewind();
+        this.listIt = null;
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -152,8 +183,8 @@ public class HashEquiJoin extends Operator {
         }
 
         // child2 is done: advance child1
-        child2.rewind();
         if (loadMap()) {
+            child2.rewind();
             return fetchNext();
         }
 
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -8,16 +10,42 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor; tables with many strings can instead use the variable-length
+ * records of {@link SlottedHeapPage}, and highly repetitive tables the
+ * columnar encoding of {@link CompressedHeapPage}. Wide tables that are
+ * mostly scanned a few columns at a time can use the column-wise
+ * {@link PaxPage} layout.
+ * <p>
+ * Scans with a predicate skip the pages that the file's {@link ZoneMap}
+ * rules out. The zone map is loaded on first use; until then the pages that
+ * tuples are inserted on are remembered, so that their zones aren't trusted.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** The on-disk format of the pages of a HeapFile */
+    public enum Format {
+        /** fixed-size slots, see {@link HeapPage} */
+        FIXED,
+        /** variable-length records, see {@link SlottedHeapPage} */
+        SLOTTED,
+        /** compressed columns, see {@link CompressedHeapPage} */
+        COMPRESSED,
+        /** one minipage per column, see {@link PaxPage} */
+        PAX
+    }
+
+    /** the largest number of pages moved by one read or write */
+    public static final int MAX_IO_PAGES = 64;
+
     private File file;
     private RandomAccessFile raf;
     private TupleDesc tupleDesc;
+    private Format format;
+    private ZoneMap zoneMap;
+    private final HashSet<Integer> insertedPages = new HashSet<Integer>();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -27,16 +55,37 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, Format.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param format
+     *            the format of the pages of the file
+     */
+    public HeapFile(File f, TupleDesc td, Format format) {
         // some code goes here
         try {
             this.file = f;
             this.raf = new RandomAccessFile(f, "rw");   
             this.tupleDesc = td;
+            this.format = format;
         } catch (FileNotFoundException e) {
         	e.printStackTrace();
         }
     }
 
+    /**
+     * @return the format of the pages of this file
+     */
+    public Format getFormat() {
+        return this.format;
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      * 
@@ -71,27 +120,206 @@ public class HeapFile implements DbFile {
         return this.tupleDesc;
     }
 
+    /**
+     * Returns the zone map of this file, loading (or building) it on first
+     * use.
+     * 
+     * @return the zone map of this file, or null if it couldn't be loaded
+     */
+    public synchronized ZoneMap getZoneMap() {
+        if (this.zoneMap == null) {
+            try {
+                this.zoneMap = ZoneMap.load(this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            // these may have been changed in the buffer pool but not on disk
+            for (int i : this.insertedPages)
+                this.zoneMap.invalidate(i);
+            this.insertedPages.clear();
+        }
+        return this.zoneMap;
+    }
+
+    /**
+     * Returns the number of pages of this file that can be skipped when
+     * scanning for tuples that satisfy all of preds, according to its zone
+     * map.
+     */
+    public int countSkippablePages(List<Predicate> preds) {
+        ZoneMap zm = getZoneMap();
+        if (zm == null)
+            return 0;
+        int count = 0;
+        for (int i = 0; i < numPages(); i++) {
+            for (Predicate p : preds) {
+                if (!zm.mightMatch(i, p)) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Make sure the zone of page i covers t, which was inserted on it */
+    private synchronized void noteInsert(int i, Tuple t) {
+        if (this.zoneMap != null)
+            this.zoneMap.widen(i, t);
+        else
+            this.insertedPages.add(i);
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         try {
             byte[] pageData = new byte[BufferPool.PAGE_SIZE];
-            this.raf.seek(pid.pageNumber()*BufferPool.PAGE_SIZE);
-            this.raf.read(pageData);
-            HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.pageNumber());
-            HeapPage page = new HeapPage(hpid, pageData);
-            return page;
+            // the file pointer is shared, so seek and read must not interleave
+            // with another thread's (e.g. TableStats reading in parallel)
+            synchronized (this.raf) {
+                this.raf.seek(pid.pageNumber()*BufferPool.PAGE_SIZE);
+                this.raf.read(pageData);
+            }
+            return createPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), pageData);
         } catch (IOException e) {
             return null;
         }
     }
 
+    // see DbFile.java for javadocs
+    public List<Page> readPages(int start, int count) throws IOException {
+        count = Math.max(0, Math.min(count, numPages() - start));
+        ArrayList<Page> pages = new ArrayList<Page>(count);
+        for (int first = start; first < start + count; first += MAX_IO_PAGES) {
+            ByteBuffer[] buffers = new ByteBuffer[Math.min(MAX_IO_PAGES, start + count - first)];
+            for (int i = 0; i < buffers.length; i++)
+                buffers[i] = ByteBuffer.allocate(BufferPool.PAGE_SIZE);
+            // the channel's position is the file pointer that readPage seeks
+            synchronized (this.raf) {
+                FileChannel channel = this.raf.getChannel();
+                channel.position((long) first * BufferPool.PAGE_SIZE);
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    if (channel.read(buffers) < 0)
+                        break;
+                }
+            }
+            for (int i = 0; i < buffers.length; i++)
+                pages.add(createPage(new HeapPageId(getId(), first + i), buffers[i].array()));
+        }
+        return pages;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        ArrayList<Page> sorted = new ArrayList<Page>(pages);
+        Collections.sort(sorted, new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                return a.getId().pageNumber() - b.getId().pageNumber();
+            }
+        });
+        ZoneMap zm = beginZoneWrite();
+        boolean written = false;
+        try {
+            writeRuns(sorted);
+            written = true;
+        } finally {
+            endZoneWrite(zm, sorted, written);
+        }
+    }
+
+    /** Write pages, sorted by page number, in runs of consecutive pages */
+    private void writeRuns(List<Page> sorted) throws IOException {
+        synchronized (this.raf) {
+            FileChannel channel = this.raf.getChannel();
+            for (int i = 0; i < sorted.size();) {
+                // the run of consecutive pages starting with page i
+                int end = i + 1;
+                while (end < sorted.size() && end - i < MAX_IO_PAGES
+                        && sorted.get(end).getId().pageNumber()
+                                == sorted.get(end - 1).getId().pageNumber() + 1)
+                    end++;
+                ByteBuffer[] buffers = new ByteBuffer[end - i];
+                for (int j = i; j < end; j++)
+                    buffers[j - i] = ByteBuffer.wrap(sorted.get(j).getPageData());
+                channel.position((long) sorted.get(i).getId().pageNumber() * BufferPool.PAGE_SIZE);
+                writeFully(channel, buffers);
+                i = end;
+            }
+        }
+    }
+
+    /**
+     * Tell the zone map, if it is loaded, that pages are about to be written.
+     *
+     * @return the zone map, or null
+     */
+    private synchronized ZoneMap beginZoneWrite() throws IOException {
+        if (this.zoneMap != null)
+            this.zoneMap.beginWrite();
+        return this.zoneMap;
+    }
+
+    /**
+     * Bring the zone map up to date with pages that were written, or that
+     * may have been partly written if the write failed.
+     *
+     * @param zm
+     *            the zone map beginZoneWrite returned
+     */
+    private synchronized void endZoneWrite(ZoneMap zm, List<Page> pages,
+            boolean written) throws IOException {
+        if (this.zoneMap == null)
+            return;
+        if (zm == null) // loaded during the write
+            this.zoneMap.beginWrite();
+        for (Page page : pages) {
+            if (written)
+                this.zoneMap.update((HeapPage) page);
+            else
+                this.zoneMap.invalidate(page.getId().pageNumber());
+        }
+        this.zoneMap.endWrite(this.file.length());
+    }
+
+    /** Write all of the buffers to a channel, with gathering writes */
+    static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        while (buffers.length > 0 && buffers[buffers.length - 1].hasRemaining())
+            channel.write(buffers);
+    }
+
+    /**
+     * @return a page of this file's format holding the specified data
+     */
+    HeapPage createPage(HeapPageId hpid, byte[] pageData) throws IOException {
+        switch (this.format) {
+        case SLOTTED:
+            return new SlottedHeapPage(hpid, pageData);
+        case COMPRESSED:
+            return new CompressedHeapPage(hpid, pageData);
+        case PAX:
+            return new PaxPage(hpid, pageData);
+        default:
+            return new HeapPage(hpid, pageData);
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        this.raf.seek(page.getId().pageNumber()*BufferPool.PAGE_SIZE);
-        this.raf.write(page.getPageData());
+        ZoneMap zm = beginZoneWrite();
+        boolean written = false;
+        try {
+            synchronized (this.raf) {
+                this.raf.seek(page.getId().pageNumber()*BufferPool.PAGE_SIZE);
+                this.raf.write(page.getPageData());
+            }
+            written = true;
+        } finally {
+            endZoneWrite(zm, Collections.singletonList(page), written);
+        }
     }
 
     /**
@@ -110,21 +338,40 @@ public class HeapFile implements DbFile {
         ArrayList<Page> modifiedPages = new ArrayList<Page>();
         for (int i = 0; i < numPages(); i++) {
             HeapPageId hpid = new HeapPageId(getId(), i);
-            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, null);
-            if (p.getNumEmptySlots() != 0) {
-                p.insertTuple(t);
-                p.markDirty(true, tid);
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY);
+            boolean room = p.hasRoomFor(t);
+            Database.getBufferPool().releasePage(p);
+            if (room) {
+                p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
+                try {
+                    p.insertTuple(t);
+                    p.markDirty(true, tid);
+                } finally {
+                    Database.getBufferPool().releasePage(p);
+                }
+                noteInsert(i, t);
                 modifiedPages.add(p);
                 return modifiedPages;
             }
         }
         byte[] newPage = new byte[BufferPool.PAGE_SIZE];
         HeapPageId hpid = new HeapPageId(getId(), numPages());
-        this.raf.seek(numPages()*BufferPool.PAGE_SIZE);
-        this.raf.write(newPage);
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, null);
-        p.insertTuple(t);
-        p.markDirty(true, tid);
+        synchronized (this.raf) {
+            this.raf.seek(numPages()*BufferPool.PAGE_SIZE);
+            this.raf.write(newPage);
+        }
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
+        try {
+            synchronized (this) {
+                if (this.zoneMap != null)
+                    this.zoneMap.update(p);
+            }
+            p.insertTuple(t);
+            p.markDirty(true, tid);
+        } finally {
+            Database.getBufferPool().releasePage(p);
+        }
+        noteInsert(hpid.pageNumber(), t);
         modifiedPages.add(p);
         return modifiedPages;
     }
@@ -134,9 +381,13 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), null);
-        p.deleteTuple(t);
-        p.markDirty(true, tid);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        try {
+            p.deleteTuple(t);
+            p.markDirty(true, tid);
+        } finally {
+            Database.getBufferPool().releasePage(p);
+        }
         return p;
     }
 
@@ -146,26 +397,139 @@ public class HeapFile implements DbFile {
     	return new HeapFileIterator(this, tid);
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that satisfy p. Pages
+     * evaluate p on their data, without parsing the tuples that don't
+     * satisfy it (see {@link HeapPage#iterator(List, int[])}).
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        return iterator(tid, p == null ? null : Collections.singletonList(p), null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy every
+     * predicate in preds, projected onto the specified fields; see
+     * {@link HeapPage#iterator(List, int[])}.
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds, int[] fields) {
+        return new HeapFileIterator(this, tid, preds, fields);
+    }
+
+    /**
+     * Read a page for a scan, unless the zone map shows that none of its
+     * tuples can satisfy the scan's predicates.
+     *
+     * @param zoneMap
+     *            the zone map of this file, or null to read every page
+     * @param preds
+     *            the predicates of the scan, or null
+     * @return the page, pinned in the buffer pool until the caller releases
+     *         it (see {@link BufferPool#releasePage(Page)}), or null if it
+     *         was skipped
+     */
+    HeapPage scanPage(TransactionId tid, int pageNumber, ZoneMap zoneMap,
+            List<Predicate> preds) throws DbException, TransactionAbortedException {
+        if (skipsPage(tid, pageNumber, zoneMap, preds))
+            return null;
+        HeapPageId hpid = new HeapPageId(getId(), pageNumber);
+        return (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY);
+    }
+
+    /**
+     * @return true if the zone map shows that none of the tuples of a page
+     *         can satisfy the predicates of a scan; see {@link #scanPage}
+     */
+    boolean skipsPage(TransactionId tid, int pageNumber, ZoneMap zoneMap,
+            List<Predicate> preds) {
+        if (zoneMap == null || preds == null)
+            return false;
+        // the zone map describes the current pages, not a snapshot's
+        HeapPageId hpid = new HeapPageId(getId(), pageNumber);
+        if (Database.getBufferPool().readsOldVersion(tid, hpid))
+            return false;
+        for (Predicate p : preds) {
+            if (!zoneMap.mightMatch(pageNumber, p))
+                return true;
+        }
+        return false;
+    }
+
     public static class HeapFileIterator implements DbFileIterator {
         private HeapFile hf;
         private TransactionId tid;
         private int pageNumber;
+        /** the page being read, which is pinned until the iterator moves on */
+        private HeapPage page;
         private Iterator<Tuple> iterator;
+        private List<Predicate> predicates;
+        private int[] fields;
+        private ZoneMap zoneMap;
+        private ReadAhead readAhead;
+        private int pagesSkipped;
 
         public HeapFileIterator(HeapFile h, TransactionId t) {
+            this(h, t, null, null);
+        }
+
+        /**
+         * @param preds
+         *            only return tuples that satisfy all of these predicates,
+         *            or all of them if preds is null; pages that the zone map
+         *            rules out aren't read
+         * @param fields
+         *            the fields to return, or null for all of them
+         */
+        public HeapFileIterator(HeapFile h, TransactionId t, List<Predicate> preds,
+                int[] fields) {
             this.hf = h;
             this.tid = t;
             this.pageNumber = 0;
+            this.predicates = preds == null || preds.isEmpty() ? null : preds;
+            this.fields = fields;
         }
 
+        /**
+         * @return the number of pages skipped using the zone map since the
+         *         iterator was last opened or rewound
+         */
+        public int getPagesSkipped() {
+            return this.pagesSkipped;
+        }
+
+        private Iterator<Tuple> pageIterator(int pageNumber)
+                throws DbException, TransactionAbortedException {
+            releasePage();
+            if (this.readAhead != null)
+                this.readAhead.pageRead(pageNumber);
+            HeapPage page = this.hf.scanPage(this.tid, pageNumber, this.zoneMap,
+                    this.predicates);
+            this.page = page;
+            if (page == null) {
+                this.pagesSkipped++;
+                return Collections.<Tuple>emptyList().iterator();
+            }
+            if (this.predicates == null && this.fields == null)
+                return page.iterator();
+            return page.iterator(this.predicates, this.fields);
+        }
+
+        /** Release the pin on the page being read, if any */
+        private void releasePage() {
+            Database.getBufferPool().releasePage(this.page);
+            this.page = null;
+        }
+
+
         /**
          * Opens the iterator
          * @throws DbException when there are problems opening/accessing the database.
          */
         public void open() throws DbException, TransactionAbortedException {
-            HeapPageId hpid = new HeapPageId(this.hf.getId(), 0);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.tid, hpid, null);
-            this.iterator = page.iterator();
+            if (this.predicates != null)
+                this.zoneMap = this.hf.getZoneMap();
+            this.readAhead = new ReadAhead(this.hf, this.tid, this.zoneMap,
+                    this.predicates);
+            rewind();
         }
 
         /** @return true if there are more tuples available. */
@@ -175,21 +539,16 @@ public class HeapFile implements DbFile {
                 return false;
             }
 
-            if (this.iterator.hasNext()) {
-                return true;
-            }
-            
-            // Need to check next page
-            for (int i = this.pageNumber+1; i < this.hf.numPages(); i++) {
-                HeapPageId hpid = new HeapPageId(this.hf.getId(), i);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.tid, hpid, null);
-                Iterator<Tuple> nextIterator = page.iterator();
-                if (nextIterator.hasNext()) {
-                    return true;
+            // Move on to the next page with a matching tuple, if need be
+            while (!this.iterator.hasNext()) {
+                if (this.pageNumber + 1 >= this.hf.numPages()) {
+                    releasePage();
+                    return false;
                 }
+                this.pageNumber++;
+                this.iterator = pageIterator(this.pageNumber);
             }
-
-            return false;
+            return true;
         }
 
         /**
@@ -204,23 +563,10 @@ public class HeapFile implements DbFile {
                 throw new NoSuchElementException("Iterator is null.");
             }
 
-            if (this.iterator.hasNext()) {
-                return this.iterator.next();
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more tuples.");
             }
-            
-            // Move to the next page
-            for (int i = this.pageNumber + 1; i < this.hf.numPages(); i++) {
-                HeapPageId hpid = new HeapPageId(this.hf.getId(), i);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.tid, hpid, null);
-                Iterator<Tuple> nextIterator = page.iterator();
-                if (nextIterator.hasNext()) {
-                    this.iterator = page.iterator();
-                    this.pageNumber = i;
-                    return this.iterator.next();
-                }
-            }
-
-            throw new NoSuchElementException("No more tuples.");
+            return this.iterator.next();
         }
 
         /**
@@ -228,16 +574,18 @@ public class HeapFile implements DbFile {
          * @throws DbException When rewind is unsupported.
          */
         public void rewind() throws DbException, TransactionAbortedException {
-            HeapPageId hpid = new HeapPageId(this.hf.getId(), 0);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.tid, hpid, null);
-            this.iterator = page.iterator();
-            this.pageNumber = 0;
+            // pages are read on demand, starting with page 0
+            releasePage();
+            this.pageNumber = -1;
+            this.pagesSkipped = 0;
+            this.iterator = Collections.<Tuple>emptyList().iterator();
         }
 
         /**
          * Closes the iterator.
          */
         public void close() {
+            releasePage();
             this.iterator = null;
         }
     }
@@ -1,7 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -13,6 +16,43 @@ import java.util.ArrayList;
 
 public class HeapFileEncoder {
 
+  /**
+   * Writes the pages of a new data file in batches of up to
+   * {@link HeapFile#MAX_IO_PAGES} pages, each with one gathering write.
+   */
+  private static class PageWriter {
+      private final FileOutputStream os;
+      private final FileChannel channel;
+      private final ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+      private int pages = 0;
+
+      PageWriter(File outFile) throws IOException {
+          // the zone map of whatever file was there before doesn't apply
+          ZoneMap.sidecarFor(outFile).delete();
+          this.os = new FileOutputStream(outFile);
+          this.channel = os.getChannel();
+      }
+
+      /** Add a page, given as the consecutive parts of its data */
+      void write(byte[]... parts) throws IOException {
+          for (byte[] part : parts)
+              pending.add(ByteBuffer.wrap(part));
+          if (++pages >= HeapFile.MAX_IO_PAGES)
+              flush();
+      }
+
+      private void flush() throws IOException {
+          HeapFile.writeFully(channel, pending.toArray(new ByteBuffer[pending.size()]));
+          pending.clear();
+          pages = 0;
+      }
+
+      void close() throws IOException {
+          flush();
+          os.close();
+      }
+  }
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -66,6 +106,33 @@ public class HeapFileEncoder {
       convert(inFile,outFile,npagebytes,numFields,typeAr,',');
   }
 
+  /** Convert the specified input text file into a binary page file in
+   * the specified page format.
+   *
+   * @see #convert(File, File, int, int, Type[], char)
+   * @see SlottedHeapPage
+   * @see CompressedHeapPage
+   * @see PaxPage
+   * @param format the format of the pages to write
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, HeapFile.Format format)
+      throws IOException {
+      switch (format) {
+      case SLOTTED:
+          convertSlotted(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          break;
+      case COMPRESSED:
+          convertCompressed(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          break;
+      case PAX:
+          convertPax(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          break;
+      default:
+          convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+      }
+  }
+
    /** Convert the specified input text file into a binary
     * page file. <br>
     * Assume format of the input file is (note that only integer fields are
@@ -105,7 +172,7 @@ public class HeapFileEncoder {
     int nheaderbits = nheaderbytes * 8;
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
+    PageWriter os = new PageWriter(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -206,9 +273,8 @@ public class HeapFileEncoder {
             
             // write header and body to file
             headerStream.flush();
-            headerBAOS.writeTo(os);
             pageStream.flush();
-            pageBAOS.writeTo(os);
+            os.write(headerBAOS.toByteArray(), pageBAOS.toByteArray());
             
             // reset header and body for next page
             headerBAOS = new ByteArrayOutputStream(nheaderbytes);
@@ -223,4 +289,131 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Parse one line of the input text file into a tuple */
+  private static Tuple parseLine(String line, TupleDesc td, char fieldSeparator) {
+      String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+      Tuple t = new Tuple(td);
+      for (int fieldNo = 0; fieldNo < td.numFields(); fieldNo++) {
+          String s = fieldNo < values.length ? values[fieldNo].trim() : "";
+          if (td.getFieldType(fieldNo) == Type.INT_TYPE) {
+              int v = 0;
+              try {
+                  v = Integer.parseInt(s);
+              } catch (NumberFormatException e) {
+                  System.out.println ("BAD LINE : " + s);
+              }
+              t.setField(fieldNo, new IntField(v));
+          } else {
+              t.setField(fieldNo, new StringField(s, Type.STRING_LEN));
+          }
+      }
+      return t;
+  }
+
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    PageWriter os = new PageWriter(outFile);
+
+    ArrayList<byte[]> records = new ArrayList<byte[]>();
+    int used = 2; // the slot count
+    int npages = 0;
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.trim().length() == 0)
+            continue;
+        Tuple t = parseLine(line, td, fieldSeparator);
+        ByteArrayOutputStream recordBAOS = new ByteArrayOutputStream();
+        DataOutputStream recordStream = new DataOutputStream(recordBAOS);
+        for (int fieldNo = 0; fieldNo < numFields; fieldNo++)
+            SlottedHeapPage.writeField(t.getField(fieldNo), recordStream);
+        recordStream.flush();
+        byte[] record = recordBAOS.toByteArray();
+
+        // each record also needs a 2-byte slot in the directory
+        if (used + 2 + record.length > npagebytes) {
+            os.write(SlottedHeapPage.layoutPage(records, npagebytes));
+            npages++;
+            records.clear();
+            used = 2;
+        }
+        records.add(record);
+        used += 2 + record.length;
+    }
+    // flush the last page; if this file is empty, do flush an empty page
+    if (!records.isEmpty() || npages == 0)
+        os.write(SlottedHeapPage.layoutPage(records, npagebytes));
+    br.close();
+    os.close();
+  }
+
+  private static void convertCompressed(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    PageWriter os = new PageWriter(outFile);
+
+    ArrayList<Tuple> rows = new ArrayList<Tuple>();
+    CompressedHeapPage.SizeTracker size = new CompressedHeapPage.SizeTracker(td);
+    int npages = 0;
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.trim().length() == 0)
+            continue;
+        Tuple t = parseLine(line, td, fieldSeparator);
+        if (!rows.isEmpty() && size.sizeWith(t) > npagebytes) {
+            os.write(CompressedHeapPage.encode(td, rows, npagebytes));
+            npages++;
+            rows.clear();
+            size = new CompressedHeapPage.SizeTracker(td);
+        }
+        rows.add(t);
+        size.addSlot(t);
+    }
+    // flush the last page; if this file is empty, do flush an empty page
+    if (!rows.isEmpty() || npages == 0)
+        os.write(CompressedHeapPage.encode(td, rows, npagebytes));
+    br.close();
+    os.close();
+  }
+
+  private static void convertPax(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+    // the same number of slots and header bytes as a HeapPage
+    int nrecords = (npagebytes * 8) / (td.getSize() * 8 + 1);
+    int nheaderbytes = (nrecords + 7) / 8;
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    PageWriter os = new PageWriter(outFile);
+
+    Tuple[] slots = new Tuple[nrecords];
+    int recordcount = 0;
+    int npages = 0;
+    String line;
+    while (true) {
+        line = br.readLine();
+        if (line != null && line.trim().length() == 0)
+            continue;
+        if (line != null)
+            slots[recordcount++] = parseLine(line, td, fieldSeparator);
+        if (recordcount == nrecords || line == null && (recordcount > 0 || npages == 0)) {
+            byte[] header = new byte[nheaderbytes];
+            for (int i = 0; i < recordcount; i++)
+                header[i / 8] |= 1 << (i % 8);
+            os.write(PaxPage.encode(td, header, slots, npagebytes));
+            npages++;
+            slots = new Tuple[nrecords];
+            recordcount = 0;
+        }
+        if (line == null)
+            break;
+    }
+    br.close();
+    os.close();
+  }
 }
@@ -17,8 +17,16 @@ public class HeapPage implements Page {
     HeapPageId pid;
     TupleDesc td;
     byte header[];
-    Tuple tuples[];
+    /** the tuples, once they are parsed; set before unparsedData is cleared */
+    volatile Tuple tuples[];
     int numSlots;
+    /**
+     * the page data, until the tuples are parsed (they are then null); scans
+     * that read it must read the field once, as parseTuples may clear it
+     */
+    volatile byte[] unparsedData;
+    /** the offset of each field within a tuple */
+    private int[] fieldStarts;
 
     byte[] oldData;
 
@@ -37,6 +45,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The tuples are only parsed when the page is modified or iterated over
+     * as a whole; {@link #iterator(List, int[])} reads just the fields it
+     * needs straight from the page data.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#PAGE_SIZE
@@ -51,24 +62,77 @@ public class HeapPage implements Page {
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
+        dis.close();
+        this.unparsedData = data;
+
+        setBeforeImage();
+    }
 
+    /**
+     * Parse every tuple on the page, if that hasn't happened yet, so that
+     * the page can be modified.
+     *
+     * @throws NoSuchElementException if the page data can't be parsed; the
+     *         page is then left unparsed
+     */
+    void parseTuples() {
+        byte[] d = unparsedData;
+        if (tuples != null || d == null)
+            return;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(d));
+        // allocate and read the actual records of this page
+        Tuple[] parsed = new Tuple[numSlots];
         try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+            dis.skipBytes(header.length);
+            for (int i=0; i<parsed.length; i++)
+                parsed[i] = readNextTuple(dis,i);
+        }catch(IOException e){
+            throw new NoSuchElementException("parsing error!");
         }
-        dis.close();
+        tuples = parsed;
+        unparsedData = null;
+    }
 
-        setBeforeImage();
+    /**
+     * @return the offset in the page data of field j of the tuple in slot i
+     */
+    int fieldOffset(int j, int i) {
+        if (fieldStarts == null) {
+            fieldStarts = new int[td.numFields()];
+            for (int k = 1; k < fieldStarts.length; k++)
+                fieldStarts[k] = fieldStarts[k - 1] + td.getFieldType(k - 1).getLen();
+        }
+        return header.length + i * td.getSize() + fieldStarts[j];
+    }
+
+    /**
+     * Parse field j of the tuple in slot i from d, the unparsed page data.
+     */
+    Field fieldAt(byte[] d, int j, int i) {
+        int off = fieldOffset(j, i);
+        int value = ((d[off] & 0xff) << 24) | ((d[off + 1] & 0xff) << 16)
+                | ((d[off + 2] & 0xff) << 8) | (d[off + 3] & 0xff);
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return new IntField(value);
+        // a string is its length followed by its (padded) bytes
+        if (value < 0 || value > Type.STRING_LEN)
+            throw new NoSuchElementException("parsing error!");
+        return new StringField(new String(d, off + 4, value), Type.STRING_LEN);
+    }
+
+    /**
+     * Constructor for subclasses that store tuples in a different page
+     * format; it does not parse any page data.
+     */
+    protected HeapPage(HeapPageId id) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    int getNumTuples() {        
         // some code goes here
         return (int) Math.floor((BufferPool.PAGE_SIZE * 8) / (this.td.getSize() * 8 + 1));
 
@@ -78,7 +142,7 @@ public class HeapPage implements Page {
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
-    private int getHeaderSize() {        
+    int getHeaderSize() {        
         
         // some code goes here
         return (int) Math.ceil((double) getNumTuples()/8);
@@ -156,6 +220,9 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        byte[] d = unparsedData;
+        if (d != null)
+            return d.clone();
         int len = BufferPool.PAGE_SIZE;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -240,6 +307,7 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        parseTuples();
         RecordId rid = t.getRecordId();
         if (rid != null && this.pid.equals(rid.getPageId())) {
             int i = rid.tupleno();
@@ -269,6 +337,7 @@ public class HeapPage implements Page {
             throw new DbException("The TupleDesc is a mismatch.");
         }
 
+        parseTuples();
         for (int i = 0; i < this.tuples.length; i++) {
             if (!isSlotUsed(i)) {
                 t.setRecordId(new RecordId(this.pid, i));
@@ -304,6 +373,14 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Returns true if t can be added to this page with
+     * {@link #insertTuple}.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -354,6 +431,7 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        parseTuples();
         ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
         for (int i = 0; i < this.tuples.length; i++) {
         	if (isSlotUsed(i)) {
@@ -363,5 +441,98 @@ public class HeapPage implements Page {
         return tupleList.iterator();
     }
 
+    /**
+     * @return an iterator over the tuples on this page that satisfy p.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        return iterator(p == null ? null : Collections.singletonList(p), null);
+    }
+
+    /**
+     * Return the tuples on this page that satisfy every predicate in preds,
+     * projected onto the specified fields. Until the page is modified, the
+     * predicates are evaluated on the page data, and only the fields of the
+     * matching tuples are parsed; page formats with their own encoding
+     * override this.
+     *
+     * @param preds
+     *            the predicates tuples must satisfy (with the field numbers
+     *            of the table), or null for all tuples
+     * @param fields
+     *            the fields of the table to return, in order, or null for all
+     *            of them
+     * @return an iterator over the matching tuples; projected tuples keep
+     *         their RecordId
+     */
+    public Iterator<Tuple> iterator(List<Predicate> preds, int[] fields) {
+        TupleDesc ptd = fields == null ? td : projectTupleDesc(td, fields);
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+        byte[] d = unparsedData;
+        if (d != null) {
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i) || !matches(preds, d, i))
+                    continue;
+                Tuple t = new Tuple(ptd);
+                t.setRecordId(new RecordId(pid, i));
+                for (int k = 0; k < ptd.numFields(); k++)
+                    t.setField(k, fieldAt(d, fields == null ? k : fields[k], i));
+                tupleList.add(t);
+            }
+            return tupleList.iterator();
+        }
+
+        Iterator<Tuple> it = iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (!matches(preds, t))
+                continue;
+            if (fields == null) {
+                tupleList.add(t);
+            } else {
+                Tuple pt = new Tuple(ptd);
+                pt.setRecordId(t.getRecordId());
+                for (int k = 0; k < fields.length; k++)
+                    pt.setField(k, t.getField(fields[k]));
+                tupleList.add(pt);
+            }
+        }
+        return tupleList.iterator();
+    }
+
+    /** @return true if t satisfies every predicate */
+    private static boolean matches(List<Predicate> preds, Tuple t) {
+        if (preds == null)
+            return true;
+        for (Predicate p : preds) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if the tuple in slot i of the page data d satisfies every predicate */
+    private boolean matches(List<Predicate> preds, byte[] d, int i) {
+        if (preds == null)
+            return true;
+        for (Predicate p : preds) {
+            if (!p.filter(fieldAt(d, p.getField(), i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the TupleDesc of td's fields listed in fields, in that order
+     */
+    static TupleDesc projectTupleDesc(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            types[k] = td.getFieldType(fields[k]);
+            names[k] = td.getFieldName(fields[k]);
+        }
+        return new TupleDesc(types, names);
+    }
+
 }
 
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values (NDV) in
+ * a column using a fixed amount of memory, regardless of the number of
+ * values added.
+ * <p>
+ * Values are hashed to 64 bits; the low bits choose one of 2^precision
+ * registers and each register remembers the longest run of leading zeros
+ * seen in the remaining bits. The estimate is the bias-corrected harmonic
+ * mean of the registers, falling back to linear counting while many
+ * registers are still empty.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of register-index bits (1024 registers, ~3% error) */
+    public static final int DEFAULT_PRECISION = 10;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Create a new sketch with {@link #DEFAULT_PRECISION}.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Create a new sketch.
+     *
+     * @param precision
+     *            number of bits used to index the registers (4..16)
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be in 4..16");
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Add a field value to the sketch.
+     */
+    public void addValue(Field f) {
+        switch (f.getType()) {
+        case INT_TYPE:
+            addValue(((IntField) f).getValue());
+            break;
+        case STRING_TYPE:
+            addValue(((StringField) f).getValue());
+            break;
+        }
+    }
+
+    /** Add an integer value to the sketch. */
+    public void addValue(int v) {
+        addHash(mix(v));
+    }
+
+    /** Add a string value to the sketch. */
+    public void addValue(String s) {
+        // 64 bit FNV-1a, then mixed so that short strings spread well
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    private void addHash(long hash) {
+        int idx = (int) (hash & (registers.length - 1));
+        long w = hash >>> precision;
+        // position of the leftmost 1 bit among the remaining 64-precision bits
+        int rank = Long.numberOfLeadingZeros(w) - precision + 1;
+        if (w == 0)
+            rank = 64 - precision + 1;
+        if (rank > registers[idx])
+            registers[idx] = (byte) rank;
+    }
+
+    /**
+     * Merge the registers of another sketch with the same precision into
+     * this one, so that this sketch estimates the NDV of the union.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("precision mismatch");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < m; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        if (e <= 2.5 * m && zeros != 0) {
+            // small range correction
+            e = m * Math.log((double) m / zeros);
+        }
+        return Math.round(e);
+    }
+
+    /** Finalization step of MurmurHash3; spreads the bits of v over 64 bits */
+    private static long mix(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    public String toString() {
+        return "HyperLogLog(ndv~" + estimate() + ")";
+    }
+}
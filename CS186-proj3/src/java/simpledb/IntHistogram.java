@@ -167,7 +167,7 @@ public class IntHistogram {
 	 * */
 	public double avgSelectivity() {
 		// some code goes here
-		return 1 / this.histogram.length;
+		return 1.0 / this.histogram.length;
 	}
 
 	/**
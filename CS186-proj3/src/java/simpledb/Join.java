@@ -15,6 +15,8 @@ public class Join extends Operator {
     
     private Tuple currentChild1;
     private Tuple currentChild2;
+    /** joinPredicate compiled for the tuples of the children; set by open */
+    private transient PredicateCompiler.CompiledJoinPredicate compiledPredicate;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -73,6 +75,8 @@ public class Join extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+    	this.compiledPredicate = PredicateCompiler.compile(this.joinPredicate,
+    			this.child1.getTupleDesc(), this.child2.getTupleDesc());
     	this.child1.open();
     	this.child2.open();
     	super.open();
@@ -117,7 +121,7 @@ public class Join extends Operator {
     		while(this.child2.hasNext()){
         		Tuple child2Next = this.child2.next();
         			
-        		if(this.joinPredicate.filter(this.currentChild1, child2Next)){
+        		if(this.compiledPredicate.filter(this.currentChild1, child2Next)){
         			Tuple joinedTuple = new Tuple(this.getTupleDesc());
         				
         			// Concatenate Tuples together
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.PrintStream;
 import java.util.*;
 
 import javax.swing.*;
@@ -13,6 +14,9 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    boolean bushy = true;
+    /** where orderJoins explains its plans */
+    private PrintStream out = System.out;
 
     /**
      * Constructor
@@ -27,6 +31,20 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Choose whether orderJoins may produce bushy join trees, where both
+     * inputs of a join are themselves joins, or only left-deep ones. Bushy
+     * trees are allowed by default.
+     */
+    public void setBushy(boolean bushy) {
+        this.bushy = bushy;
+    }
+
+    /** Explain the plans orderJoins picks to out instead of System.out */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,12 +86,113 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * The false positive rate Bloom filters pushed down by hash joins are
+     * sized for.
+     */
+    static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * A Bloom filter is only pushed into the probe side of a hash join if at
+     * most this fraction of the probe side is expected to pass it.
+     */
+    static final double BLOOM_MAX_PASS_FRACTION = 0.5;
+
+    /**
+     * Decide whether the hash join j, built by {@link #instantiateJoin}, should
+     * fill a {@link BloomFilter} with the keys of its build side (plan1) and
+     * push it into the scan of its probe side (plan2), and do so if it
+     * should. That is the case when plan1 is a (filtered) base table whose
+     * keys, according to the table statistics, only cover a small fraction of
+     * the probe table's keys, and plan2 is a (filtered) scan of a base table.
+     * 
+     * @param stats
+     *            the statistics of the base tables, by table name
+     * @param filterSelectivities
+     *            the selectivities of the filters on each table, by alias
+     * @return true if a Bloom filter was pushed down
+     */
+    public boolean pushBloomFilter(LogicalJoinNode lj, DbIterator j,
+            DbIterator plan1, DbIterator plan2, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) {
+        int keys = bloomFilterKeys(lj, j, plan1, plan2, stats, filterSelectivities);
+        if (keys == 0)
+            return false;
+        pushBloomFilter(lj, j, plan2, keys);
+        return true;
+    }
+
+    /**
+     * The decision of {@link #pushBloomFilter(LogicalJoinNode, DbIterator,
+     * DbIterator, DbIterator, Map, Map)}, without acting on it.
+     * 
+     * @return the number of keys the Bloom filter should be sized for, or 0
+     *         if no Bloom filter should be pushed down
+     */
+    public int bloomFilterKeys(LogicalJoinNode lj, DbIterator j,
+            DbIterator plan1, DbIterator plan2, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) {
+        if (!(j instanceof HashEquiJoin) || lj instanceof LogicalSubplanJoinNode
+                || plan1 == plan2)
+            return 0;
+        SeqScan build = scanBelow(plan1);
+        SeqScan probe = scanBelow(plan2);
+        if (build == null || !build.getAlias().equals(lj.t1Alias) || probe == null
+                || !probe.getAlias().equals(lj.t2Alias))
+            return 0;
+
+        TableStats s1 = stats.get(build.getTableName());
+        TableStats s2 = stats.get(probe.getTableName());
+        Double sel1 = filterSelectivities.get(lj.t1Alias);
+        if (s1 == null || s2 == null || sel1 == null)
+            return 0;
+        int f1 = Database.getCatalog().getTupleDesc(p.getTableId(lj.t1Alias))
+                .fieldNameToIndex(lj.f1PureName);
+        int f2 = Database.getCatalog().getTupleDesc(p.getTableId(lj.t2Alias))
+                .fieldNameToIndex(lj.f2PureName);
+
+        int buildKeys = Math.min(s1.estimateTableCardinality(sel1), s1.numDistinctValues(f1));
+        int probeKeys = Math.max(s2.numDistinctValues(f2), 1);
+        double pass = Math.min(1.0, (double) buildKeys / probeKeys) + BLOOM_FALSE_POSITIVE_RATE;
+        if (pass > BLOOM_MAX_PASS_FRACTION)
+            return 0;
+        return Math.max(1, Math.min(buildKeys, HashEquiJoin.MAP_SIZE + 1));
+    }
+
+    /**
+     * Push a Bloom filter for keys keys from the hash join j into the scan
+     * of its probe side, plan2, as decided by {@link #bloomFilterKeys}.
+     */
+    public void pushBloomFilter(LogicalJoinNode lj, DbIterator j,
+            DbIterator plan2, int keys) {
+        int f2 = Database.getCatalog().getTupleDesc(p.getTableId(lj.t2Alias))
+                .fieldNameToIndex(lj.f2PureName);
+        BloomFilter bf = new BloomFilter(f2, keys, BLOOM_FALSE_POSITIVE_RATE,
+                lj.f1QuantifiedName);
+        scanBelow(plan2).addPredicate(bf);
+        ((HashEquiJoin) j).setBloomFilter(bf);
+    }
+
+    /**
+     * @return the SeqScan plan reads from, if plan is a scan with nothing
+     *         but Filters on top of it, or null otherwise
+     */
+    private static SeqScan scanBelow(DbIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        return plan instanceof SeqScan ? (SeqScan) plan : null;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -168,8 +287,19 @@ public class JoinOptimizer {
 				// If one is a primary key, choose the cardinality of the other table.
 				card = card1;
 			} else {
-				// If none are primary keys, choose the cardinality of the larger table.
-				card = Math.max(card1, card2);
+				// If none are primary keys, use the distinct value counts of the
+				// join columns: every value of the side with fewer distinct values
+				// is assumed to find its matches on the other side, so each tuple
+				// matches card/ndv tuples of the other input.
+				int ndv1 = distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+				int ndv2 = distinctValues(table2Alias, field2PureName, card2, stats, tableAliasToId);
+				if (ndv1 > 0 && ndv2 > 0) {
+					card = (int) Math.min((long) card1 * card2 / Math.max(ndv1, ndv2),
+							Integer.MAX_VALUE);
+				} else {
+					// If no stats are available, choose the cardinality of the larger table.
+					card = Math.max(card1, card2);
+				}
 			}
 			break;
 		default:
@@ -182,6 +312,33 @@ public class JoinOptimizer {
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * Estimate the number of distinct values of a join column, capped by the
+     * (filtered) cardinality of its input.
+     *
+     * @return the estimate, or -1 if there are no statistics for the column
+     */
+    private static int distinctValues(String tableAlias, String fieldPureName,
+            int card, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        if (tableAlias == null || stats == null || tableAliasToId == null)
+            return -1;
+        Integer tableId = tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return -1;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return -1;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId)
+                    .fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+        return Math.max(1, Math.min(s.numDistinctValues(field), card));
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -215,9 +372,27 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Largest number of csg-cmp pairs (see {@link #orderJoins}) that dynamic
+     * programming may consider; larger join graphs are ordered greedily.
+     */
+    static final int MAX_DP_PAIRS = 20000;
+
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * project description for hints on how this should be implemented.
+     * <p>
+     * The tables are the vertices of a join graph whose edges are the joins.
+     * Plans are built bottom-up with DPccp (Moerkotte and Neumann), which
+     * only enumerates pairs of connected subgraphs that are themselves
+     * connected by a join (csg-cmp pairs), so cross products are never
+     * considered. Unless disabled with {@link #setBushy}, both sides of a
+     * join may be joins themselves, so the result can be a bushy tree.
+     * Sets of tables are encoded as bitsets. The cost of a
+     * greedy (GOO) plan computed first serves as an upper bound, and
+     * subplans that already cost more are pruned. If the join graph has
+     * too many csg-cmp pairs (see MAX_DP_PAIRS) the greedy plan is used
+     * as-is.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -229,8 +404,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed: a post-order walk of the join
+     *         tree, in which the t1 and t2 sides of every join have already
+     *         been built by earlier joins (or are base tables).
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -244,200 +421,404 @@ public class JoinOptimizer {
         // should work.
 
         // some code goes here
-        //Replace the following
     	if (joins.size() == 0) {
     		return joins;
     	}
-    	PlanCache optjoin = new PlanCache();
-    	Set<LogicalJoinNode> j = new HashSet<LogicalJoinNode>();
-    	for (int i = 1; i <= joins.size(); i++) {
-    		Set<Set<LogicalJoinNode>> subsets = this.enumerateSubsets(joins, i);
-    		for (Set<LogicalJoinNode> subset : subsets) {
-    			CostCard bestPlan = new CostCard();
-    			bestPlan.cost = Double.POSITIVE_INFINITY;
-    			for (LogicalJoinNode joinToRemove : subset) {
-    				CostCard plan = this.computeCostAndCardOfSubplan(stats, filterSelectivities, joinToRemove, subset, bestPlan.cost, optjoin);
-    				if (plan != null) {
-    					if (plan.cost < bestPlan.cost) {
-    						bestPlan = plan;
-    					}
-    				}
-    			}
-    			optjoin.addPlan(subset, bestPlan.cost, bestPlan.card, bestPlan.plan);
-    			if (i == joins.size()) {
-    				j = subset;
-    			}
-    		}
-    	}
+    	JoinGraph g = new JoinGraph(stats, filterSelectivities);
+    	Vector<LogicalJoinNode> order = g.optimize().plan;
+
     	if (explain) {
-    		this.printJoins(joins, optjoin, stats, filterSelectivities);
+    		PlanCache pc = new PlanCache();
+    		for (CostCard cc : g.best.values()) {
+    			if (!cc.plan.isEmpty())
+    				pc.addPlan(new HashSet<LogicalJoinNode>(cc.plan), cc.cost, cc.card, cc.plan);
+    		}
+    		this.printJoins(order, pc, stats, filterSelectivities);
     	}
-    	return optjoin.getOrder(j);
+    	return order;
+    }
+
+    /**
+     * Return the plan {@link #orderJoins} picks for the joins, with its cost
+     * and cardinality.
+     */
+    CostCard planJoins(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        return new JoinGraph(stats, filterSelectivities).optimize();
+    }
+
+    /**
+     * Return the best plan for the joins found by trying every way of
+     * splitting every set of tables in two, which {@link #orderJoins} should
+     * match on small queries.
+     *
+     * @return the plan, or null if the join graph is disconnected
+     */
+    CostCard planJoinsExhaustively(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        return new JoinGraph(stats, filterSelectivities).exhaustive();
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * The join graph of the query being optimized: tables (and subqueries)
+     * are vertices numbered 0..n-1, and every LogicalJoinNode is an edge.
+     * Sets of vertices are represented as bitsets in a long.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private class JoinGraph {
+        final HashMap<String, TableStats> stats;
+        final int n;
+        final long all;
+        /** for each vertex, the bitset of vertices it is joined with */
+        final long[] neighbors;
+        /** the two vertices of each join in {@link JoinOptimizer#joins} */
+        final int[] ends1, ends2;
+        /** the alias of each vertex, null for subqueries */
+        final String[] aliases;
+
+        /** the best plan found so far for each connected set of vertices */
+        HashMap<Long, CostCard> best = new HashMap<Long, CostCard>();
+
+        private ArrayList<long[]> pairs = new ArrayList<long[]>();
+        private boolean overBudget = false;
+
+        JoinGraph(HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities)
+                throws ParsingException {
+            this.stats = stats;
+            HashMap<String, Integer> ids = new HashMap<String, Integer>();
+            ArrayList<String> names = new ArrayList<String>();
+            ends1 = new int[joins.size()];
+            ends2 = new int[joins.size()];
+            for (int k = 0; k < joins.size(); k++) {
+                LogicalJoinNode j = joins.get(k);
+                ends1[k] = vertex(j.t1Alias, ids, names);
+                if (j instanceof LogicalSubplanJoinNode) {
+                    // every subquery is a vertex of its own
+                    ends2[k] = names.size();
+                    names.add(null);
+                } else {
+                    ends2[k] = vertex(j.t2Alias, ids, names);
+                }
+            }
+            n = names.size();
+            all = n >= 64 ? -1L : (1L << n) - 1;
+            aliases = names.toArray(new String[n]);
+            neighbors = new long[n];
+            for (int k = 0; k < joins.size(); k++) {
+                neighbors[ends1[k]] |= bit(ends2[k]);
+                neighbors[ends2[k]] |= bit(ends1[k]);
+            }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+            for (int v = 0; v < n; v++) {
+                CostCard cc = new CostCard();
+                cc.plan = new Vector<LogicalJoinNode>();
+                if (aliases[v] == null) {
+                    // subqueries are not costed (see estimateJoinCost)
+                    cc.cost = 0;
+                    cc.card = 0;
+                } else {
+                    if (p.getTableId(aliases[v]) == null)
+                        throw new ParsingException("Unknown table " + aliases[v]);
+                    String name = Database.getCatalog().getTableName(
+                            p.getTableId(aliases[v]));
+                    TableStats s = stats.get(name);
+                    Double sel = filterSelectivities.get(aliases[v]);
+                    if (s == null || sel == null)
+                        throw new ParsingException("Missing statistics for table " + aliases[v]);
+                    cc.cost = s.estimateScanCost();
+                    cc.card = s.estimateTableCardinality(sel);
+                }
+                best.put(bit(v), cc);
             }
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        private int vertex(String alias, HashMap<String, Integer> ids,
+                ArrayList<String> names) {
+            Integer v = ids.get(alias);
+            if (v == null) {
+                v = names.size();
+                ids.put(alias, v);
+                names.add(alias);
             }
+            return v;
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        /**
+         * The bitset of a single vertex. Graphs with 64 or more vertices are
+         * only ordered greedily, and vertices beyond 63 share a bit; plans
+         * for such graphs are built from the plans' own join lists, so this
+         * only makes the greedy search more conservative.
+         */
+        private long bit(int v) {
+            return 1L << Math.min(v, 63);
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        private long neighborhood(long s) {
+            long nb = 0;
+            for (long rest = s; rest != 0; rest &= rest - 1) {
+                nb |= neighbors[Long.numberOfTrailingZeros(rest)];
+            }
+            return nb & ~s;
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
-    }
+        /** bitset of the vertices 0..i */
+        private long upTo(int i) {
+            return i >= 63 ? -1L : (1L << (i + 1)) - 1;
+        }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+        /**
+         * Find the plan for all of the vertices, as described at
+         * {@link JoinOptimizer#orderJoins}.
+         */
+        CostCard optimize() {
+            HashMap<Long, CostCard> greedy = greedy();
+            CostCard bound = greedy.get(all);
+            // the greedy plan is one of the plans DPccp can find, so it
+            // bounds the cost of the best one
+            if (bound != null && n < 64 && enumerate(bound.cost)) {
+                CostCard cc = best.get(all);
+                return cc != null ? cc : bound;
+            }
+            // too many pairs, or a disconnected join graph; in the latter case
+            // the plan is a list of independent join trees, which
+            // LogicalPlan.physicalPlan will reject
+            CostCard cc = new CostCard();
+            cc.plan = new Vector<LogicalJoinNode>();
+            double card = 1;
+            for (CostCard part : greedy.values()) {
+                cc.plan.addAll(part.plan);
+                cc.cost += part.cost;
+                card *= part.card;
+            }
+            cc.card = (int) Math.min(card, Integer.MAX_VALUE);
+            best = greedy;
+            return cc;
+        }
+
+        /**
+         * Find the best plan for all of the vertices by joining the best
+         * plans for every split of every set of vertices in two, smallest
+         * sets first; only for graphs of fewer than 64 vertices.
+         *
+         * @return the plan, or null if the graph is disconnected
+         */
+        CostCard exhaustive() {
+            HashMap<Long, CostCard> plans = new HashMap<Long, CostCard>(best);
+            for (long s = 1; s <= all; s++) {
+                // s1 and s - s1 are both tried as the outer by join
+                for (long s1 = (s - 1) & s; s1 > (s & ~s1); s1 = (s1 - 1) & s) {
+                    long s2 = s & ~s1;
+                    CostCard a = plans.get(s1), b = plans.get(s2);
+                    if (a == null || b == null)
+                        continue;
+                    CostCard cc = join(s1, a, s2, b);
+                    CostCard prev = plans.get(s);
+                    if (cc != null && (prev == null || cc.cost < prev.cost))
+                        plans.put(s, cc);
+                }
+            }
+            return plans.get(all);
+        }
+
+        /**
+         * Run DPccp, filling in {@link #best}. Subplans whose cost exceeds
+         * bound are not kept.
+         * 
+         * @return false if the join graph has more than MAX_DP_PAIRS csg-cmp
+         *         pairs, in which case {@link #best} is incomplete
+         */
+        boolean enumerate(double bound) {
+            for (int i = n - 1; i >= 0 && !overBudget; i--) {
+                long v = bit(i);
+                emitCsg(v);
+                enumerateCsgRec(v, upTo(i));
+            }
+            if (overBudget)
+                return false;
+
+            // a pair can only be joined once the best plans for both of its
+            // sides are known, i.e. after all pairs over fewer vertices
+            Collections.sort(pairs, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return Long.bitCount(a[0] | a[1]) - Long.bitCount(b[0] | b[1]);
+                }
+            });
+            for (long[] pair : pairs) {
+                CostCard a = best.get(pair[0]), b = best.get(pair[1]);
+                if (a == null || b == null)
+                    continue; // pruned
+                CostCard cc = join(pair[0], a, pair[1], b);
+                if (cc == null || cc.cost > bound)
+                    continue;
+                CostCard prev = best.get(pair[0] | pair[1]);
+                if (prev == null || cc.cost < prev.cost)
+                    best.put(pair[0] | pair[1], cc);
+            }
+            return true;
+        }
+
+        private void enumerateCsgRec(long s, long x) {
+            long nb = neighborhood(s) & ~x;
+            if (nb == 0)
+                return;
+            for (long sub = nb; sub != 0 && !overBudget; sub = (sub - 1) & nb) {
+                emitCsg(s | sub);
+            }
+            for (long sub = nb; sub != 0 && !overBudget; sub = (sub - 1) & nb) {
+                enumerateCsgRec(s | sub, x | nb);
+            }
+        }
+
+        private void emitCsg(long s1) {
+            long x = upTo(Long.numberOfTrailingZeros(s1)) | s1;
+            long nb = neighborhood(s1) & ~x;
+            for (int i = n - 1; i >= 0 && !overBudget; i--) {
+                if ((nb & bit(i)) == 0)
+                    continue;
+                emitPair(s1, bit(i));
+                enumerateCmpRec(s1, bit(i), x | (upTo(i) & nb));
+            }
+        }
+
+        private void enumerateCmpRec(long s1, long s2, long x) {
+            long nb = neighborhood(s2) & ~x;
+            if (nb == 0)
+                return;
+            for (long sub = nb; sub != 0 && !overBudget; sub = (sub - 1) & nb) {
+                emitPair(s1, s2 | sub);
+            }
+            for (long sub = nb; sub != 0 && !overBudget; sub = (sub - 1) & nb) {
+                enumerateCmpRec(s1, s2 | sub, x | nb);
+            }
+        }
+
+        private void emitPair(long s1, long s2) {
+            if (pairs.size() >= MAX_DP_PAIRS) {
+                overBudget = true;
+                return;
+            }
+            pairs.add(new long[] { s1, s2 });
+        }
+
+        /**
+         * Greedy operator ordering: repeatedly join the two connected
+         * subplans whose join has the smallest result. For left-deep trees,
+         * start with the two connected tables whose join has the smallest
+         * result, then repeatedly add the neighboring table that keeps the
+         * result smallest.
+         * 
+         * @return the subplans left at the end, keyed by their vertex sets;
+         *         a single one unless the join graph is disconnected
+         */
+        HashMap<Long, CostCard> greedy() {
+            HashMap<Long, CostCard> plans = new HashMap<Long, CostCard>(best);
+            Long current = null;
+            while (plans.size() > 1) {
+                long bestA = 0, bestB = 0;
+                CostCard bestCC = null;
+                for (Map.Entry<Long, CostCard> a : plans.entrySet()) {
+                    if (!bushy && (current != null ? !current.equals(a.getKey())
+                            : Long.bitCount(a.getKey()) > 1))
+                        continue;
+                    for (Map.Entry<Long, CostCard> b : plans.entrySet()) {
+                        if ((!bushy && Long.bitCount(b.getKey()) > 1)
+                                || (current == null && a.getKey() >= b.getKey())
+                                || (neighborhood(a.getKey()) & b.getKey()) == 0)
+                            continue;
+                        CostCard cc = join(a.getKey(), a.getValue(), b.getKey(), b.getValue());
+                        if (cc != null && (bestCC == null || cc.card < bestCC.card
+                                || (cc.card == bestCC.card && cc.cost < bestCC.cost))) {
+                            bestCC = cc;
+                            bestA = a.getKey();
+                            bestB = b.getKey();
+                        }
+                    }
+                }
+                if (bestCC == null) {
+                    if (current == null)
+                        break; // no two tables left are connected
+                    current = null; // this connected component is done
+                    continue;
+                }
+                plans.remove(bestA);
+                plans.remove(bestB);
+                if (!bushy)
+                    current = bestA | bestB;
+                plans.put(bestA | bestB, bestCC);
+            }
+            return plans;
+        }
+
+        /**
+         * The cheapest way to join the subplans for two disjoint, connected
+         * vertex sets, trying each as the outer.
+         * 
+         * @return null if the sets cannot be joined (both sides have more
+         *         than one table and bushy trees are disabled, or the
+         *         subquery would have to be the outer)
+         */
+        CostCard join(long s1, CostCard c1, long s2, CostCard c2) {
+            // without bushy trees, one side of every join must be a single
+            // table (left-deep or right-deep, which the plan builder treats
+            // the same)
+            if (!bushy && Long.bitCount(s1) > 1 && Long.bitCount(s2) > 1)
+                return null;
+            CostCard a = joinOuterInner(s1, c1, s2, c2);
+            CostCard b = joinOuterInner(s2, c2, s1, c1);
+            if (a == null)
+                return b;
+            if (b == null || a.cost <= b.cost)
+                return a;
+            return b;
+        }
+
+        private CostCard joinOuterInner(long outer, CostCard co, long inner,
+                CostCard ci) {
+            LogicalJoinNode j = null;
+            Vector<LogicalJoinNode> extra = new Vector<LogicalJoinNode>();
+            for (int k = 0; k < joins.size(); k++) {
+                LogicalJoinNode jk = joins.get(k);
+                long e1 = bit(ends1[k]), e2 = bit(ends2[k]);
+                LogicalJoinNode oriented;
+                if ((e1 & outer) != 0 && (e2 & inner) != 0) {
+                    oriented = jk;
+                } else if ((e2 & outer) != 0 && (e1 & inner) != 0) {
+                    if (jk instanceof LogicalSubplanJoinNode)
+                        return null; // a subquery is always the inner
+                    oriented = jk.swapInnerOuter();
+                } else {
+                    continue;
+                }
+                if (j == null)
+                    j = oriented;
+                else
+                    extra.add(oriented);
+            }
+            if (j == null)
+                return null;
+
+            boolean outerPkey = Long.bitCount(outer) == 1 ? isPkey(j.t1Alias,
+                    j.f1PureName) : hasPkey(co.plan);
+            boolean innerPkey;
+            if (Long.bitCount(inner) == 1)
+                innerPkey = j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName);
+            else
+                innerPkey = hasPkey(ci.plan);
+
+            CostCard cc = new CostCard();
+            cc.cost = estimateJoinCost(j, co.card, ci.card, co.cost, ci.cost);
+            cc.card = estimateJoinCardinality(j, co.card, ci.card, outerPkey,
+                    innerPkey, stats);
+            cc.plan = new Vector<LogicalJoinNode>(co.plan);
+            cc.plan.addAll(ci.plan);
+            cc.plan.add(j);
+            // further joins between the two sides close a cycle in the join
+            // graph; they are applied right after the first one
+            cc.plan.addAll(extra);
+            return cc;
         }
-        return false;
     }
 
     /**
@@ -500,75 +881,48 @@ public class JoinOptimizer {
 
         f.setSize(300, 500);
 
+        // the root of the subtree each table currently belongs to
         HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
+        // the joins in each of those subtrees, to look up their cost in pc
+        HashMap<DefaultMutableTreeNode, HashSet<LogicalJoinNode>> below = new HashMap<DefaultMutableTreeNode, HashSet<LogicalJoinNode>>();
 
-        // int numTabs = 0;
-
-        // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
 
-        System.out.println(js);
+        out.println(js);
         for (LogicalJoinNode j : js) {
+            // either side may be a base table or, in a bushy tree, a join
+            DefaultMutableTreeNode left = m.get(j.t1Alias);
+            if (left == null) // never seen this table before
+                left = scanNode(j.t1Alias, stats, selectivities);
+            DefaultMutableTreeNode right = j.t2Alias == null ? null : m.get(j.t2Alias);
+            if (right == null)
+                right = j.t2Alias == null ? new DefaultMutableTreeNode("Subplan")
+                        : scanNode(j.t2Alias, stats, selectivities);
+
+            HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+            if (below.containsKey(left))
+                pathSoFar.addAll(below.get(left));
+            if (below.containsKey(right))
+                pathSoFar.addAll(below.get(right));
             pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
+            out.println("PATH SO FAR = " + pathSoFar);
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t1Alias, root);
+            root.add(left);
+            // both sides are the same subtree if j closes a cycle
+            if (right != left)
+                root.add(right);
+            below.put(root, pathSoFar);
 
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t2Alias, root);
-
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
+            // every table below either side is now accessed through root
+            m.put(j.t1Alias, root);
+            if (j.t2Alias != null)
+                m.put(j.t2Alias, root);
+            for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                if (e.getValue() == left || e.getValue() == right)
+                    e.setValue(root);
             }
 
             treetop = root;
@@ -602,4 +956,15 @@ public class JoinOptimizer {
 
     }
 
+    private DefaultMutableTreeNode scanNode(String alias,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities) {
+        String tableName = Database.getCatalog().getTableName(
+                this.p.getTableId(alias));
+        return new DefaultMutableTreeNode(alias + " (Cost = "
+                + stats.get(tableName).estimateScanCost() + ", card = "
+                + stats.get(tableName).estimateTableCardinality(
+                        selectivities.get(alias)) + ")");
+    }
+
 }
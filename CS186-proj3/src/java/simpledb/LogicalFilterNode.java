@@ -15,6 +15,10 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The index of the parameter (a ? in a prepared statement) that gives
+        the constant when the plan is built, or -1 if the constant is c */
+    public int parameter = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
@@ -2,8 +2,11 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.io.File;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
@@ -37,6 +40,18 @@ public class LogicalPlan {
     private String oByField;
     private String query;
 //    private Query owner;
+    private int numParameters = 0;
+
+    // the decisions of the optimizer, recorded by physicalPlan so that
+    // replan can build the same plan again without it: the order of the
+    // filters on each alias (by their index among them), and the size of
+    // the Bloom filter pushed from each join, in join order (0 for none)
+    private boolean optimized = false;
+    private HashMap<String,int[]> conjunctOrder = new HashMap<String,int[]>();
+    private int[] bloomKeys;
+
+    /** where the plan reports what is added to it, and explains its physical plans */
+    private PrintStream out = System.out;
 
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
@@ -66,6 +81,14 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Report what is added to this plan, and explain the physical plans
+        built from it, to out instead of System.out (e.g. to the connection
+        of a client).
+    */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDbFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -105,6 +128,36 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a new filter comparing a field to the next parameter (the next ?
+     *  of a prepared statement), whose value is only given when the
+     *  physical plan is built.
+     *  @param field The name of the over which the filter applies, as for
+     *  {@link #addFilter}
+     *  @param p The predicate for the filter
+     *  @throws ParsingException if field is unknown or ambiguous
+     */
+    public void addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        addFilter(field, p, null);
+        filters.lastElement().parameter = numParameters++;
+    }
+
+    /** @return the number of parameters added by {@link #addParameterFilter} */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /** @return true if {@link #replan} can build this plan again after
+     *  {@link #physicalPlan} built it once, which is not the case if the
+     *  plan joins with subqueries (whose physical plans are built with the
+     *  logical plan)
+     */
+    public boolean isReplannable() {
+        for (LogicalJoinNode lj : joins)
+            if (lj instanceof LogicalSubplanJoinNode)
+                return false;
+        return true;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -128,7 +181,7 @@ public class LogicalPlan {
         if (table1Alias.equals(table2Alias))
             throw new ParsingException("Cannot join on two fields from same table");
         LogicalJoinNode lj = new LogicalJoinNode(table1Alias,table2Alias,pureField1, pureField2, pred);
-        System.out.println("Added join between " + joinField1 + " and " + joinField2);
+        out.println("Added join between " + joinField1 + " and " + joinField2);
         joins.addElement(lj);
 
     }
@@ -152,7 +205,7 @@ public class LogicalPlan {
         String pureField = joinField1.split("[.]")[1];
 
         LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred);
-        System.out.println("Added subplan join on " + joinField1);
+        out.println("Added subplan join on " + joinField1);
         joins.addElement(lj);
     }
 
@@ -163,7 +216,7 @@ public class LogicalPlan {
     */
 
     public void addScan(int table, String name) {
-        System.out.println("Added scan of table " + name);
+        out.println("Added scan of table " + name);
         tables.addElement(new LogicalScanNode(table,name));
         tableMap.put(name,table);
     }
@@ -178,9 +231,9 @@ public class LogicalPlan {
         fname=disambiguateName(fname);
         if (fname.equals("*"))
             fname="null.*";
-        System.out.println("Added select list field " + fname);
+        out.println("Added select list field " + fname);
         if (aggOp != null) {
-            System.out.println("\t with aggregator " + aggOp);
+            out.println("\t with aggregator " + aggOp);
         }
         selectList.addElement(new LogicalSelectListNode(aggOp, fname));
     }
@@ -258,6 +311,109 @@ public class LogicalPlan {
 
     }
 
+    /** Check that this plan can define a {@link MaterializedView}: it
+     *  computes a SUM, COUNT or AVG over an integer field of a single
+     *  table, possibly grouped, and filtered by constants.
+     *  @throws ParsingException if it can't
+     */
+    void checkMaterializable() throws ParsingException {
+        if (tables.size() != 1 || !joins.isEmpty())
+            throw new ParsingException("Materialized views can only read a single table");
+        if (!hasAgg)
+            throw new ParsingException("Materialized views must compute an aggregate");
+        Aggregator.Op op = getAggOp(aggOp);
+        if (op != Aggregator.Op.SUM && op != Aggregator.Op.COUNT && op != Aggregator.Op.AVG)
+            throw new ParsingException("Materialized views only support SUM, COUNT and AVG");
+        if (numParameters > 0)
+            throw new ParsingException("Materialized views can't have parameters");
+        if (hasOrderBy)
+            throw new ParsingException("Materialized views can't be ordered");
+        TupleDesc td = Database.getCatalog().getTupleDesc(getSingleTableId());
+        if (td.getFieldType(td.fieldNameToIndex(getAggregateField())) != Type.INT_TYPE)
+            throw new ParsingException("Materialized views can only aggregate integer fields");
+        for (LogicalSelectListNode si : selectList)
+            if (si.aggOp == null && groupByField == null)
+                throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
+    }
+
+    /** @return the id of the only table of the plan */
+    int getSingleTableId() {
+        return tables.elementAt(0).t;
+    }
+
+    /** @return the name of the aggregated field, without its table alias */
+    String getAggregateField() {
+        return pureName(aggField);
+    }
+
+    /** @return the name of the GROUP BY field, without its table alias, or
+     *  null if the plan doesn't group */
+    String getGroupByField() {
+        return groupByField == null ? null : pureName(groupByField);
+    }
+
+    Vector<LogicalFilterNode> getFilters() {
+        return filters;
+    }
+
+    private static String pureName(String field) {
+        return field.substring(field.lastIndexOf('.') + 1);
+    }
+
+    /** @return true if the result of this plan can be read from a
+     *  materialized view defined by the plan view: both aggregate the same
+     *  table with the same filters and grouping, this plan computes a SUM,
+     *  COUNT or AVG of the field the view aggregates (or a COUNT of any
+     *  field), and it is ordered by the grouping field, if at all
+     */
+    boolean answerableFrom(LogicalPlan view) {
+        if (tables.size() != 1 || !joins.isEmpty() || !hasAgg || numParameters > 0
+                || getSingleTableId() != view.getSingleTableId())
+            return false;
+        String op = aggOp.toUpperCase();
+        if (!op.equals("COUNT") && !((op.equals("SUM") || op.equals("AVG"))
+                && getAggregateField().equals(view.getAggregateField())))
+            return false;
+        String group = getGroupByField();
+        if (group == null ? view.getGroupByField() != null
+                : !group.equals(view.getGroupByField()))
+            return false;
+        if (hasOrderBy && (group == null || !pureName(oByField).equals(group)))
+            return false;
+        for (LogicalSelectListNode si : selectList)
+            if (si.aggOp == null && group == null)
+                return false;
+        return filterSet().equals(view.filterSet());
+    }
+
+    /** @return the filters of the plan, as text */
+    private HashSet<String> filterSet() {
+        HashSet<String> set = new HashSet<String>();
+        for (LogicalFilterNode lf : filters)
+            set.add(lf.fieldPureName + " " + lf.p + " " + lf.c);
+        return set;
+    }
+
+    /** Build a plan reading the result of this plan from a materialized view
+     *  that can answer it (see {@link #answerableFrom}).
+     */
+    private DbIterator viewPlan(TransactionId t, MaterializedView view) throws ParsingException {
+        DbIterator node = new SeqScan(t, view.getId(), view.getName());
+        if (hasOrderBy)
+            node = new OrderBy(0, oByAsc, node);
+        TupleDesc td = node.getTupleDesc();
+        int agg = view.getColumn(getAggOp(aggOp));
+        ArrayList<Integer> outFields = new ArrayList<Integer>();
+        ArrayList<Type> outTypes = new ArrayList<Type>();
+        for (LogicalSelectListNode si : selectList) {
+            int id = si.aggOp != null ? agg : 0;
+            outFields.add(id);
+            outTypes.add(td.getFieldType(id));
+        }
+        optimized = true;
+        return new Project(outFields, outTypes, node);
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -285,27 +441,84 @@ public class LogicalPlan {
      *  @return A DbIterator representing this plan.
      */ 
     public DbIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        return physicalPlan(t, baseTableStats, explain, null);
+    }
+
+    /** Convert this LogicalPlan into an optimized physical plan, as {@link
+     *  #physicalPlan(TransactionId, Map, boolean)} does, with values for
+     *  its parameters.
+     *  @param parameters the value of each parameter, as a String (as for
+     *    {@link #addFilter}); may be null if the plan has no parameters
+     *  @throws ParsingException if the plan is not valid, or a parameter
+     *    has no value or a value of the wrong type
+     */
+    public DbIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            String[] parameters) throws ParsingException {
+        return buildPlan(t, baseTableStats, explain, parameters, false);
+    }
+
+    /** Build the physical plan {@link #physicalPlan} built last time again,
+     *  for other parameter values, without running the optimizer: the joins
+     *  and filters are ordered and Bloom filters are pushed down as they
+     *  were then.
+     *  @param parameters the value of each parameter, as for {@link
+     *    #physicalPlan(TransactionId, Map, boolean, String[])}
+     *  @throws IllegalStateException if the plan was never optimized, or
+     *    can't be rebuilt (see {@link #isReplannable})
+     */
+    public DbIterator replan(TransactionId t, String[] parameters) throws ParsingException {
+        if (!optimized || !isReplannable())
+            throw new IllegalStateException("plan can't be built without the optimizer");
+        return buildPlan(t, null, false, parameters, true);
+    }
+
+    private DbIterator buildPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            String[] parameters, boolean replay) throws ParsingException {
+        // an aggregate a materialized view keeps is read from the view
+        if (tables.size() == 1) {
+            for (MaterializedView view : Database.getCatalog().getViews(getSingleTableId())) {
+                if (answerableFrom(view.getLogicalPlan())) {
+                    if (explain)
+                        out.println("Reading the result from materialized view " + view.getName());
+                    return viewPlan(t, view);
+                }
+            }
+        }
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // scans only read the fields the rest of the plan refers to
+        HashMap<String,HashSet<String>> usedFields = referencedFields();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDbFile(table.t);
+                 ss = new SeqScan(t, file.getId(), table.alias,
+                         scanFields(file.getTupleDesc(), usedFields.get(table.alias)));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
+            if (replay)
+                continue;
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats baseStats = baseTableStats.get(baseTableName);
+            if (baseStats == null) {
+                // not loaded yet; read (or compute) them now
+                baseStats = TableStats.getTableStats(baseTableName);
+            }
+            statsMap.put(baseTableName, baseStats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
+        // the filters on each alias are applied together, as one conjunction
+        HashMap<String,ArrayList<Predicate>> conjuncts = new HashMap<String,ArrayList<Predicate>>();
+        HashMap<String,ArrayList<Double>> conjunctSelectivities = new HashMap<String,ArrayList<Double>>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -316,41 +529,109 @@ public class LogicalPlan {
 
             Field f;
             Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
+            // the scan may not return every field; predicates pushed into
+            // it and the stats are by table field
+            int tableId = this.getTableId(lf.tableAlias);
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+            int statsField;
             
             try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+                statsField = td.fieldNameToIndex(lf.fieldPureName);
+                ftyp = td.getFieldType(statsField);
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            String c = lf.c;
+            if (lf.parameter >= 0) {
+                if (parameters == null || lf.parameter >= parameters.length
+                        || parameters[lf.parameter] == null)
+                    throw new ParsingException("No value for parameter " + (lf.parameter + 1));
+                c = parameters[lf.parameter];
+            }
+            if (ftyp == Type.INT_TYPE) {
+                try {
+                    f = new IntField(new Integer(c).intValue());
+                } catch (NumberFormatException e) {
+                    if (lf.parameter < 0)
+                        throw e;
+                    throw new ParsingException("Parameter " + (lf.parameter + 1) + " of "
+                            + lf.fieldQuantifiedName + " must be an integer, not " + c);
+                }
+            } else {
+                f = new StringField(c, Type.STRING_LEN);
+            }
 
             Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            if (scansHeapFile(lf.tableAlias)) {
+                // the scan evaluates the filters on the page data, so
+                // tuples that don't pass never get parsed
+                p = new Predicate(statsField, lf.p, f);
+            } else {
+                try {
+                    p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            double sel = 1.0;
+            if (!replay) {
+                TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+                sel = s.estimateSelectivity(statsField, lf.p, f);
+                filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            }
+
+            if (!conjuncts.containsKey(lf.tableAlias)) {
+                conjuncts.put(lf.tableAlias, new ArrayList<Predicate>());
+                conjunctSelectivities.put(lf.tableAlias, new ArrayList<Double>());
+            }
+            conjuncts.get(lf.tableAlias).add(p);
+            conjunctSelectivities.get(lf.tableAlias).add(sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        for (String alias : conjuncts.keySet()) {
+            DbIterator subplan = subplanMap.get(alias);
+            TupleDesc td = scansHeapFile(alias)
+                    ? Database.getCatalog().getTupleDesc(this.getTableId(alias))
+                    : subplan.getTupleDesc();
+            List<Predicate> unordered = conjuncts.get(alias);
+            List<Predicate> preds = new ArrayList<Predicate>();
+            if (replay) {
+                for (int i : conjunctOrder.get(alias))
+                    preds.add(unordered.get(i));
+            } else {
+                preds = Filter.orderConjuncts(unordered, conjunctSelectivities.get(alias), td);
+                int[] order = new int[preds.size()];
+                for (int i = 0; i < order.length; i++) {
+                    // Predicate has no equals, so this finds the same object
+                    order[i] = unordered.indexOf(preds.get(i));
+                }
+                conjunctOrder.put(alias, order);
+            }
+            if (scansHeapFile(alias)) {
+                SeqScan ss = (SeqScan) subplan;
+                subplanMap.put(alias, new SeqScan(t, this.getTableId(alias), alias, ss.getFields(), preds));
+            } else {
+                // the estimates may be off, so let the Filter correct them
+                subplanMap.put(alias, new Filter(preds, subplan, preds.size() > 1));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
+        jo.setOutput(out);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (!replay) {
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            bloomKeys = new int[joins.size()];
+        }
 
-        Iterator<LogicalJoinNode> joinIt = joins.iterator();
-        while (joinIt.hasNext()) {
-            LogicalJoinNode lj = joinIt.next();
+        // joins come in post-order, so each side of a join is either a base
+        // table or a join built earlier (in a bushy plan, possibly both);
+        // equivMap maps every table to the subplan that now contains it
+        for (int ji = 0; ji < joins.size(); ji++) {
+            LogicalJoinNode lj = joins.elementAt(ji);
             DbIterator plan1;
             DbIterator plan2;
             boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
@@ -383,6 +664,10 @@ public class LogicalPlan {
             
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            if (!replay)
+                bloomKeys[ji] = jo.bloomFilterKeys(lj, j, plan1, plan2, statsMap, filterSelectivities);
+            if (bloomKeys[ji] > 0)
+                jo.pushBloomFilter(lj, j, plan2, bloomKeys[ji]);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -462,10 +747,13 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int afield = td.fieldNameToIndex(aggField);
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                // aggregating a single table can run as one loop over its pages
+                if (ScanAggregate.canFuse(node, afield, getAggOp(aggOp)))
+                    aggNode = new ScanAggregate((SeqScan) node, afield, gfield, getAggOp(aggOp));
+                else
+                    aggNode = new Aggregate(node, afield, gfield, getAggOp(aggOp));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -478,9 +766,81 @@ public class LogicalPlan {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
+        optimized = true;
+        // and so can projecting a single table without aggregates
+        if (ScanProject.canFuse(node))
+            return new ScanProject(outFields, outTypes, (SeqScan) node);
         return new Project(outFields, outTypes, node);
     }
 
+    /** Work out which fields of each table the query refers to.
+     *  @return the names of the referenced fields of each table alias; if
+     *    the query needs every field (e.g. SELECT *), an empty map
+     */
+    private HashMap<String,HashSet<String>> referencedFields() {
+        HashMap<String,HashSet<String>> used = new HashMap<String,HashSet<String>>();
+        for (LogicalScanNode table : tables)
+            used.put(table.alias, new HashSet<String>());
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalFilterNode lf : filters) {
+            // scans of heap files evaluate filters before projecting
+            if (!scansHeapFile(lf.tableAlias))
+                names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        if (aggField != null)
+            names.add(aggField);
+        if (groupByField != null)
+            names.add(groupByField);
+        if (oByField != null)
+            names.add(oByField);
+
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*") || !used.containsKey(parts[0]))
+                return new HashMap<String,HashSet<String>>();
+            used.get(parts[0]).add(parts[1]);
+        }
+        return used;
+    }
+
+    /** @return true if alias is a base table stored in a {@link HeapFile},
+     *  whose {@link SeqScan} can evaluate filters itself
+     */
+    private boolean scansHeapFile(String alias) {
+        Integer tableId = getTableId(alias);
+        return tableId != null
+                && Database.getCatalog().getDbFile(tableId) instanceof HeapFile;
+    }
+
+    /** The field numbers of td named in names, for {@link SeqScan}.
+     *  @return the field numbers, or null for all fields
+     */
+    private static int[] scanFields(TupleDesc td, HashSet<String> names) {
+        if (names == null)
+            return null;
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(td.getFieldName(i)))
+                fields.add(i);
+        }
+        if (fields.size() == td.numFields())
+            return null;
+        if (fields.isEmpty())
+            fields.add(0); // tuples still need to be counted
+        int[] result = new int[fields.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = fields.get(i);
+        return result;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
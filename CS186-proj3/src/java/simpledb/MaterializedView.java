@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A MaterializedView keeps the result of an aggregate query over a table (a
+ * SUM, COUNT or AVG of an integer field, possibly grouped and filtered; see
+ * {@link LogicalPlan#checkMaterializable}) in a HeapFile that is a table of
+ * the Catalog, named after the view.
+ * <p>
+ * The view has a tuple per group: the grouping field (if the query groups),
+ * then the <tt>total</tt>, <tt>num</tt> and <tt>mean</tt> of the aggregate
+ * field over the tuples of the group that pass the filters. So a view can
+ * answer a SUM, COUNT or AVG query over the same groups (see
+ * {@link LogicalPlan#answerableFrom}), and the planner reads such queries from
+ * it instead of aggregating the table.
+ * <p>
+ * The view is computed once, when it is created. After that, each tuple
+ * inserted into or deleted from the table through the BufferPool updates the
+ * tuple of its group, as part of the same transaction, rather than computing
+ * the view again. Views are not kept when the database is restarted.
+ */
+public class MaterializedView {
+
+    private final String name;
+    private final LogicalPlan plan;
+    private final int tableId;
+    private final int afield;
+    private final int gfield;
+    private final Predicate[] filters;
+    private final HeapFile file;
+    /** the index of the total in the view's tuples */
+    private final int first;
+    /** the tuple of each group; the only group of an ungrouped view is null */
+    private final HashMap<Field, Tuple> groups = new HashMap<Field, Tuple>();
+
+    private MaterializedView(String name, LogicalPlan plan, File f)
+            throws ParsingException {
+        this.name = name;
+        this.plan = plan;
+        this.tableId = plan.getSingleTableId();
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        this.afield = td.fieldNameToIndex(plan.getAggregateField());
+        String group = plan.getGroupByField();
+        this.gfield = group == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(group);
+
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        for (LogicalFilterNode lf : plan.getFilters()) {
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+            }
+            Field c;
+            if (td.getFieldType(field) == Type.INT_TYPE) {
+                try {
+                    c = new IntField(Integer.parseInt(lf.c));
+                } catch (NumberFormatException e) {
+                    throw new ParsingException(lf.fieldQuantifiedName + " must be compared to an integer, not " + lf.c);
+                }
+            } else {
+                c = new StringField(lf.c, Type.STRING_LEN);
+            }
+            preds.add(new Predicate(field, lf.p, c));
+        }
+        this.filters = preds.toArray(new Predicate[preds.size()]);
+
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
+        if (group != null) {
+            types.add(td.getFieldType(gfield));
+            names.add(group);
+        }
+        this.first = types.size();
+        for (String n : new String[] { "total", "num", "mean" }) {
+            types.add(Type.INT_TYPE);
+            names.add(n);
+        }
+        this.file = new HeapFile(f, new TupleDesc(types.toArray(new Type[0]),
+                names.toArray(new String[0])));
+    }
+
+    /**
+     * Create a view of the result of a query, compute it, and add it to the
+     * catalog.
+     *
+     * @param name
+     *            the name of the view
+     * @param plan
+     *            the plan of the query
+     * @param tid
+     *            the transaction computing the view
+     * @throws ParsingException
+     *             if the query can't be materialized, or there already is a
+     *             table called name
+     */
+    public static MaterializedView create(String name, LogicalPlan plan,
+            TransactionId tid) throws ParsingException, DbException,
+            TransactionAbortedException, IOException {
+        plan.checkMaterializable();
+        try {
+            Database.getCatalog().getTableId(name);
+            throw new ParsingException("Table " + name + " already exists");
+        } catch (NoSuchElementException e) {
+        }
+        File f = File.createTempFile("view-" + name, ".dat");
+        f.deleteOnExit();
+        MaterializedView view = new MaterializedView(name, plan, f);
+        Database.getCatalog().addTable(view.file, name);
+        view.compute(tid);
+        TableStats.setTableStats(name, new TableStats(view.getId(),
+                TableStats.IOCOSTPERPAGE));
+        Database.getCatalog().addView(view);
+        return view;
+    }
+
+    /** @return the name of the view's table */
+    public String getName() {
+        return name;
+    }
+
+    /** @return the id of the view's table */
+    public int getId() {
+        return file.getId();
+    }
+
+    /** @return the id of the table the view is computed from */
+    public int getBaseTableId() {
+        return tableId;
+    }
+
+    /** @return the number of groups (tuples) in the view */
+    public synchronized int size() {
+        return groups.size();
+    }
+
+    /** @return the plan of the query that defines the view */
+    public LogicalPlan getLogicalPlan() {
+        return plan;
+    }
+
+    /**
+     * @return the index of the field of the view's tuples that holds the
+     *         result of op, which must be SUM, COUNT or AVG
+     */
+    public int getColumn(Aggregator.Op op) {
+        switch (op) {
+        case SUM:
+            return first;
+        case COUNT:
+            return first + 1;
+        case AVG:
+            return first + 2;
+        default:
+            throw new IllegalArgumentException("Materialized views don't keep " + op);
+        }
+    }
+
+    /** Aggregate the table into the view's tuples */
+    private synchronized void compute(TransactionId tid) throws DbException,
+            TransactionAbortedException, IOException {
+        // {total, num} of each group
+        HashMap<Field, int[]> values = new HashMap<Field, int[]>();
+        SeqScan scan = new SeqScan(tid, tableId);
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (!passes(t))
+                continue;
+            Field g = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+            int[] v = values.get(g);
+            if (v == null)
+                values.put(g, v = new int[2]);
+            v[0] += ((IntField) t.getField(afield)).getValue();
+            v[1]++;
+        }
+        scan.close();
+        for (Map.Entry<Field, int[]> e : values.entrySet())
+            groups.put(e.getKey(), insert(tid, e.getKey(), e.getValue()[0],
+                    e.getValue()[1]));
+    }
+
+    /** Apply a tuple inserted into the table to the view */
+    void tupleInserted(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        apply(tid, t, 1);
+    }
+
+    /** Apply a tuple deleted from the table to the view */
+    void tupleDeleted(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        apply(tid, t, -1);
+    }
+
+    /**
+     * Add the value of t to its group (sign 1) or remove it (sign -1), by
+     * replacing the group's tuple.
+     */
+    private synchronized void apply(TransactionId tid, Tuple t, int sign)
+            throws DbException, TransactionAbortedException {
+        if (!passes(t))
+            return;
+        Field g = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+        int total = sign * ((IntField) t.getField(afield)).getValue();
+        int num = sign;
+        Tuple old = groups.remove(g);
+        if (old != null) {
+            total += ((IntField) old.getField(first)).getValue();
+            num += ((IntField) old.getField(first + 1)).getValue();
+            Database.getBufferPool().deleteTuple(tid, old);
+        }
+        if (num > 0) {
+            try {
+                groups.put(g, insert(tid, g, total, num));
+            } catch (IOException e) {
+                throw new DbException("Unable to update materialized view "
+                        + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** @return the tuple inserted into the view for a group */
+    private Tuple insert(TransactionId tid, Field g, int total, int num)
+            throws DbException, TransactionAbortedException, IOException {
+        Tuple t = new Tuple(file.getTupleDesc());
+        if (g != null)
+            t.setField(0, g);
+        t.setField(first, new IntField(total));
+        t.setField(first + 1, new IntField(num));
+        t.setField(first + 2, new IntField(total / num));
+        Database.getBufferPool().insertTuple(tid, getId(), t);
+        return t;
+    }
+
+    /** @return true if t passes the filters of the view's query */
+    private boolean passes(Tuple t) {
+        for (Predicate p : filters)
+            if (!p.filter(t))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MorselScheduler runs a pipeline fragment over the pages of a file in
+ * parallel. The pages are split into morsels of {@link #MORSEL_PAGES}
+ * consecutive pages, which the workers of a query claim one at a time, so a
+ * worker that gets fast morsels (e.g. ones the zone map skips) simply
+ * processes more of them. Each worker keeps a partial result, and the
+ * partial results are merged at the end.
+ * <p>
+ * All queries share one pool of worker threads, which steal work from each
+ * other's queues. The thread running the query always works on it too;
+ * the number of pool workers it may use is elastic: every active query gets
+ * a fair share of the threads, and before each morsel a worker checks the
+ * current share, starting another worker if the query has fewer and
+ * stopping if it has more. When a second query starts, the first one gives
+ * up half of its workers as they finish their morsels, and gets them back
+ * when the second one is done.
+ */
+public class MorselScheduler {
+
+    /** number of pages in a morsel */
+    public static final int MORSEL_PAGES = 16;
+
+    /**
+     * A pipeline fragment that processes a range of pages, producing a
+     * partial result.
+     */
+    public interface Fragment<R> {
+        /**
+         * Process pages start (inclusive) to end (exclusive).
+         *
+         * @param partial
+         *            the result of the morsels this worker processed
+         *            before, or null for its first morsel
+         * @return the new partial result
+         */
+        R run(int start, int end, R partial) throws DbException,
+                TransactionAbortedException;
+
+        /**
+         * @return the result of combining two partial results
+         */
+        R merge(R a, R b);
+    }
+
+    private static ForkJoinPool pool;
+    private static int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final AtomicInteger activeQueries = new AtomicInteger(0);
+
+    /**
+     * Set the number of worker threads shared by all queries; a query also
+     * runs on the thread that executes it. With 0, fragments run on that
+     * thread only. Queries that are running when it is called may fail.
+     */
+    public static synchronized void setThreads(int n) {
+        if (pool != null)
+            pool.shutdown();
+        pool = null;
+        threads = Math.max(0, n);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null && threads > 0)
+            pool = new ForkJoinPool(threads);
+        return pool;
+    }
+
+    /**
+     * Run a fragment over pages 0 to numPages - 1.
+     *
+     * @return the merged result of the fragment, or null if numPages is 0
+     */
+    public static <R> R run(int numPages, Fragment<R> fragment) throws DbException,
+            TransactionAbortedException {
+        ForkJoinPool p = getPool();
+        if (p == null || numPages <= MORSEL_PAGES)
+            return numPages == 0 ? null : fragment.run(0, numPages, null);
+
+        activeQueries.incrementAndGet();
+        try {
+            Run<R> run = new Run<R>(p, numPages, fragment);
+            return run.execute();
+        } finally {
+            activeQueries.decrementAndGet();
+        }
+    }
+
+    /** The state of one fragment being run */
+    private static class Run<R> {
+        private final ForkJoinPool pool;
+        private final Fragment<R> fragment;
+        private final int numPages;
+        private final int numMorsels;
+        private final AtomicInteger nextMorsel = new AtomicInteger(0);
+        /** the workers of this run, including the calling thread */
+        private final AtomicInteger workers = new AtomicInteger(1);
+        private final ConcurrentLinkedQueue<Worker> started = new ConcurrentLinkedQueue<Worker>();
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        Run(ForkJoinPool pool, int numPages, Fragment<R> fragment) {
+            this.pool = pool;
+            this.fragment = fragment;
+            this.numPages = numPages;
+            this.numMorsels = (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+        }
+
+        /** @return the number of workers this run may have right now */
+        private int share() {
+            // the calling thread comes on top of the pool's threads
+            return 1 + pool.getParallelism() / Math.max(1, activeQueries.get());
+        }
+
+        /**
+         * Claim and process morsels until there are none left, or (except
+         * for the calling thread) this run has more workers than its share.
+         * A failure is recorded, and stops the other workers too.
+         */
+        R work(boolean caller) {
+            R partial = null;
+            try {
+                while (failure.get() == null) {
+                    if (!caller && workers.get() > share())
+                        break;
+                    int m = nextMorsel.getAndIncrement();
+                    if (m >= numMorsels)
+                        break;
+                    if (nextMorsel.get() < numMorsels && workers.get() < share()) {
+                        workers.incrementAndGet();
+                        Worker w = new Worker();
+                        started.add(w);
+                        pool.execute(w);
+                    }
+                    int start = m * MORSEL_PAGES;
+                    partial = fragment.run(start, Math.min(numPages, start + MORSEL_PAGES), partial);
+                }
+            } catch (DbException e) {
+                failure.compareAndSet(null, e);
+            } catch (TransactionAbortedException e) {
+                failure.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                if (!caller)
+                    workers.decrementAndGet();
+            }
+            return partial;
+        }
+
+        R execute() throws DbException, TransactionAbortedException {
+            R result = work(true);
+            // workers only start others while they still hold a morsel, so
+            // once the queue is empty every worker has been joined
+            Worker w;
+            while ((w = started.poll()) != null) {
+                R partial = w.join();
+                if (partial != null)
+                    result = result == null ? partial : fragment.merge(result, partial);
+            }
+            Exception e = failure.get();
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e != null)
+                throw (RuntimeException) e;
+            return result;
+        }
+
+        /** A pool thread working on this run */
+        private class Worker extends RecursiveTask<R> {
+            private static final long serialVersionUID = 1L;
+
+            protected R compute() {
+                return work(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.List;
+
+/**
+ * PageFilter evaluates the predicates of a scan on the data of an unparsed
+ * {@link HeapPage}, for the operators fused with a scan ({@link ScanAggregate}
+ * and {@link ScanProject}). Predicates comparing an int field with an int are
+ * compared on the raw int, without building a Field; the others parse the
+ * field they compare.
+ */
+class PageFilter {
+
+    private final List<Predicate> predicates;
+    private final boolean[] rawInt;
+    private final int[] rawValue;
+
+    /**
+     * @param preds
+     *            the predicates, with the field numbers of the table, or null
+     *            to accept every tuple
+     * @param td
+     *            the TupleDesc of the table
+     */
+    PageFilter(List<Predicate> preds, TupleDesc td) {
+        this.predicates = preds;
+        int n = preds == null ? 0 : preds.size();
+        this.rawInt = new boolean[n];
+        this.rawValue = new int[n];
+        for (int k = 0; k < n; k++) {
+            Predicate p = preds.get(k);
+            // subclasses (e.g. BloomFilter) don't compare with the operand
+            rawInt[k] = p.getClass() == Predicate.class
+                    && p.getOperand() instanceof IntField
+                    && td.getFieldType(p.getField()) == Type.INT_TYPE;
+            if (rawInt[k])
+                rawValue[k] = ((IntField) p.getOperand()).getValue();
+        }
+    }
+
+    /** @return true if the tuple in slot i of page satisfies every predicate */
+    boolean matches(HeapPage page, byte[] d, int i) {
+        for (int k = 0; k < rawInt.length; k++) {
+            Predicate p = predicates.get(k);
+            if (rawInt[k]) {
+                int v = readInt(d, page.fieldOffset(p.getField(), i));
+                if (!compare(p.getOp(), v, rawValue[k]))
+                    return false;
+            } else if (!p.filter(page.fieldAt(d, p.getField(), i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the result of comparing a to b, as IntField.compare would */
+    private static boolean compare(Predicate.Op op, int a, int b) {
+        switch (op) {
+        case NOT_EQUALS:
+            return a != b;
+        case GREATER_THAN:
+            return a > b;
+        case GREATER_THAN_OR_EQ:
+            return a >= b;
+        case LESS_THAN:
+            return a < b;
+        case LESS_THAN_OR_EQ:
+            return a <= b;
+        default: // EQUALS, and LIKE on ints
+            return a == b;
+        }
+    }
+
+    /** @return the int at offset off of d */
+    static int readInt(byte[] d, int off) {
+        return ((d[off] & 0xff) << 24) | ((d[off + 1] & 0xff) << 16)
+                | ((d[off + 2] & 0xff) << 8) | (d[off + 3] & 0xff);
+    }
+}
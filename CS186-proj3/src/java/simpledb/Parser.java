@@ -10,7 +10,8 @@ import jline.ConsoleReader;
 import jline.SimpleCompletor;
 
 public class Parser {
-	static boolean explain = false;
+	/** whether the plans of queries are explained when they are built */
+	private boolean explain = false;
 
 	public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
 		if (s.equals("="))
@@ -74,6 +75,9 @@ public class Parser {
 			} else if (ops.elementAt(0) instanceof ZQuery
 					|| ops.elementAt(1) instanceof ZQuery) {
 				isJoin = true;
+			} else if (op1const && isParameter(ops.elementAt(1))) {
+				// a parameter of a prepared statement
+				isJoin = false;
 			} else if (ops.elementAt(0) instanceof ZExpression
 					|| ops.elementAt(1) instanceof ZExpression) {
 				throw new simpledb.ParsingException(
@@ -97,6 +101,9 @@ public class Parser {
 					try {
 						LogicalPlan sublp = parseQueryLogicalPlan(tid,
 								(ZQuery) ops.elementAt(1));
+						if (sublp.numParameters() > 0)
+							throw new simpledb.ParsingException(
+									"Parameters are not supported in subqueries");
 						DbIterator pp = sublp.physicalPlan(tid,
 								TableStats.getStatsMap(), explain);
 						lp.addJoin(tab1field, pp, op);
@@ -116,6 +123,10 @@ public class Parser {
 				String column;
 				String compValue;
 				ZConstant op1 = (ZConstant) ops.elementAt(0);
+				if (isParameter(ops.elementAt(1))) {
+					lp.addParameterFilter(op1.getValue(), op);
+					return;
+				}
 				ZConstant op2 = (ZConstant) ops.elementAt(1);
 				if (op1.getType() == ZConstant.COLUMNNAME) {
 					column = op1.getValue();
@@ -132,11 +143,19 @@ public class Parser {
 
 	}
 
+	/** @return true if e is a ? (Zql only allows them on the right side) */
+	private static boolean isParameter(ZExp e) {
+		return e instanceof ZExpression
+				&& ((ZExpression) e).getOperator().equals("?")
+				&& ((ZExpression) e).nbOperands() == 0;
+	}
+
 	public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
 			throws IOException, Zql.ParseException, simpledb.ParsingException {
 		@SuppressWarnings("unchecked")
 		Vector<ZFromItem> from = q.getFrom();
 		LogicalPlan lp = new LogicalPlan();
+		lp.setOutput(out);
 		lp.setQuery(q.toString());
 		// walk through tables in the FROM clause
 		for (int i = 0; i < from.size(); i++) {
@@ -198,7 +217,7 @@ public class Parser {
 									+ ") not supported.");
 				}
 				groupByField = ((ZConstant) gbe).getValue();
-				System.out.println("GROUP BY FIELD : " + groupByField);
+				out.println("GROUP BY FIELD : " + groupByField);
 			}
 
 		}
@@ -225,7 +244,7 @@ public class Parser {
 				aggField = ((ZConstant) ((ZExpression) si.getExpression())
 						.getOperand(0)).getValue();
 				aggFun = si.getAggregate();
-				System.out.println("Aggregate field is " + aggField
+				out.println("Aggregate field is " + aggField
 						+ ", agg fun is : " + aggFun);
 				lp.addProjectField(aggField, aggFun);
 			} else {
@@ -273,17 +292,146 @@ public class Parser {
 	private Transaction curtrans = null;
 	private boolean inUserTrans = false;
 
+	/** where the results and messages of statements are printed */
+	protected PrintStream out = System.out;
+
+	/**
+	 * Print the results and messages of the statements this parser runs to
+	 * out instead of System.out (e.g. to the connection of a client).
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Set whether the plans of the queries this parser runs are explained,
+	 * to its output, when they are built.
+	 */
+	public void setExplain(boolean explain) {
+		this.explain = explain;
+	}
+
 	public Query handleQueryStatement(ZQuery s, TransactionId tId)
 			throws TransactionAbortedException, DbException, IOException,
 			simpledb.ParsingException, Zql.ParseException {
 		// and run it
-		Query query = new Query(tId);
-
 		LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+		if (lp.numParameters() > 0)
+			throw new simpledb.ParsingException(
+					"Parameters can only be used in prepared statements");
 		DbIterator physicalPlan = lp.physicalPlan(tId,
 				TableStats.getStatsMap(), explain);
+		return newQuery(lp, physicalPlan, tId, new String[0]);
+	}
+
+	/**
+	 * Plan a query like {@link #handleQueryStatement(ZQuery, TransactionId)},
+	 * and keep its plan in the statement cache (unless it has a subquery), so
+	 * that running the same text again skips the parser and the optimizer.
+	 */
+	private Query handleQueryStatement(ZQuery s, TransactionId tId, String text)
+			throws TransactionAbortedException, DbException, IOException,
+			simpledb.ParsingException, Zql.ParseException {
+		LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+		if (lp.numParameters() > 0)
+			throw new simpledb.ParsingException(
+					"Parameters can only be used in prepared statements");
+		if (!lp.isReplannable())
+			return newQuery(lp, lp.physicalPlan(tId, TableStats.getStatsMap(),
+					explain), tId, new String[0]);
+		// only cache queries that could be planned
+		StatementCache.Entry e = new StatementCache.Entry(
+				StatementCache.normalize(text), lp);
+		Query query = handleCachedQuery(e, new String[0], tId);
+		Database.getStatementCache().put(e);
+		return query;
+	}
+
+	/**
+	 * Build a query from a cached plan, for the given parameter values.
+	 */
+	Query handleCachedQuery(StatementCache.Entry e, String[] parameters,
+			TransactionId tId) throws simpledb.ParsingException {
+		return newQuery(e.getLogicalPlan(),
+				e.physicalPlan(tId, parameters, explain, out), tId, parameters);
+	}
+
+	/**
+	 * Prepare a query with parameters (?s) for their values to be bound
+	 * later. The query is only parsed if it isn't in the statement cache,
+	 * and only optimized the first time a plan is built for it.
+	 * 
+	 * @param s
+	 *            the text of the query
+	 * @throws simpledb.ParsingException
+	 *             if s isn't a valid query, or has a subquery
+	 */
+	public PreparedStatement prepare(String s)
+			throws simpledb.ParsingException {
+		return new PreparedStatement(this,
+				prepareEntry(StatementCache.normalize(s)));
+	}
+
+	/**
+	 * @return the cached plan of the query with the normalized text sql,
+	 *         parsing it and adding it to the cache if needed
+	 */
+	StatementCache.Entry prepareEntry(String sql)
+			throws simpledb.ParsingException {
+		StatementCache.Entry e = Database.getStatementCache().get(sql);
+		if (e != null)
+			return e;
+		try {
+			ZStatement stmt = new ZqlParser(new ByteArrayInputStream(
+					sql.getBytes("UTF-8"))).readStatement();
+			if (!(stmt instanceof ZQuery))
+				throw new simpledb.ParsingException(
+						"Only queries can be prepared: " + sql);
+			// the transaction is only used to plan subqueries, which
+			// prepared statements don't support
+			LogicalPlan lp = parseQueryLogicalPlan(new TransactionId(),
+					(ZQuery) stmt);
+			if (!lp.isReplannable())
+				throw new simpledb.ParsingException(
+						"Queries with subqueries can't be prepared: " + sql);
+			return Database.getStatementCache().put(
+					new StatementCache.Entry(sql, lp));
+		} catch (Zql.ParseException e1) {
+			throw new simpledb.ParsingException(
+					"Invalid SQL expression: \n \t " + e1);
+		} catch (Zql.TokenMgrError e1) {
+			throw new simpledb.ParsingException(
+					"Invalid SQL expression: \n \t " + e1);
+		} catch (IOException e1) {
+			throw new simpledb.ParsingException(e1);
+		}
+	}
+
+	/**
+	 * Wrap a physical plan into a Query, printing the plan. Unless it has a
+	 * subquery, whose tables the plan doesn't list, the query can use the
+	 * result cache.
+	 * 
+	 * @param parameters
+	 *            the values of the parameters of the plan
+	 */
+	private Query newQuery(LogicalPlan lp, DbIterator physicalPlan,
+			TransactionId tId, String[] parameters) {
+		Query query = new Query(tId);
 		query.setPhysicalPlan(physicalPlan);
 		query.setLogicalPlan(lp);
+		if (lp.isReplannable()) {
+			StringBuilder key = new StringBuilder(lp.getQuery());
+			for (String p : parameters)
+				key.append('\n').append(p.length()).append(':').append(p);
+			TreeSet<Integer> tables = new TreeSet<Integer>(lp
+					.getTableAliasToIdMapping().values());
+			int[] ids = new int[tables.size()];
+			int i = 0;
+			for (int id : tables)
+				ids[i++] = id;
+			query.setResultKey(key.toString(), ids);
+		}
 
 		if (physicalPlan != null) {
 			Class<?> c;
@@ -296,13 +444,13 @@ public class Parser {
 				java.lang.reflect.Method m = c.getMethod(
 						"updateOperatorCardinality", p, h, h);
 
-				System.out.println("The query plan is:");
+				out.println("The query plan is:");
 				m.invoke(null, (Operator) physicalPlan,
 						lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
 				c = Class.forName("simpledb.QueryPlanVisualizer");
 				m = c.getMethod("printQueryPlanTree", DbIterator.class,
-						System.out.getClass());
-				m.invoke(c.newInstance(), physicalPlan, System.out);
+						PrintStream.class);
+				m.invoke(c.newInstance(), physicalPlan, out);
 			} catch (ClassNotFoundException e) {
 			} catch (SecurityException e) {
 			} catch (NoSuchMethodException e) {
@@ -414,6 +562,7 @@ public class Parser {
 		Query sdbq = new Query(tid);
 
 		LogicalPlan lp = new LogicalPlan();
+		lp.setOutput(out);
 		lp.setQuery(s.toString());
 
 		lp.addScan(id, name);
@@ -437,28 +586,28 @@ public class Parser {
 				throw new simpledb.ParsingException(
 						"No transaction is currently running");
 			curtrans.commit();
+			out.println("Transaction " + curtrans.getId().getId()
+					+ " committed.");
 			curtrans = null;
 			inUserTrans = false;
-			System.out.println("Transaction " + curtrans.getId().getId()
-					+ " committed.");
 		} else if (s.getStmtType().equals("ROLLBACK")) {
 			if (curtrans == null)
 				throw new simpledb.ParsingException(
 						"No transaction is currently running");
 			curtrans.abort();
+			out.println("Transaction " + curtrans.getId().getId()
+					+ " aborted.");
 			curtrans = null;
 			inUserTrans = false;
-			System.out.println("Transaction " + curtrans.getId().getId()
-					+ " aborted.");
 
 		} else if (s.getStmtType().equals("SET TRANSACTION")) {
 			if (curtrans != null)
 				throw new simpledb.ParsingException(
 						"Can't start new transactions until current transaction has been committed or rolledback.");
-			curtrans = new Transaction();
+			curtrans = new Transaction(s.isReadOnly());
 			curtrans.start();
 			inUserTrans = true;
-			System.out.println("Started a new transaction tid = "
+			out.println("Started a new transaction tid = "
 					+ curtrans.getId().getId());
 		} else {
 			throw new simpledb.ParsingException("Unsupported operation");
@@ -486,6 +635,71 @@ public class Parser {
 				"Cannot generate logical plan for expression : " + s);
 	}
 
+	/**
+	 * Open a cursor over the results of a query, instead of printing them.
+	 * Outside of a transaction started with SET TRANSACTION, the query runs
+	 * in a transaction of its own, which closing the cursor commits.
+	 * 
+	 * @param s
+	 *            the query
+	 * @param fetchSize
+	 *            the number of tuples the cursor fetches at a time
+	 */
+	public Cursor openCursor(String s, int fetchSize)
+			throws simpledb.ParsingException, DbException,
+			TransactionAbortedException, IOException {
+		return openCursor(s, null, fetchSize);
+	}
+
+	/**
+	 * Open a cursor over the results of a prepared statement, with the
+	 * values bound to its parameters, as {@link #openCursor(String, int)}
+	 * does for a query.
+	 */
+	public Cursor openCursor(PreparedStatement ps, int fetchSize)
+			throws simpledb.ParsingException, DbException,
+			TransactionAbortedException, IOException {
+		return openCursor(null, ps, fetchSize);
+	}
+
+	private Cursor openCursor(String s, PreparedStatement ps, int fetchSize)
+			throws simpledb.ParsingException, DbException,
+			TransactionAbortedException, IOException {
+		ZStatement stmt = null;
+		if (ps == null) {
+			try {
+				stmt = new ZqlParser(new ByteArrayInputStream(
+						s.getBytes("UTF-8"))).readStatement();
+			} catch (Zql.ParseException e) {
+				throw new simpledb.ParsingException(
+						"Invalid SQL expression: \n \t " + e);
+			} catch (Zql.TokenMgrError e) {
+				throw new simpledb.ParsingException(
+						"Invalid SQL expression: \n \t " + e);
+			}
+			if (!(stmt instanceof ZQuery))
+				throw new simpledb.ParsingException(
+						"Only queries can be opened as cursors: " + s);
+		}
+
+		Transaction t = inUserTrans ? null : new Transaction();
+		if (t != null)
+			t.start();
+		Cursor cursor = null;
+		try {
+			TransactionId tid = t != null ? t.getId() : curtrans.getId();
+			Query query = ps != null ? ps.newQuery(tid)
+					: handleQueryStatement((ZQuery) stmt, tid);
+			cursor = new Cursor(query, fetchSize, t);
+			return cursor;
+		} catch (Zql.ParseException e) {
+			throw new simpledb.ParsingException(e);
+		} finally {
+			if (cursor == null && t != null)
+				t.abort();
+		}
+	}
+
 	public void setTransaction(Transaction t) {
 		curtrans = t;
 	}
@@ -494,19 +708,116 @@ public class Parser {
 		return curtrans;
 	}
 
+	/** CREATE MATERIALIZED VIEW name AS query, which Zql doesn't know */
+	private static final java.util.regex.Pattern CREATE_VIEW = java.util.regex.Pattern
+			.compile("\\s*CREATE\\s+MATERIALIZED\\s+VIEW\\s+(\\w+)\\s+AS\\s+(.*)",
+					java.util.regex.Pattern.CASE_INSENSITIVE
+							| java.util.regex.Pattern.DOTALL);
+
+	/**
+	 * Create a materialized view of the result of an aggregate query (see
+	 * {@link MaterializedView}), as part of the current transaction or a
+	 * transaction of its own.
+	 * 
+	 * @param name
+	 *            the name of the view
+	 * @param text
+	 *            the text of the query
+	 */
+	public void handleCreateViewStatement(String name, String text) {
+		Transaction t = inUserTrans ? null : new Transaction();
+		if (t != null)
+			t.start();
+		try {
+			text = text.trim();
+			if (!text.endsWith(";"))
+				text += ";";
+			ZStatement s = new ZqlParser(new ByteArrayInputStream(
+					text.getBytes("UTF-8"))).readStatement();
+			if (!(s instanceof ZQuery))
+				throw new simpledb.ParsingException(
+						"Materialized views must be defined by a query");
+			TransactionId tid = t != null ? t.getId() : curtrans.getId();
+			MaterializedView view = MaterializedView.create(name,
+					parseQueryLogicalPlan(tid, (ZQuery) s), tid);
+			if (t != null)
+				t.commit();
+			t = null;
+			out.println("Created materialized view " + name + " with "
+					+ view.size() + " rows.");
+		} catch (simpledb.ParsingException e) {
+			out.println("Invalid SQL expression: \n \t" + e.getMessage());
+		} catch (Zql.ParseException e) {
+			out.println("Invalid SQL expression: \n \t " + e);
+		} catch (Zql.TokenMgrError e) {
+			out.println("Invalid SQL expression: \n \t " + e);
+		} catch (DbException e) {
+			e.printStackTrace(out);
+		} catch (TransactionAbortedException e) {
+			e.printStackTrace(out);
+		} catch (IOException e) {
+			e.printStackTrace(out);
+		} finally {
+			if (t != null) {
+				try {
+					t.abort();
+				} catch (IOException e) {
+					e.printStackTrace(out);
+				}
+			}
+		}
+	}
+
 	public void processNextStatement(String s) {
+		java.util.regex.Matcher m = CREATE_VIEW.matcher(s);
+		if (m.matches()) {
+			handleCreateViewStatement(m.group(1), m.group(2));
+			return;
+		}
+		// a query that ran before skips the parser (and the optimizer)
+		StatementCache.Entry e = Database.getStatementCache().get(
+				StatementCache.normalize(s));
+		if (e != null && e.getLogicalPlan().numParameters() == 0) {
+			processNextStatement(null, s, new PreparedStatement(this, e));
+			return;
+		}
 		try {
-			processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
+			processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")),
+					s, null);
+		} catch (UnsupportedEncodingException e1) {
+			e1.printStackTrace();
+			throw new RuntimeException(e1);
 		}
 	}
 
 	public void processNextStatement(InputStream is) {
+		processNextStatement(is, null, null);
+	}
+
+	/**
+	 * Run a prepared statement with the values bound to its parameters, as
+	 * {@link #processNextStatement(String)} runs a statement.
+	 */
+	public void execute(PreparedStatement ps) {
+		processNextStatement(null, null, ps);
+	}
+
+	/**
+	 * Run the statement read from is, or the prepared statement if it isn't
+	 * null.
+	 * 
+	 * @param text
+	 *            the text of the statement, to cache its plan if it is a
+	 *            query, or null
+	 */
+	private void processNextStatement(InputStream is, String text,
+			PreparedStatement prepared) {
 		try {
-			ZqlParser p = new ZqlParser(is);
-			ZStatement s = p.readStatement();
+			ZStatement s = null;
+			if (prepared == null) {
+				ZqlParser p = new ZqlParser(is);
+				s = p.readStatement();
+			}
 
 			Query query = null;
 			if (s instanceof ZTransactStmt)
@@ -515,38 +826,43 @@ public class Parser {
 				if (!this.inUserTrans) {
 					curtrans = new Transaction();
 					curtrans.start();
-					System.out.println("Started a new transaction tid = "
+					out.println("Started a new transaction tid = "
 							+ curtrans.getId().getId());
 				}
 				try {
-					if (s instanceof ZInsert)
+					if (prepared != null)
+						query = prepared.newQuery(curtrans.getId());
+					else if (s instanceof ZInsert)
 						query = handleInsertStatement((ZInsert) s,
 								curtrans.getId());
 					else if (s instanceof ZDelete)
 						query = handleDeleteStatement((ZDelete) s,
 								curtrans.getId());
+					else if (s instanceof ZQuery && text != null)
+						query = handleQueryStatement((ZQuery) s,
+								curtrans.getId(), text);
 					else if (s instanceof ZQuery)
 						query = handleQueryStatement((ZQuery) s,
 								curtrans.getId());
 					else {
-						System.out
+						out
 								.println("Can't parse "
 										+ s
 										+ "\n -- parser only handles SQL transactions, insert, delete, and select statements");
 					}
 					if (query != null)
-						query.execute();
+						query.execute(out);
 
 					if (!inUserTrans && curtrans != null) {
 						curtrans.commit();
-						System.out.println("Transaction "
+						out.println("Transaction "
 								+ curtrans.getId().getId() + " committed.");
 					}
 				} catch (Throwable a) {
 					// Whenever error happens, abort the current transaction
 					if (curtrans != null) {
 						curtrans.abort();
-						System.out.println("Transaction "
+						out.println("Transaction "
 								+ curtrans.getId().getId()
 								+ " aborted because of unhandled error");
 					}
@@ -565,29 +881,29 @@ public class Parser {
 			}
 
 		} catch (TransactionAbortedException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		} catch (DbException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(out);
 		} catch (simpledb.ParsingException e) {
-			System.out
+			out
 					.println("Invalid SQL expression: \n \t" + e.getMessage());
 		} catch (Zql.ParseException e) {
-			System.out.println("Invalid SQL expression: \n \t " + e);
+			out.println("Invalid SQL expression: \n \t " + e);
 		} catch (Zql.TokenMgrError e) {
-			System.out.println("Invalid SQL expression: \n \t " + e);
+			out.println("Invalid SQL expression: \n \t " + e);
 		}
 	}
 
 	// Basic SQL completions
 	public static final String[] SQL_COMMANDS = { "select", "from", "where",
 			"group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-			"insert", "delete", "values", "into" };
+			"insert", "delete", "values", "into", "create materialized view" };
 
 	public static void main(String argv[]) throws IOException {
 
-		if (argv.length < 1 || argv.length > 4) {
+		if (argv.length < 1 || argv.length > 7) {
 			System.out.println("Invalid number of arguments.\n" + usage);
 			System.exit(0);
 		}
@@ -597,18 +913,22 @@ public class Parser {
 		p.start(argv);
 	}
 
-	static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+	static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-analyze] [-sample rate] [-resultcache megabytes]";
 
 	protected void shutdown() {
+		TableStats.saveStatistics();
+		if (Database.getResultCache().isEnabled())
+			System.out.println(Database.getResultCache());
 		System.out.println("Bye");
 	}
 
 	protected boolean interactive = true;
 
+	protected boolean analyze = false;
+
 	protected void start(String[] argv) throws IOException {
 		// first add tables to database
 		Database.getCatalog().loadSchema(argv[0]);
-		TableStats.computeStatistics();
 
 		String queryFile = null;
 
@@ -626,12 +946,46 @@ public class Parser {
 					}
 					queryFile = argv[i];
 
+				} else if (argv[i].equals("-analyze")) {
+					analyze = true;
+				} else if (argv[i].equals("-sample")) {
+					if (++i == argv.length) {
+						System.out.println("Expected sample rate after -sample\n"
+								+ usage);
+						System.exit(0);
+					}
+					try {
+						TableStats.setSampleRate(Double.parseDouble(argv[i]));
+					} catch (IllegalArgumentException e) {
+						System.out.println("Invalid sample rate " + argv[i] + "\n"
+								+ usage);
+						System.exit(0);
+					}
+				} else if (argv[i].equals("-resultcache")) {
+					if (++i == argv.length) {
+						System.out.println("Expected size after -resultcache\n"
+								+ usage);
+						System.exit(0);
+					}
+					try {
+						Database.getResultCache().setCapacity(
+								Long.parseLong(argv[i]) << 20);
+					} catch (IllegalArgumentException e) {
+						System.out.println("Invalid result cache size "
+								+ argv[i] + "\n" + usage);
+						System.exit(0);
+					}
 				} else {
 					System.out.println("Unknown argument " + argv[i] + "\n "
 							+ usage);
 				}
 			}
 		}
+		// statistics are otherwise loaded from the stats files (or computed)
+		// the first time a table is used
+		if (analyze)
+			TableStats.computeStatistics();
+
 		if (!interactive) {
 			try {
 				// curtrans = new Transaction();
@@ -669,7 +1023,6 @@ public class Parser {
 					buffer.append(line.substring(0, split + 1));
 					String cmd = buffer.toString().trim();
 					cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-					byte[] statementBytes = cmd.getBytes("UTF-8");
 					if (cmd.equalsIgnoreCase("quit;")
 							|| cmd.equalsIgnoreCase("exit;")) {
 						shutdown();
@@ -678,8 +1031,7 @@ public class Parser {
 					}
 
 					long startTime = System.currentTimeMillis();
-					processNextStatement(new ByteArrayInputStream(
-							statementBytes));
+					processNextStatement(cmd);
 					long time = System.currentTimeMillis() - startTime;
 					System.out.printf("----------------\n%.2f seconds\n\n",
 							((double) time / 1000.0));
@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * A HeapPage in the PAX (Partition Attributes Across) layout: the page has
+ * the same header and number of slots as a {@link HeapPage}, but instead of
+ * storing whole tuples one after the other, it stores one minipage per
+ * column holding that column's value for every slot.
+ * <p>
+ * A scan that only needs a few columns of a wide table then only touches
+ * (and parses) those columns' minipages; see
+ * {@link HeapPage#iterator(List, int[])}. As with a {@link HeapPage}, the
+ * tuples are only fully parsed when the page is modified or iterated over as
+ * a whole.
+ *
+ * @see HeapFile
+ * @see SeqScan
+ */
+public class PaxPage extends HeapPage {
+
+    /** the offset of the minipage of each column */
+    private int[] columnStarts;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk.
+     *
+     * @see PaxPage
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        super(id);
+        this.unparsedData = data;
+        this.numSlots = getNumTuples();
+        this.header = new byte[getHeaderSize()];
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HeapPage getBeforeImage() {
+        try {
+            return new PaxPage(pid, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format described in {@link PaxPage}.
+     */
+    public byte[] getPageData() {
+        byte[] d = unparsedData;
+        if (d != null)
+            return d.clone();
+        return encode(td, header, tuples, BufferPool.PAGE_SIZE);
+    }
+
+    /** Field j of slot i is in the minipage of column j */
+    int fieldOffset(int j, int i) {
+        if (columnStarts == null) {
+            columnStarts = new int[td.numFields()];
+            columnStarts[0] = header.length;
+            for (int k = 1; k < columnStarts.length; k++)
+                columnStarts[k] = columnStarts[k - 1]
+                        + numSlots * td.getFieldType(k - 1).getLen();
+        }
+        return columnStarts[j] + i * td.getFieldType(j).getLen();
+    }
+
+    void parseTuples() {
+        byte[] d = unparsedData;
+        if (tuples != null || d == null)
+            return;
+        Tuple[] parsed = new Tuple[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            parsed[i] = new Tuple(td);
+            parsed[i].setRecordId(new RecordId(pid, i));
+            for (int j = 0; j < td.numFields(); j++)
+                parsed[i].setField(j, fieldAt(d, j, i));
+        }
+        tuples = parsed;
+        unparsedData = null;
+    }
+
+    /**
+     * Encode a page in the PAX layout.
+     *
+     * @param header
+     *            the header bitmap of used slots, as in {@link HeapPage}
+     * @param slots
+     *            the tuple in each slot, or null for an empty slot
+     * @param pageSize
+     *            the number of bytes in the page
+     * @return the page data, padded to pageSize
+     */
+    static byte[] encode(TupleDesc td, byte[] header, Tuple[] slots, int pageSize) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(header);
+            for (int j = 0; j < td.numFields(); j++) {
+                int len = td.getFieldType(j).getLen();
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] == null)
+                        dos.write(new byte[len]);
+                    else
+                        slots[i].getField(j).serialize(dos);
+                }
+            }
+            dos.write(new byte[pageSize - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // writing to a byte array really shouldn't fail
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+}
@@ -115,7 +115,44 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        return t.getField(this.field).compare(this.operator, this.operand);
+        return filter(t.getField(this.field));
+    }
+
+    /**
+     * Compares a value of the field specified in the constructor to the
+     * operand; used to evaluate the predicate without building a tuple.
+     * 
+     * @param f
+     *            the value of the field to compare against
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(Field f) {
+        return f.compare(this.operator, this.operand);
+    }
+
+    /**
+     * Returns whether some value between min and max (inclusive) could
+     * satisfy this predicate; used to skip pages using their zone maps.
+     * 
+     * @return false if no value in the range satisfies the predicate, true
+     *         if some might
+     */
+    public boolean mightMatch(Field min, Field max) {
+        switch (this.operator) {
+        case EQUALS:
+            return min.compare(Op.LESS_THAN_OR_EQ, this.operand)
+                    && max.compare(Op.GREATER_THAN_OR_EQ, this.operand);
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return max.compare(this.operator, this.operand);
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return min.compare(this.operator, this.operand);
+        case NOT_EQUALS:
+            return !(min.equals(this.operand) && max.equals(this.operand));
+        default:
+            return true;
+        }
     }
 
     /**
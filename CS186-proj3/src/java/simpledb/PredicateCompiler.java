@@ -0,0 +1,550 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+
+/**
+ * PredicateCompiler turns a conjunction of {@link Predicate}s, or a
+ * {@link JoinPredicate}, over tuples of a known TupleDesc into a generated
+ * class. {@link Predicate#filter} fetches each field through the
+ * {@link Field} interface and then switches on the operator for every tuple;
+ * the generated code instead casts each field to its concrete type and
+ * compares the raw int (or String) with a single specialized bytecode
+ * instruction, so the hot path has no dispatch on the field type or the
+ * operator.
+ * <p>
+ * Generated classes only depend on the shape of the condition (field
+ * numbers, types and operators), not on the constants it compares to, which
+ * are passed to the instance. They are cached per shape, so running the same
+ * query again with different constants doesn't generate any code. The cache
+ * keeps the MAX_CLASSES most recently used shapes, and the classes are
+ * spread over several class loaders so that evicted ones can be unloaded.
+ * <p>
+ * Conditions that can't be compiled (e.g. a {@link BloomFilter}, or an
+ * operand whose type doesn't match its field) are evaluated by calling
+ * filter on the predicates instead, and so are those whose generated class
+ * the JVM rejects, which is reported once for each shape.
+ */
+public class PredicateCompiler {
+
+    /**
+     * A compiled conjunction of predicates over single tuples. Generated
+     * subclasses read their constants from ints and strings.
+     */
+    public abstract static class CompiledPredicate {
+        protected final int[] ints;
+        protected final String[] strings;
+
+        protected CompiledPredicate(int[] ints, String[] strings) {
+            this.ints = ints;
+            this.strings = strings;
+        }
+
+        /**
+         * @return true if t satisfies every predicate of the conjunction
+         */
+        public abstract boolean filter(Tuple t);
+    }
+
+    /**
+     * A compiled join predicate over pairs of tuples.
+     */
+    public abstract static class CompiledJoinPredicate {
+        protected CompiledJoinPredicate() {
+        }
+
+        /**
+         * @return true if t1 and t2 satisfy the join predicate
+         */
+        public abstract boolean filter(Tuple t1, Tuple t2);
+    }
+
+    /** more predicates than this aren't worth (or able) to fit in one method */
+    static final int MAX_CONJUNCTS = 256;
+
+    private static final String TUPLE = "simpledb/Tuple";
+    private static final String INT_FIELD = "simpledb/IntField";
+    private static final String STRING_FIELD = "simpledb/StringField";
+    private static final String BASE = "simpledb/PredicateCompiler$CompiledPredicate";
+    private static final String JOIN_BASE = "simpledb/PredicateCompiler$CompiledJoinPredicate";
+
+    /** at most this many generated classes are cached */
+    static final int MAX_CLASSES = 1024;
+
+    /** the number of classes defined by each class loader */
+    static final int CLASSES_PER_LOADER = 64;
+
+    /** cached for shapes whose generated class couldn't be loaded */
+    private static final Class<?> FAILED = Void.class;
+
+    /** generated classes by shape, least recently used first */
+    private static final LinkedHashMap<String, Class<?>> classes = new LinkedHashMap<String, Class<?>>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+            return size() > MAX_CLASSES;
+        }
+    };
+    private static Loader loader;
+    private static int loaded = 0;
+    private static int generated = 0;
+
+    /** Defines the generated classes */
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(PredicateCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    /**
+     * Compile a conjunction of predicates.
+     *
+     * @param preds
+     *            the predicates a tuple has to satisfy, in the order they
+     *            should be evaluated in
+     * @param td
+     *            the TupleDesc of the tuples the predicates are applied to
+     * @return a CompiledPredicate that evaluates the conjunction
+     */
+    public static CompiledPredicate compile(final List<Predicate> preds, TupleDesc td) {
+        String shape = shape(preds, td);
+        if (shape != null) {
+            ArrayList<Integer> ints = new ArrayList<Integer>();
+            ArrayList<String> strings = new ArrayList<String>();
+            for (Predicate p : preds) {
+                if (p.getOperand() instanceof IntField)
+                    ints.add(((IntField) p.getOperand()).getValue());
+                else
+                    strings.add(((StringField) p.getOperand()).getValue());
+            }
+            int[] intArray = new int[ints.size()];
+            for (int i = 0; i < intArray.length; i++)
+                intArray[i] = ints.get(i);
+            Class<?> c = cached(shape);
+            try {
+                if (c == null)
+                    c = define(shape, generateFilter(preds, td));
+                if (c != FAILED)
+                    return (CompiledPredicate) c.getConstructor(int[].class, String[].class)
+                            .newInstance(intArray, strings.toArray(new String[strings.size()]));
+            } catch (LinkageError e) {
+                // e.g. a VerifyError; the predicates still work interpreted
+                failed(shape, e);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            } catch (InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return new CompiledPredicate(null, null) {
+            public boolean filter(Tuple t) {
+                for (Predicate p : preds) {
+                    if (!p.filter(t))
+                        return false;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Compile a join predicate.
+     *
+     * @param jp
+     *            the join predicate
+     * @param td1
+     *            the TupleDesc of the tuples on the left of the join
+     * @param td2
+     *            the TupleDesc of the tuples on the right of the join
+     * @return a CompiledJoinPredicate that evaluates jp
+     */
+    public static CompiledJoinPredicate compile(final JoinPredicate jp, TupleDesc td1, TupleDesc td2) {
+        Type type = td1.getFieldType(jp.getField1());
+        if (type == td2.getFieldType(jp.getField2())) {
+            String shape = "J" + type.ordinal() + "," + jp.getField1() + ","
+                    + jp.getField2() + "," + jp.getOperator().ordinal();
+            Class<?> c = cached(shape);
+            try {
+                if (c == null)
+                    c = define(shape, generateJoin(jp, type));
+                if (c != FAILED)
+                    return (CompiledJoinPredicate) c.getConstructor().newInstance();
+            } catch (LinkageError e) {
+                failed(shape, e);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            } catch (InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return new CompiledJoinPredicate() {
+            public boolean filter(Tuple t1, Tuple t2) {
+                return jp.filter(t1, t2);
+            }
+        };
+    }
+
+    /**
+     * @return a string that identifies the generated code for preds, or null
+     *         if they can't be compiled
+     */
+    private static String shape(List<Predicate> preds, TupleDesc td) {
+        if (preds.size() > MAX_CONJUNCTS)
+            return null;
+        StringBuilder sb = new StringBuilder("F");
+        for (Predicate p : preds) {
+            // subclasses (e.g. BloomFilter) don't compare with the operand
+            if (p.getClass() != Predicate.class || p.getOperand() == null
+                    || p.getField() >= td.numFields()
+                    || p.getOperand().getType() != td.getFieldType(p.getField()))
+                return null;
+            sb.append(p.getOperand().getType().ordinal()).append(',')
+                    .append(p.getField()).append(',')
+                    .append(p.getOp().ordinal()).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the class generated for shape, FAILED if it couldn't be
+     *         loaded, or null if there is none in the cache
+     */
+    private static synchronized Class<?> cached(String shape) {
+        return classes.get(shape);
+    }
+
+    /**
+     * Define the class generated for shape and cache it, unless another
+     * thread got there first.
+     */
+    private static synchronized Class<?> define(String shape, ClassWriter cw) {
+        Class<?> c = classes.get(shape);
+        if (c != null)
+            return c;
+        if (loader == null || loaded == CLASSES_PER_LOADER) {
+            loader = new Loader();
+            loaded = 0;
+        }
+        loaded++;
+        c = loader.define(cw.name.replace('/', '.'), cw.toByteArray());
+        classes.put(shape, c);
+        return c;
+    }
+
+    /**
+     * Remember that the class generated for shape can't be used, reporting
+     * it the first time.
+     */
+    private static synchronized void failed(String shape, Throwable e) {
+        if (classes.put(shape, FAILED) != FAILED)
+            System.err.println("Evaluating predicates of shape " + shape
+                    + " without compiling them: " + e);
+    }
+
+    /** @return the number of shapes in the cache of generated classes */
+    static synchronized int numCached() {
+        return classes.size();
+    }
+
+    private static synchronized String nextName() {
+        return "simpledb/PredicateCompiler$Generated" + (generated++);
+    }
+
+    /** Emit a filter(Tuple) method body testing every predicate in order */
+    private static ClassWriter generateFilter(List<Predicate> preds, TupleDesc td) {
+        ClassWriter cw = new ClassWriter(nextName(), BASE);
+        Code init = new Code();
+        init.op(0x2a).op(0x2b).op(0x2c); // aload_0, aload_1, aload_2
+        init.op(0xb7).u2(cw.methodRef(BASE, "<init>", "([I[Ljava/lang/String;)V"));
+        init.op(0xb1); // return
+        cw.method("<init>", "([I[Ljava/lang/String;)V", 3, 3, init);
+
+        Code code = new Code();
+        ArrayList<Integer> fails = new ArrayList<Integer>();
+        int ints = 0, strings = 0;
+        for (Predicate p : preds) {
+            boolean isInt = td.getFieldType(p.getField()) == Type.INT_TYPE;
+            code.op(0x2b); // aload_1
+            loadField(cw, code, p.getField(), isInt);
+            code.op(0x2a); // aload_0
+            if (isInt) {
+                code.op(0xb4).u2(cw.fieldRef(BASE, "ints", "[I"));
+                code.push(ints++).op(0x2e); // iaload
+            } else {
+                code.op(0xb4).u2(cw.fieldRef(BASE, "strings", "[Ljava/lang/String;"));
+                code.push(strings++).op(0x32); // aaload
+            }
+            fails.add(compare(cw, code, p.getOp(), isInt));
+        }
+        finish(code, fails);
+        cw.method("filter", "(Lsimpledb/Tuple;)Z", 3, 2, code);
+        return cw;
+    }
+
+    /** Emit a filter(Tuple, Tuple) method body testing jp */
+    private static ClassWriter generateJoin(JoinPredicate jp, Type type) {
+        ClassWriter cw = new ClassWriter(nextName(), JOIN_BASE);
+        Code init = new Code();
+        init.op(0x2a); // aload_0
+        init.op(0xb7).u2(cw.methodRef(JOIN_BASE, "<init>", "()V"));
+        init.op(0xb1); // return
+        cw.method("<init>", "()V", 1, 1, init);
+
+        boolean isInt = type == Type.INT_TYPE;
+        Code code = new Code();
+        code.op(0x2b); // aload_1
+        loadField(cw, code, jp.getField1(), isInt);
+        code.op(0x2c); // aload_2
+        loadField(cw, code, jp.getField2(), isInt);
+        ArrayList<Integer> fails = new ArrayList<Integer>();
+        fails.add(compare(cw, code, jp.getOperator(), isInt));
+        finish(code, fails);
+        cw.method("filter", "(Lsimpledb/Tuple;Lsimpledb/Tuple;)Z", 3, 3, code);
+        return cw;
+    }
+
+    /** tuple on the stack -> the int (or String) value of its field i */
+    private static void loadField(ClassWriter cw, Code code, int i, boolean isInt) {
+        code.push(i);
+        code.op(0xb6).u2(cw.methodRef(TUPLE, "getField", "(I)Lsimpledb/Field;"));
+        if (isInt) {
+            code.op(0xc0).u2(cw.classRef(INT_FIELD));
+            code.op(0xb6).u2(cw.methodRef(INT_FIELD, "getValue", "()I"));
+        } else {
+            code.op(0xc0).u2(cw.classRef(STRING_FIELD));
+            code.op(0xb6).u2(cw.methodRef(STRING_FIELD, "getValue", "()Ljava/lang/String;"));
+        }
+    }
+
+    /**
+     * Two values on the stack -> a branch taken if they don't satisfy op.
+     * Follows the semantics of IntField.compare and StringField.compare.
+     *
+     * @return the position of the branch, to be patched by finish
+     */
+    private static int compare(ClassWriter cw, Code code, Predicate.Op op, boolean isInt) {
+        if (!isInt) {
+            if (op == Predicate.Op.LIKE) {
+                code.op(0xb6).u2(cw.methodRef("java/lang/String", "indexOf", "(Ljava/lang/String;)I"));
+                return code.branch(0x9b); // iflt
+            }
+            code.op(0xb6).u2(cw.methodRef("java/lang/String", "compareTo", "(Ljava/lang/String;)I"));
+        }
+        // the branches when the comparison fails; the if_icmp<cond>
+        // opcodes are the if<cond> ones plus 6
+        int branch;
+        switch (op) {
+        case NOT_EQUALS:
+            branch = 0x99; // ifeq
+            break;
+        case GREATER_THAN:
+            branch = 0x9e; // ifle
+            break;
+        case GREATER_THAN_OR_EQ:
+            branch = 0x9b; // iflt
+            break;
+        case LESS_THAN:
+            branch = 0x9c; // ifge
+            break;
+        case LESS_THAN_OR_EQ:
+            branch = 0x9d; // ifgt
+            break;
+        default: // EQUALS, and LIKE on ints
+            branch = 0x9a; // ifne
+        }
+        return code.branch(isInt ? branch + 6 : branch);
+    }
+
+    /** return true, and point the failed comparisons at a return false */
+    private static void finish(Code code, List<Integer> fails) {
+        code.op(0x04).op(0xac); // iconst_1, ireturn
+        int target = code.size();
+        code.op(0x03).op(0xac); // iconst_0, ireturn
+        for (int pos : fails)
+            code.patch(pos, target - pos);
+    }
+
+    /** Bytecode of one method */
+    private static class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private byte[] patched;
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u2(int v) {
+            bytes.write(v >>> 8);
+            bytes.write(v);
+            return this;
+        }
+
+        /** push an int constant */
+        Code push(int v) {
+            if (v >= -1 && v <= 5)
+                return op(0x03 + v); // iconst_<v>
+            if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+                return op(0x10).op(v & 0xff); // bipush
+            return op(0x11).u2(v & 0xffff); // sipush
+        }
+
+        /** @return the position of a branch whose offset is set by patch */
+        int branch(int opcode) {
+            int pos = size();
+            op(opcode).u2(0);
+            return pos;
+        }
+
+        void patch(int pos, int offset) {
+            if (patched == null)
+                patched = bytes.toByteArray();
+            patched[pos + 1] = (byte) (offset >>> 8);
+            patched[pos + 2] = (byte) offset;
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            return patched != null ? patched : bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Just enough of a class file writer for the code above: one class with
+     * a superclass, no fields, and methods without exception handlers. The
+     * classes are version 49 (Java 5), which the verifier checks without
+     * stack map frames.
+     */
+    private static class ClassWriter {
+        final String name;
+        private final String superName;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        private int poolCount = 1;
+        private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        private final DataOutputStream methodsOut = new DataOutputStream(methods);
+        private int methodCount = 0;
+
+        ClassWriter(String name, String superName) {
+            this.name = name;
+            this.superName = superName;
+        }
+
+        private int entry(String key, int tag, int a, int b, boolean twoRefs) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            try {
+                poolOut.writeByte(tag);
+                poolOut.writeShort(a);
+                if (twoRefs)
+                    poolOut.writeShort(b);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            entries.put(key, poolCount);
+            return poolCount++;
+        }
+
+        int utf8(String s) {
+            Integer index = entries.get("U" + s);
+            if (index != null)
+                return index;
+            try {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(s);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            entries.put("U" + s, poolCount);
+            return poolCount++;
+        }
+
+        int classRef(String internalName) {
+            int n = utf8(internalName);
+            return entry("C" + internalName, 7, n, 0, false);
+        }
+
+        private int nameAndType(String name, String desc) {
+            int n = utf8(name);
+            int d = utf8(desc);
+            return entry("N" + name + ":" + desc, 12, n, d, true);
+        }
+
+        int fieldRef(String owner, String name, String desc) {
+            int c = classRef(owner);
+            int nt = nameAndType(name, desc);
+            return entry("F" + owner + "." + name + ":" + desc, 9, c, nt, true);
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            int c = classRef(owner);
+            int nt = nameAndType(name, desc);
+            return entry("M" + owner + "." + name + ":" + desc, 10, c, nt, true);
+        }
+
+        void method(String name, String desc, int maxStack, int maxLocals, Code code) {
+            byte[] b = code.toByteArray();
+            try {
+                methodsOut.writeShort(0x0001); // ACC_PUBLIC
+                methodsOut.writeShort(utf8(name));
+                methodsOut.writeShort(utf8(desc));
+                methodsOut.writeShort(1);
+                methodsOut.writeShort(utf8("Code"));
+                methodsOut.writeInt(12 + b.length);
+                methodsOut.writeShort(maxStack);
+                methodsOut.writeShort(maxLocals);
+                methodsOut.writeInt(b.length);
+                methodsOut.write(b);
+                methodsOut.writeShort(0); // exception table
+                methodsOut.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            methodCount++;
+        }
+
+        byte[] toByteArray() {
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                dos.writeInt(0xcafebabe);
+                dos.writeShort(0);
+                dos.writeShort(49);
+                dos.writeShort(poolCount);
+                dos.write(pool.toByteArray());
+                dos.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+                dos.writeShort(thisClass);
+                dos.writeShort(superClass);
+                dos.writeShort(0); // interfaces
+                dos.writeShort(0); // fields
+                dos.writeShort(methodCount);
+                dos.write(methods.toByteArray());
+                dos.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return baos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A PreparedStatement is a query, parsed once by {@link Parser#prepare},
+ * whose filters can compare fields to parameters: the ?s in its text, which
+ * are numbered from 1 in the order they appear. Each time a plan is built for
+ * it, the values bound to the parameters go straight into the plan the
+ * optimizer chose the first time (see {@link StatementCache}).
+ * <p>
+ * Parameters may only stand for the constant of a filter (as in
+ * <tt>t.a = ?</tt>). A PreparedStatement must not be used by several threads
+ * at once, but several PreparedStatements for the same query may.
+ */
+public class PreparedStatement {
+
+    private final Parser parser;
+    private StatementCache.Entry entry;
+    private final String[] parameters;
+
+    PreparedStatement(Parser parser, StatementCache.Entry entry) {
+        this.parser = parser;
+        this.entry = entry;
+        this.parameters = new String[entry.getLogicalPlan().numParameters()];
+    }
+
+    /** @return the normalized text of the query */
+    public String getSql() {
+        return entry.getSql();
+    }
+
+    /** @return the number of parameters of the query */
+    public int getParameterCount() {
+        return parameters.length;
+    }
+
+    /**
+     * Bind an int to the parameter at index (starting from 1).
+     */
+    public void setInt(int index, int value) {
+        set(index, Integer.toString(value));
+    }
+
+    /**
+     * Bind a String to the parameter at index (starting from 1).
+     */
+    public void setString(int index, String value) {
+        set(index, value);
+    }
+
+    private void set(int index, String value) {
+        if (index < 1 || index > parameters.length)
+            throw new IndexOutOfBoundsException("parameter " + index + " of "
+                    + parameters.length);
+        parameters[index - 1] = value;
+    }
+
+    /** Unbind every parameter */
+    public void clearParameters() {
+        Arrays.fill(parameters, null);
+    }
+
+    /**
+     * Build a query for the values bound to the parameters, running as part
+     * of tid. If the catalog changed since the statement was prepared, it is
+     * parsed again first.
+     *
+     * @throws ParsingException
+     *             if a parameter has no value or a value of the wrong type,
+     *             or the query is no longer valid
+     */
+    public Query newQuery(TransactionId tid) throws ParsingException {
+        if (!entry.isValid())
+            entry = parser.prepareEntry(entry.getSql());
+        return parser.handleCachedQuery(entry, parameters.clone(), tid);
+    }
+}
@@ -20,6 +20,10 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     TransactionId tid;
     transient private boolean started = false;
+    /** the plan being run: op, or what the result cache returned for it */
+    transient private DbIterator running;
+    transient private String resultKey;
+    transient private int[] resultTables;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -41,6 +45,21 @@ public class Query implements Serializable {
         return this.op;
     }
 
+    /**
+     * Let the result of the query come from (and go to) the result cache of
+     * the database, if it is enabled.
+     *
+     * @param key
+     *            the text of the query and the values of its parameters,
+     *            which must determine its result, given its tables
+     * @param tables
+     *            the ids of the tables the query reads, sorted
+     */
+    public void setResultKey(String key, int[] tables) {
+        this.resultKey = key;
+        this.resultTables = tables;
+    }
+
     public Query(TransactionId t) {
         tid = t;
     }
@@ -52,7 +71,11 @@ public class Query implements Serializable {
 
     public void start() throws IOException, DbException,
             TransactionAbortedException {
-        op.open();
+        running = op;
+        // a snapshot's result may be older than the versions of its tables
+        if (resultKey != null && !Database.getBufferPool().readsSnapshot(tid))
+            running = Database.getResultCache().open(resultKey, resultTables, op);
+        running.open();
 
         started = true;
     }
@@ -63,7 +86,7 @@ public class Query implements Serializable {
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        return (started ? running : op).hasNext();
     }
 
     /**
@@ -83,36 +106,50 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        return running.next();
     }
 
     /** Close the iterator */
     public void close() throws IOException {
-        op.close();
+        (started ? running : op).close();
         started = false;
     }
 
     public void execute() throws IOException, DbException, TransactionAbortedException {
+        execute(System.out);
+    }
+
+    /**
+     * Run the query, printing its results to out as they are produced.
+     */
+    public void execute(PrintStream out) throws IOException, DbException,
+            TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
         String names = "";
         for (int i = 0; i < td.numFields(); i++) {
             names += td.getFieldName(i) + "\t";
         }
-        System.out.println(names);
+        out.println(names);
         for (int i = 0; i < names.length() + td.numFields() * 4; i++) {
-            System.out.print("-");
+            out.print("-");
         }
-        System.out.println("");
+        out.println("");
 
-        this.start();
+        // print a batch at a time, so a slow output holds the query back
+        Cursor cursor = new Cursor(this, Cursor.DEFAULT_FETCH_SIZE, null);
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try {
+            while (!cursor.isDone()) {
+                Cursor.Batch batch = cursor.fetch();
+                for (int i = 0; i < batch.size(); i++)
+                    out.println(batch.getTuple(i));
+                cnt += batch.size();
+                out.flush();
+            }
+        } finally {
+            cursor.close();
         }
-        System.out.println("\n " + cnt + " rows.");
-        this.close();
+        out.println("\n " + cnt + " rows.");
     }
 }
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import jline.ArgumentCompletor;
+import jline.ConsoleReader;
+import jline.SimpleCompletor;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+
+/**
+ * QueryClient runs statements on a {@link QueryServer}. It can be used from
+ * code, or as a console like {@link Parser}'s.
+ */
+public class QueryClient {
+
+    /** put in the queue of lines when the connection is closed */
+    private static final String CLOSED = new String("closed");
+
+    private final NioSocketConnector connector;
+    private final IoSession session;
+    private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+    /**
+     * Connect to a server.
+     *
+     * @param compress
+     *            true if the server compresses its connections
+     * @throws IOException
+     *             if the connection fails
+     */
+    public QueryClient(String host, int port, boolean compress) throws IOException {
+        connector = new NioSocketConnector();
+        QueryServer.configure(connector.getFilterChain(), compress);
+        connector.setHandler(new IoHandlerAdapter() {
+            @Override
+            public void messageReceived(IoSession session, Object message) {
+                lines.add((String) message);
+            }
+
+            @Override
+            public void sessionClosed(IoSession session) {
+                lines.add(CLOSED);
+            }
+
+            @Override
+            public void exceptionCaught(IoSession session, Throwable cause) {
+                session.close(true);
+            }
+        });
+        ConnectFuture f = connector.connect(new InetSocketAddress(host, port));
+        f.awaitUninterruptibly();
+        if (!f.isConnected()) {
+            connector.dispose();
+            throw new IOException("Unable to connect to " + host + ":" + port,
+                    f.getException());
+        }
+        session = f.getSession();
+    }
+
+    /**
+     * Run a statement, printing its output to out as the server sends it.
+     *
+     * @param statement
+     *            the statement; a missing ';' at its end is added
+     * @throws IOException
+     *             if the connection is closed before the statement ends
+     */
+    public void execute(String statement, PrintStream out) throws IOException {
+        statement = statement.trim();
+        if (!statement.endsWith(";"))
+            statement += ";";
+        session.write(statement);
+        readOutput(out);
+    }
+
+    /** Print the output of the next statement to out */
+    private void readOutput(PrintStream out) throws IOException {
+        String line;
+        while (!(line = nextLine()).equals(QueryServer.END)) {
+            // lines starting with '.' were escaped
+            out.println(line.startsWith(".") ? line.substring(1) : line);
+        }
+    }
+
+    /**
+     * Run a statement.
+     *
+     * @return the output of the statement
+     */
+    public String execute(String statement) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        execute(statement, out);
+        out.close();
+        return bytes.toString("UTF-8");
+    }
+
+    private String nextLine() throws IOException {
+        String line;
+        try {
+            line = lines.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (line == CLOSED) {
+            lines.add(CLOSED);
+            throw new IOException("Connection closed by the server");
+        }
+        return line;
+    }
+
+    /**
+     * Disconnect from the server; the server aborts a transaction that is
+     * still running.
+     */
+    public void close() {
+        session.close(false).awaitUninterruptibly();
+        connector.dispose();
+    }
+
+    static final String usage = "Usage: client [host] [-port port] [-compress]";
+
+    public static void main(String argv[]) throws IOException {
+        String host = "localhost";
+        int port = QueryServer.DEFAULT_PORT;
+        boolean compress = false;
+        try {
+            for (int i = 0; i < argv.length; i++) {
+                if (argv[i].equals("-port"))
+                    port = Integer.parseInt(argv[++i]);
+                else if (argv[i].equals("-compress"))
+                    compress = true;
+                else if (i == 0)
+                    host = argv[i];
+                else
+                    throw new IllegalArgumentException(argv[i]);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Invalid argument " + e.getMessage() + "\n" + usage);
+            System.exit(0);
+        }
+
+        QueryClient client = new QueryClient(host, port, compress);
+        ConsoleReader reader = new ConsoleReader();
+        ArgumentCompletor completor = new ArgumentCompletor(
+                new SimpleCompletor(Parser.SQL_COMMANDS));
+        completor.setStrict(false);
+        reader.addCompletor(completor);
+
+        // the server splits statements itself; send whole lines
+        String line;
+        boolean quit = false;
+        while (!quit && (line = reader.readLine("SimpleDB> ")) != null) {
+            int statements = 0;
+            for (int i = line.indexOf(';'); i >= 0; i = line.indexOf(';', i + 1))
+                statements++;
+            String trimmed = line.trim();
+            quit = trimmed.equalsIgnoreCase("quit;") || trimmed.equalsIgnoreCase("exit;");
+            client.session.write(line);
+            for (int i = 0; i < statements; i++)
+                client.readOutput(System.out);
+        }
+        client.close();
+        System.out.println("Bye");
+    }
+}
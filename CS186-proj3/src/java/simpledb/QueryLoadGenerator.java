@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryLoadGenerator measures the throughput of a {@link QueryServer}: a
+ * number of {@link QueryClient}s run the statements of a file over and over,
+ * each from its own thread, for a given time.
+ */
+public class QueryLoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final boolean compress;
+    private final List<String> statements;
+
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong totalMillis = new AtomicLong(0);
+    private final AtomicLong maxMillis = new AtomicLong(0);
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param statements
+     *            the statements each client runs, in turn
+     */
+    public QueryLoadGenerator(String host, int port, boolean compress,
+            List<String> statements) {
+        this.host = host;
+        this.port = port;
+        this.compress = compress;
+        this.statements = statements;
+    }
+
+    /**
+     * Run the statements from the given number of clients.
+     *
+     * @param millis
+     *            how long to run them for
+     * @return the number of statements run
+     */
+    public long run(int clients, long millis) throws IOException,
+            InterruptedException {
+        final QueryClient[] connections = new QueryClient[clients];
+        for (int i = 0; i < clients; i++)
+            connections[i] = new QueryClient(host, port, compress);
+        final PrintStream discard = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        });
+
+        running = true;
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final QueryClient client = connections[i];
+            // start each client at another statement
+            final int first = i;
+            threads[i] = new Thread("load-" + i) {
+                public void run() {
+                    try {
+                        for (int n = first; running; n++) {
+                            long start = System.currentTimeMillis();
+                            client.execute(statements.get(n % statements.size()), discard);
+                            long time = System.currentTimeMillis() - start;
+                            executed.incrementAndGet();
+                            totalMillis.addAndGet(time);
+                            long max;
+                            while (time > (max = maxMillis.get())
+                                    && !maxMillis.compareAndSet(max, time))
+                                ;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(millis);
+        running = false;
+        for (Thread t : threads)
+            t.join();
+        for (QueryClient c : connections)
+            c.close();
+        return executed.get();
+    }
+
+    /** @return the mean time to run a statement, in milliseconds */
+    public double meanMillis() {
+        long n = executed.get();
+        return n == 0 ? 0 : (double) totalMillis.get() / n;
+    }
+
+    /** @return the longest time to run a statement, in milliseconds */
+    public long maxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * @return the statements in a file, separated by ';'
+     */
+    public static List<String> readStatements(File f) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        StringBuilder text = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null)
+            text.append(line).append("\n");
+        in.close();
+        ArrayList<String> statements = new ArrayList<String>();
+        for (String s : text.toString().split(";")) {
+            if (s.trim().length() > 0)
+                statements.add(s.trim() + ";");
+        }
+        return statements;
+    }
+
+    static final String usage = "Usage: loadgen queryFile [-host host] [-port port] [-clients n] [-seconds n] [-compress]";
+
+    public static void main(String argv[]) throws IOException,
+            InterruptedException {
+        if (argv.length < 1) {
+            System.out.println("Invalid number of arguments.\n" + usage);
+            System.exit(0);
+        }
+        String host = "localhost";
+        int port = QueryServer.DEFAULT_PORT;
+        int clients = 4;
+        int seconds = 10;
+        boolean compress = false;
+        try {
+            for (int i = 1; i < argv.length; i++) {
+                if (argv[i].equals("-host"))
+                    host = argv[++i];
+                else if (argv[i].equals("-port"))
+                    port = Integer.parseInt(argv[++i]);
+                else if (argv[i].equals("-clients"))
+                    clients = Integer.parseInt(argv[++i]);
+                else if (argv[i].equals("-seconds"))
+                    seconds = Integer.parseInt(argv[++i]);
+                else if (argv[i].equals("-compress"))
+                    compress = true;
+                else
+                    throw new IllegalArgumentException(argv[i]);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Invalid argument " + e.getMessage() + "\n" + usage);
+            System.exit(0);
+        }
+
+        List<String> statements = readStatements(new File(argv[0]));
+        if (statements.isEmpty()) {
+            System.out.println("No statements in " + argv[0]);
+            System.exit(0);
+        }
+        QueryLoadGenerator load = new QueryLoadGenerator(host, port, compress, statements);
+        long n = load.run(clients, seconds * 1000L);
+        System.out.printf("%d statements from %d clients in %d seconds: %.1f statements/s\n",
+                n, clients, seconds, (double) n / seconds);
+        System.out.printf("latency: mean %.2f ms, max %d ms\n", load.meanMillis(),
+                load.maxMillis());
+    }
+}
@@ -76,6 +76,22 @@ public class QueryPlanVisualizer {
                 alias = "";
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
+            if (s.getPredicates() != null) {
+                TupleDesc td = Database.getCatalog().getTupleDesc(
+                        Database.getCatalog().getTableId(tableName));
+                String preds = "";
+                for (Predicate p : s.getPredicates()) {
+                    if (preds.length() > 0)
+                        preds += " AND ";
+                    preds += s.getAlias() + "." + td.getFieldName(p.getField());
+                    if (p instanceof BloomFilter)
+                        preds += " IN " + p;
+                    else
+                        preds += p.getOp() + "" + p.getOperand();
+                }
+                thisNode.text += String.format(",%1$s,skip:%2$d/%3$d pages",
+                        preds, s.countSkippablePages(), s.numPages());
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -198,11 +214,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                String preds = "";
+                for (Predicate p : f.getPredicates()) {
+                    if (preds.length() > 0)
+                        preds += " AND ";
+                    preds += children[0].getTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand();
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        preds, f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.textline.TextLineCodecFactory;
+import org.apache.mina.filter.compression.CompressionFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * QueryServer lets several clients run SQL statements over TCP at the same
+ * time. Each connection (session) gets its own {@link Parser}, so it has its
+ * own current transaction, as if it were a separate console.
+ * <p>
+ * The protocol is line based: a client sends statements terminated by ';'
+ * (possibly spread over several lines), and for each statement the server
+ * sends the lines the console would print, followed by a line containing
+ * only {@link #END}. Output lines that start with '.' get another '.' in
+ * front of them. Results are streamed: each tuple is sent as soon as the
+ * query produces it, and a query waits for its client when too many lines
+ * are still queued for it.
+ * <p>
+ * Sockets are handled by MINA's NIO acceptor, and statements run on a pool
+ * of threads which keeps the statements of one session in order. If the
+ * server compresses its connections, the clients must do so as well.
+ */
+public class QueryServer {
+
+    /** the line that ends the output of each statement */
+    public static final String END = ".";
+
+    /** the port the server listens on by default */
+    public static final int DEFAULT_PORT = 4186;
+
+    /** the longest statement line a client may send */
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /** lines queued for a session before a query waits for the client */
+    private static final int MAX_QUEUED_LINES = 1024;
+
+    private static final String PARSER = "parser";
+    private static final String STATEMENT = "statement";
+
+    private final int threads;
+    private final boolean compress;
+    private NioSocketAcceptor acceptor;
+
+    /**
+     * Constructor.
+     *
+     * @param threads
+     *            the number of threads running statements
+     * @param compress
+     *            true to compress the connections
+     */
+    public QueryServer(int threads, boolean compress) {
+        this.threads = threads;
+        this.compress = compress;
+    }
+
+    /**
+     * Start accepting connections.
+     *
+     * @param port
+     *            the port to listen on, or 0 for any free port
+     * @return the address the server listens on
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        if (acceptor != null)
+            throw new IllegalStateException("server already started");
+        acceptor = new NioSocketAcceptor();
+        acceptor.setReuseAddress(true);
+        configure(acceptor.getFilterChain(), compress);
+        acceptor.getFilterChain().addLast("executor", new ExecutorFilter(threads));
+        acceptor.setHandler(new Handler());
+        acceptor.bind(new InetSocketAddress(port));
+        return acceptor.getLocalAddress();
+    }
+
+    /**
+     * Stop accepting connections, close the open ones and save the table
+     * statistics, as {@link Parser#shutdown} does.
+     */
+    public synchronized void stop() {
+        if (acceptor == null)
+            return;
+        acceptor.unbind();
+        acceptor.dispose();
+        acceptor = null;
+        TableStats.saveStatistics();
+    }
+
+    /**
+     * Add the filters that turn the bytes of a connection into lines, for both
+     * the server and {@link QueryClient}.
+     */
+    static void configure(DefaultIoFilterChainBuilder chain, boolean compress) {
+        if (compress)
+            chain.addLast("compression", new CompressionFilter());
+        TextLineCodecFactory codec = new TextLineCodecFactory(Charset.forName("UTF-8"));
+        codec.setDecoderMaxLineLength(MAX_LINE_LENGTH);
+        codec.setEncoderMaxLineLength(MAX_LINE_LENGTH);
+        chain.addLast("codec", new ProtocolCodecFilter(codec));
+    }
+
+    /** Runs the statements of each session with the session's parser */
+    private static class Handler extends IoHandlerAdapter {
+
+        @Override
+        public void sessionOpened(IoSession session) {
+            Parser p = new Parser();
+            p.setOutput(new PrintStream(new SessionOutputStream(session), true));
+            session.setAttribute(PARSER, p);
+            session.setAttribute(STATEMENT, new StringBuilder());
+        }
+
+        @Override
+        public void messageReceived(IoSession session, Object message) {
+            Parser p = (Parser) session.getAttribute(PARSER);
+            StringBuilder buffer = (StringBuilder) session.getAttribute(STATEMENT);
+            String line = (String) message;
+            // split statements at ';', as the console does
+            while (line.indexOf(';') >= 0) {
+                int split = line.indexOf(';');
+                buffer.append(line.substring(0, split + 1));
+                String cmd = buffer.toString().trim();
+                cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
+                buffer.setLength(0);
+                line = line.substring(split + 1);
+                if (cmd.equalsIgnoreCase("quit;") || cmd.equalsIgnoreCase("exit;")) {
+                    session.write(END);
+                    session.close(false);
+                    return;
+                }
+                run(session, p, cmd);
+            }
+            if (line.trim().length() > 0) {
+                buffer.append(line);
+                buffer.append("\n");
+            }
+        }
+
+        /** Run one statement and end its output */
+        private void run(IoSession session, Parser p, String cmd) {
+            long startTime = System.currentTimeMillis();
+            try {
+                p.processNextStatement(cmd);
+            } catch (RuntimeException e) {
+                // e.g. a statement the parser doesn't check for
+                p.out.println("Error: " + e);
+            }
+            long time = System.currentTimeMillis() - startTime;
+            p.out.printf("----------------\n%.2f seconds\n\n",
+                    ((double) time / 1000.0));
+            session.write(END);
+        }
+
+        @Override
+        public void sessionClosed(IoSession session) {
+            // abort the transaction the client left open
+            Parser p = (Parser) session.getAttribute(PARSER);
+            if (p != null && p.getTransaction() != null) {
+                try {
+                    p.getTransaction().abort();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                p.setTransaction(null);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(IoSession session, Throwable cause) {
+            cause.printStackTrace();
+            session.close(true);
+        }
+    }
+
+    /**
+     * An OutputStream that sends each line written to it to a session,
+     * escaping the lines that start with '.'.
+     */
+    private static class SessionOutputStream extends OutputStream {
+        private final IoSession session;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        SessionOutputStream(IoSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n')
+                sendLine();
+            else
+                line.write(b);
+        }
+
+        private void sendLine() throws IOException {
+            String s = line.toString("UTF-8");
+            line.reset();
+            if (s.startsWith("."))
+                s = "." + s;
+            WriteFuture f = session.write(s);
+            if (session.getScheduledWriteMessages() > MAX_QUEUED_LINES)
+                f.awaitUninterruptibly();
+        }
+    }
+
+    static final String usage = "Usage: server catalogFile [-port port] [-threads n] [-compress] [-resultcache megabytes]";
+
+    public static void main(String argv[]) throws IOException {
+        if (argv.length < 1) {
+            System.out.println("Invalid number of arguments.\n" + usage);
+            System.exit(0);
+        }
+        Database.getCatalog().loadSchema(argv[0]);
+
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        boolean compress = false;
+        try {
+            for (int i = 1; i < argv.length; i++) {
+                if (argv[i].equals("-port"))
+                    port = Integer.parseInt(argv[++i]);
+                else if (argv[i].equals("-threads"))
+                    threads = Integer.parseInt(argv[++i]);
+                else if (argv[i].equals("-compress"))
+                    compress = true;
+                else if (argv[i].equals("-resultcache"))
+                    Database.getResultCache().setCapacity(
+                            Long.parseLong(argv[++i]) << 20);
+                else
+                    throw new IllegalArgumentException(argv[i]);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Invalid argument " + e.getMessage() + "\n" + usage);
+            System.exit(0);
+        }
+
+        QueryServer server = new QueryServer(threads, compress);
+        InetSocketAddress address = server.start(port);
+        System.out.println("Listening on port " + address.getPort());
+        if (Database.getResultCache().isEnabled()) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    System.out.println(Database.getResultCache());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReadAhead reads the pages of a HeapFile into the buffer pool in the
+ * background, ahead of a scan that reads them in order, so that the scan
+ * finds them there instead of alternating between processing a page and
+ * waiting for the next one to be read.
+ * <p>
+ * Once the scan has read {@link #SEQUENTIAL} consecutive pages, each page it
+ * reads starts reads of the pages of a window after it (see
+ * {@link BufferPool#prefetchPages}), skipping the pages the zone map rules
+ * out; each run of consecutive pages to read is read at once. The window
+ * adapts to the speed of the scan: it doubles whenever the scan gets to a
+ * page before its read has completed, up to a quarter of the buffer pool,
+ * and shrinks by a page each time the scan finds a window's worth of pages
+ * in a row already read.
+ * <p>
+ * All scans share a small pool of threads that read the pages.
+ */
+public class ReadAhead {
+
+    /** number of consecutive pages after which a scan is sequential */
+    public static final int SEQUENTIAL = 2;
+    /** the smallest and largest number of pages read ahead of a scan */
+    public static final int MIN_WINDOW = 2;
+    public static final int MAX_WINDOW = 64;
+
+    private static ExecutorService readers;
+    private static int threads = 2;
+
+    /**
+     * Set the number of threads reading pages ahead of scans; with 0, pages
+     * are only read when scans get to them.
+     */
+    public static synchronized void setThreads(int n) {
+        if (readers != null)
+            readers.shutdown();
+        readers = null;
+        threads = Math.max(0, n);
+    }
+
+    private static synchronized ExecutorService getReaders() {
+        if (readers == null && threads > 0) {
+            final AtomicInteger count = new AtomicInteger(0);
+            readers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "read-ahead-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return readers;
+    }
+
+    private final HeapFile file;
+    private final TransactionId tid;
+    private final ZoneMap zoneMap;
+    private final List<Predicate> preds;
+    /** the page the scan read last */
+    private int last = -1;
+    /** the number of consecutive pages the scan has read */
+    private int run = 0;
+    private int window = MIN_WINDOW;
+    /** the last page read ahead */
+    private int requested = -1;
+    /** the number of pages in a row the scan found already read */
+    private int hits = 0;
+
+    /**
+     * @param zoneMap
+     *            the zone map of the file, or null
+     * @param preds
+     *            the predicates the scan evaluates with the zone map, or null
+     */
+    public ReadAhead(HeapFile file, TransactionId tid, ZoneMap zoneMap,
+            List<Predicate> preds) {
+        this.file = file;
+        this.tid = tid;
+        this.zoneMap = zoneMap;
+        this.preds = preds;
+    }
+
+    /** @return the number of pages read ahead of the scan */
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Note that the scan is about to read a page, and read the pages after
+     * it if the scan is sequential.
+     */
+    public void pageRead(int pageNumber) {
+        if (pageNumber == this.last + 1) {
+            this.run++;
+        } else {
+            this.run = 1;
+            this.requested = pageNumber;
+        }
+        this.last = pageNumber;
+        ExecutorService executor = getReaders();
+        if (this.run < SEQUENTIAL || executor == null)
+            return;
+
+        BufferPool pool = Database.getBufferPool();
+        if (pageNumber <= this.requested
+                && !this.file.skipsPage(this.tid, pageNumber, this.zoneMap, this.preds))
+            adapt(pool.peekPage(new HeapPageId(this.file.getId(), pageNumber)) == null);
+
+        int end = Math.min(pageNumber + this.window, this.file.numPages() - 1);
+        int first = Math.max(this.requested, pageNumber) + 1;
+        for (int n = first; n <= end + 1; n++) {
+            if (n <= end && !this.file.skipsPage(this.tid, n, this.zoneMap, this.preds))
+                continue;
+            // pages first to n - 1 are a run of pages to read
+            if (n > first)
+                pool.prefetchPages(this.file.getId(), first, n - first, executor);
+            first = n + 1;
+        }
+        this.requested = Math.max(this.requested, end);
+    }
+
+    /**
+     * Adapt the window to a page the scan got to that was read ahead.
+     *
+     * @param waited
+     *            true if the page's read hadn't completed yet
+     */
+    void adapt(boolean waited) {
+        if (waited) {
+            // the scan is faster than the reads
+            int max = Math.min(MAX_WINDOW, Database.getBufferPool().getMaxPages() / 4);
+            this.window = Math.max(MIN_WINDOW, Math.min(this.window * 2, max));
+            this.hits = 0;
+        } else if (++this.hits >= this.window) {
+            this.window = Math.max(this.window - 1, MIN_WINDOW);
+            this.hits = 0;
+        }
+    }
+}
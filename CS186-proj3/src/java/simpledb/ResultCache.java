@@ -0,0 +1,309 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ResultCache keeps the results of queries, so that running a query again
+ * returns them without running its plan. A query is known by the text of its
+ * (normalized) plan and the values of its parameters; see
+ * {@link Query#setResultKey}.
+ * <p>
+ * A result is only returned while none of the tables it was computed from
+ * changed: each table has a version (see {@link BufferPool#getTableVersion}),
+ * and a result is kept with the versions of its tables from before the query
+ * ran. The cache holds up to a given number of bytes of results (as
+ * estimated by {@link #estimateSize}), dropping the least recently used ones
+ * to make room; results larger than the whole cache are not kept. The cache
+ * is disabled until it is given a capacity.
+ */
+public class ResultCache {
+
+    /** a cached result */
+    private static class Entry {
+        final int[] tables;
+        final long[] versions;
+        final TupleDesc td;
+        final ArrayList<Tuple> tuples;
+        final long bytes;
+
+        Entry(int[] tables, long[] versions, TupleDesc td,
+                ArrayList<Tuple> tuples, long bytes) {
+            this.tables = tables;
+            this.versions = versions;
+            this.td = td;
+            this.tuples = tuples;
+            this.bytes = bytes;
+        }
+
+        /** @return true if the result is still that of the query over tables */
+        boolean isValid(int[] tables) {
+            if (!Arrays.equals(this.tables, tables))
+                return false;
+            for (int i = 0; i < tables.length; i++) {
+                if (versions[i] != BufferPool.getTableVersion(tables[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long capacity;
+    private long used = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity
+     *            the number of bytes of results to keep; 0 disables the cache
+     */
+    public ResultCache(long capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Set the number of bytes of results to keep, dropping results if needed;
+     * 0 disables the cache.
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Return the plan to run for a query: one that returns its cached result,
+     * if it is still valid, or else its plan, which caches the result once it
+     * has been read to the end.
+     *
+     * @param key
+     *            the text of the query and the values of its parameters
+     * @param tables
+     *            the ids of the tables the query reads, sorted
+     * @param plan
+     *            the plan of the query
+     */
+    public DbIterator open(String key, int[] tables, DbIterator plan) {
+        synchronized (this) {
+            if (!isEnabled())
+                return plan;
+            Entry e = entries.get(key);
+            if (e != null && !e.isValid(tables)) {
+                remove(key);
+                e = null;
+            }
+            if (e != null) {
+                hits++;
+                return new Replay(e);
+            }
+            misses++;
+        }
+        return new Recorder(key, tables, plan);
+    }
+
+    /** Keep the result of a query, unless a table changed since it started */
+    private synchronized void put(String key, Entry e) {
+        if (e.bytes > capacity || !e.isValid(e.tables))
+            return;
+        remove(key);
+        entries.put(key, e);
+        used += e.bytes;
+        evict();
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null)
+            used -= e.bytes;
+    }
+
+    /** Drop the least recently used results until the rest fit */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (used > capacity && it.hasNext()) {
+            used -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return an estimate of the memory taken by a tuple, in bytes
+     */
+    public static long estimateSize(Tuple t) {
+        // the tuple, its array of fields and its record id
+        long bytes = 64;
+        TupleDesc td = t.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (f instanceof StringField)
+                bytes += 56 + 2 * ((StringField) f).getValue().length();
+            else
+                bytes += 24;
+        }
+        return bytes;
+    }
+
+    /** @return the number of queries whose result was cached */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of queries whose result had to be computed */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the fraction of queries whose result was cached */
+    public synchronized double getHitRatio() {
+        long n = hits + misses;
+        return n == 0 ? 0 : (double) hits / n;
+    }
+
+    /** @return the estimated number of bytes taken by the cached results */
+    public synchronized long getMemoryUsed() {
+        return used;
+    }
+
+    /** @return the number of cached results */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Drop every result and reset the hit and miss counts */
+    public synchronized void clear() {
+        entries.clear();
+        used = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "result cache: %d results, %.1f of %.1f MB, %.1f%% hits (%d of %d)",
+                entries.size(), used / 1048576.0, capacity / 1048576.0,
+                100 * getHitRatio(), hits, hits + misses);
+    }
+
+    /** Returns a cached result */
+    private static class Replay extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Entry entry;
+        private int next;
+
+        Replay(Entry entry) {
+            this.entry = entry;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            super.open();
+            next = 0;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            next = 0;
+        }
+
+        protected Tuple fetchNext() {
+            return next < entry.tuples.size() ? entry.tuples.get(next++) : null;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return entry.td;
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[0];
+        }
+
+        public void setChildren(DbIterator[] children) {
+        }
+    }
+
+    /** Runs the plan of a query, and caches its result at the end */
+    private class Recorder extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final int[] tables;
+        private DbIterator child;
+        private long[] versions;
+        /** the tuples so far; null once they no longer fit in the cache */
+        private ArrayList<Tuple> tuples;
+        private long bytes;
+
+        Recorder(String key, int[] tables, DbIterator child) {
+            this.key = key;
+            this.tables = tables;
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            // the versions from before the query reads the tables; if one
+            // changes while it runs, the result is not kept
+            versions = new long[tables.length];
+            for (int i = 0; i < tables.length; i++)
+                versions[i] = BufferPool.getTableVersion(tables[i]);
+            tuples = new ArrayList<Tuple>();
+            bytes = 0;
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            tuples = new ArrayList<Tuple>();
+            bytes = 0;
+        }
+
+        protected Tuple fetchNext() throws DbException,
+                TransactionAbortedException {
+            if (!child.hasNext()) {
+                if (tuples != null)
+                    put(key, new Entry(tables, versions, getTupleDesc(),
+                            tuples, bytes));
+                tuples = null;
+                return null;
+            }
+            Tuple t = child.next();
+            if (tuples != null) {
+                bytes += estimateSize(t);
+                if (bytes > getCapacity())
+                    tuples = null;
+                else
+                    tuples.add(t);
+            }
+            return t;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ScanAggregate is an {@link Aggregate} fused with the {@link SeqScan} of a
+ * {@link HeapFile} below it: a scan, the filters pushed into it, the
+ * projection of the fields the aggregate needs and the aggregate itself run
+ * as a single loop over the pages of the file.
+ * <p>
+ * Aggregate pulls every tuple through SeqScan.next, which builds a Tuple
+ * (and a Field per column) for it. Instead, while a page hasn't been
+ * parsed, ScanAggregate evaluates the predicates and reads the aggregate and
+ * group-by values straight from the page data; it never builds a Tuple, and
+ * int comparisons and aggregates don't allocate anything. Pages that were
+ * already parsed (e.g. because they were modified), and page formats with
+ * their own encoding, go through {@link HeapPage#iterator(List, int[])}
+ * instead. The results are the same as those of Aggregate.
+ * <p>
+ * The loop runs in parallel on morsels of the file's pages (see
+ * {@link MorselScheduler}); each worker aggregates its morsels into its own
+ * groups, which are merged at the end.
+ * <p>
+ * If its child isn't a SeqScan of a HeapFile (e.g. after setChildren), a
+ * ScanAggregate works like an Aggregate.
+ */
+public class ScanAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    // the predicates of the scan, and their evaluation on unparsed pages
+    private transient List<Predicate> predicates;
+    private transient PageFilter filter;
+
+    // the fields of the table to aggregate and group by
+    private transient int aggField;
+    private transient int groupField;
+    private transient Type groupType;
+
+
+    /**
+     * Constructor.
+     *
+     * @param scan
+     *            The scan that is feeding us tuples.
+     * @param afield
+     *            The column (of scan's tuples) over which we are computing an
+     *            aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     */
+    public ScanAggregate(SeqScan scan, int afield, int gfield, Aggregator.Op aop) {
+        super(scan, afield, gfield, aop);
+    }
+
+    /**
+     * @return true if a plan can aggregate child with a ScanAggregate
+     */
+    public static boolean canFuse(DbIterator child, int afield, Aggregator.Op aop) {
+        if (!(child instanceof SeqScan)
+                || !(((SeqScan) child).getFile() instanceof HeapFile))
+            return false;
+        // StringAggregator only counts
+        return child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE
+                || aop == Aggregator.Op.COUNT;
+    }
+
+    @Override
+    protected DbIterator computeAggregate() throws DbException,
+            TransactionAbortedException {
+        DbIterator child = getChildren()[0];
+        if (!canFuse(child, aggregateField(), aggregateOp()))
+            return super.computeAggregate();
+        final SeqScan scan = (SeqScan) child;
+        final HeapFile hf = (HeapFile) scan.getFile();
+
+        this.predicates = scan.getPredicates();
+        final int[] fields = scan.getFields();
+        TupleDesc td = hf.getTupleDesc();
+        this.filter = new PageFilter(predicates, td);
+        aggField = fields == null ? aggregateField() : fields[aggregateField()];
+        if (groupField() == Aggregator.NO_GROUPING) {
+            groupField = Aggregator.NO_GROUPING;
+        } else {
+            groupField = fields == null ? groupField() : fields[groupField()];
+            groupType = td.getFieldType(groupField);
+        }
+
+        final TransactionId tid = scan.getTransactionId();
+        final ZoneMap zoneMap = predicates == null ? null : hf.getZoneMap();
+        HashMap<Field, int[]> groups = MorselScheduler.run(hf.numPages(),
+                new MorselScheduler.Fragment<HashMap<Field, int[]>>() {
+            public HashMap<Field, int[]> run(int start, int end,
+                    HashMap<Field, int[]> groups) throws DbException,
+                    TransactionAbortedException {
+                if (groups == null)
+                    groups = new HashMap<Field, int[]>();
+                for (int i = start; i < end; i++) {
+                    HeapPage page = hf.scanPage(tid, i, zoneMap, predicates);
+                    if (page == null)
+                        continue;
+                    try {
+                        // a page that is being parsed still has its data
+                        byte[] d = page.unparsedData;
+                        if (page.tuples == null && d != null)
+                            aggregateRaw(page, d, groups);
+                        else
+                            aggregateTuples(page, fields, groups);
+                    } finally {
+                        Database.getBufferPool().releasePage(page);
+                    }
+                }
+                return groups;
+            }
+
+            public HashMap<Field, int[]> merge(HashMap<Field, int[]> a,
+                    HashMap<Field, int[]> b) {
+                for (Map.Entry<Field, int[]> e : b.entrySet())
+                    add(a, e.getKey(), e.getValue()[0], e.getValue()[1]);
+                return a;
+            }
+        });
+        return results(groups == null ? new HashMap<Field, int[]>() : groups);
+    }
+
+    /** Aggregate the matching tuples of an unparsed page */
+    private void aggregateRaw(HeapPage page, byte[] d, HashMap<Field, int[]> groups) {
+        boolean intAgg = page.td.getFieldType(aggField) == Type.INT_TYPE;
+        for (int i = 0; i < page.numSlots; i++) {
+            if (!page.isSlotUsed(i) || !filter.matches(page, d, i))
+                continue;
+            Field key;
+            if (groupField == Aggregator.NO_GROUPING)
+                key = null;
+            else if (groupType == Type.INT_TYPE)
+                key = new IntField(PageFilter.readInt(d, page.fieldOffset(groupField, i)));
+            else
+                key = page.fieldAt(d, groupField, i);
+            int value = intAgg ? PageFilter.readInt(d, page.fieldOffset(aggField, i)) : 0;
+            add(groups, key, 1, value);
+        }
+    }
+
+    /** Aggregate the matching tuples of a parsed (or differently encoded) page */
+    private void aggregateTuples(HeapPage page, int[] fields,
+            HashMap<Field, int[]> groups) {
+        Iterator<Tuple> it = page.iterator(predicates, fields);
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Field key = groupField() == Aggregator.NO_GROUPING ? null
+                    : t.getField(groupField());
+            Field value = t.getField(aggregateField());
+            add(groups, key, 1, value instanceof IntField ? ((IntField) value).getValue() : 0);
+        }
+    }
+
+    /**
+     * Merge count values, whose aggregate is value, into the group key (null
+     * without grouping).
+     */
+    private void add(HashMap<Field, int[]> groups, Field key, int count, int value) {
+        int[] g = groups.get(key);
+        if (g == null) {
+            g = new int[] { 0, value };
+            groups.put(key, g);
+        } else {
+            // the int arithmetic of IntegerAggregator
+            switch (aggregateOp()) {
+            case MIN:
+                g[1] = Math.min(g[1], value);
+                break;
+            case MAX:
+                g[1] = Math.max(g[1], value);
+                break;
+            case SUM:
+            case AVG:
+                g[1] += value;
+                break;
+            default:
+                break;
+            }
+        }
+        g[0] += count;
+    }
+
+    /** @return an iterator over the result of each group */
+    private DbIterator results(HashMap<Field, int[]> groups) {
+        // every aggregate is an int, even a count of strings
+        TupleDesc declared = getTupleDesc();
+        Type[] types = new Type[declared.numFields()];
+        String[] names = new String[declared.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = declared.getFieldType(i);
+            names[i] = declared.getFieldName(i);
+        }
+        types[types.length - 1] = Type.INT_TYPE;
+        TupleDesc td = new TupleDesc(types, names);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Map.Entry<Field, int[]> e : groups.entrySet()) {
+            int[] g = e.getValue();
+            int result;
+            if (aggregateOp() == Aggregator.Op.COUNT)
+                result = g[0];
+            else if (aggregateOp() == Aggregator.Op.AVG)
+                result = g[1] / g[0];
+            else
+                result = g[1];
+            Tuple t = new Tuple(td);
+            if (e.getKey() == null) {
+                t.setField(0, new IntField(result));
+            } else {
+                t.setField(0, e.getKey());
+                t.setField(1, new IntField(result));
+            }
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ScanProject is a {@link Project} fused with the {@link SeqScan} of a
+ * {@link HeapFile} below it: the scan, the filters pushed into it and the
+ * projection run as a single loop over each page of the file.
+ * <p>
+ * A Project over a SeqScan gets every matching tuple through SeqScan.next,
+ * which builds a Tuple of the scanned fields, and then copies the fields it
+ * projects into a second Tuple. Instead, while a page hasn't been parsed,
+ * ScanProject evaluates the predicates on the page data (see
+ * {@link PageFilter}) and builds the output Tuple of each matching tuple
+ * straight from it, parsing only the projected fields. Pages that were
+ * already parsed, and page formats with their own encoding, go through
+ * {@link HeapPage#iterator(List, int[])} instead. The tuples are returned
+ * in the same order as those of Project.
+ * <p>
+ * If its child isn't a SeqScan of a HeapFile (e.g. after setChildren), a
+ * ScanProject works like a Project.
+ */
+public class ScanProject extends Project {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<Integer> outFields;
+
+    private transient boolean fused;
+    private transient HeapFile hf;
+    private transient TransactionId tid;
+    private transient List<Predicate> predicates;
+    private transient PageFilter filter;
+    private transient ZoneMap zoneMap;
+    private transient ReadAhead readAhead;
+    // the fields the scan returns, and the field of the table of each output field
+    private transient int[] scanFields;
+    private transient int[] tableFields;
+    private transient int pageNumber;
+    private transient Iterator<Tuple> tuples;
+
+    /**
+     * Constructor.
+     *
+     * @param fieldList
+     *            The ids of the fields of scan's TupleDesc to project out
+     * @param typesList
+     *            the types of the fields in the final projection
+     * @param scan
+     *            The scan that is feeding us tuples.
+     */
+    public ScanProject(ArrayList<Integer> fieldList, ArrayList<Type> typesList,
+            SeqScan scan) {
+        super(fieldList, typesList, scan);
+        this.outFields = fieldList;
+    }
+
+    /**
+     * @return true if a plan can project child with a ScanProject
+     */
+    public static boolean canFuse(DbIterator child) {
+        return child instanceof SeqScan
+                && ((SeqScan) child).getFile() instanceof HeapFile;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        DbIterator child = getChildren()[0];
+        this.fused = canFuse(child);
+        if (!this.fused)
+            return;
+        SeqScan scan = (SeqScan) child;
+        this.hf = (HeapFile) scan.getFile();
+        this.tid = scan.getTransactionId();
+        List<Predicate> preds = scan.getPredicates();
+        this.predicates = preds == null || preds.isEmpty() ? null : preds;
+        this.filter = new PageFilter(this.predicates, this.hf.getTupleDesc());
+        this.zoneMap = this.predicates == null ? null : this.hf.getZoneMap();
+        this.readAhead = new ReadAhead(this.hf, this.tid, this.zoneMap, this.predicates);
+        this.scanFields = scan.getFields();
+        this.tableFields = new int[this.outFields.size()];
+        for (int k = 0; k < this.tableFields.length; k++) {
+            int f = this.outFields.get(k);
+            this.tableFields[k] = this.scanFields == null ? f : this.scanFields[f];
+        }
+        this.pageNumber = -1;
+        this.tuples = Collections.<Tuple>emptyList().iterator();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!this.fused) {
+            super.rewind();
+            return;
+        }
+        this.pageNumber = -1;
+        this.tuples = Collections.<Tuple>emptyList().iterator();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!this.fused)
+            return super.fetchNext();
+        while (!this.tuples.hasNext()) {
+            if (this.pageNumber + 1 >= this.hf.numPages())
+                return null;
+            this.pageNumber++;
+            this.tuples = pageTuples(this.pageNumber);
+        }
+        return this.tuples.next();
+    }
+
+    /** @return the output tuples of the matching tuples of a page */
+    private Iterator<Tuple> pageTuples(int pageNumber) throws DbException,
+            TransactionAbortedException {
+        this.readAhead.pageRead(pageNumber);
+        HeapPage page = this.hf.scanPage(this.tid, pageNumber, this.zoneMap,
+                this.predicates);
+        if (page == null)
+            return Collections.<Tuple>emptyList().iterator();
+        TupleDesc td = getTupleDesc();
+        ArrayList<Tuple> out = new ArrayList<Tuple>();
+        try {
+            // a page that is being parsed still has its data
+            byte[] d = page.unparsedData;
+            if (page.tuples == null && d != null) {
+                for (int i = 0; i < page.numSlots; i++) {
+                    if (!page.isSlotUsed(i) || !this.filter.matches(page, d, i))
+                        continue;
+                    Tuple t = new Tuple(td);
+                    t.setRecordId(new RecordId(page.getId(), i));
+                    for (int k = 0; k < this.tableFields.length; k++)
+                        t.setField(k, page.fieldAt(d, this.tableFields[k], i));
+                    out.add(t);
+                }
+            } else {
+                Iterator<Tuple> it = page.iterator(this.predicates, this.scanFields);
+                while (it.hasNext()) {
+                    Tuple st = it.next();
+                    Tuple t = new Tuple(td);
+                    t.setRecordId(st.getRecordId());
+                    for (int k = 0; k < this.tableFields.length; k++)
+                        t.setField(k, st.getField(this.outFields.get(k)));
+                    out.add(t);
+                }
+            }
+        } finally {
+            Database.getBufferPool().releasePage(page);
+        }
+        return out.iterator();
+    }
+}
@@ -17,6 +17,10 @@ public class SeqScan implements DbIterator {
     private DbFile scan;
     private TupleDesc prefixedTupleDesc;
     private DbFileIterator seqScanIterator;
+    private int[] fields;
+    private List<Predicate> predicates;
+    /** the next matching tuple, for files that can't evaluate predicates */
+    private Tuple nextMatch;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -34,13 +38,67 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that only returns some of the fields of the
+     * specified table. Heap files only read those fields where their page
+     * format allows it (see {@link PaxPage}); other files return every field.
+     * 
+     * @param fields
+     *            the fields of the table to return, in order, or null for all
+     *            of them
+     * @see #SeqScan(TransactionId, int, String)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        this(tid, tableid, tableAlias, fields, (List<Predicate>) null);
+    }
+
+    /**
+     * Creates a sequential scan that only returns the tuples of the specified
+     * table that satisfy a predicate.
+     * 
+     * @param p
+     *            the predicate, on the fields of the table (not the fields
+     *            this scan returns), or null to return every tuple
+     * @see #SeqScan(TransactionId, int, String, int[], List)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields,
+            Predicate p) {
+        this(tid, tableid, tableAlias, fields,
+                p == null ? null : Collections.singletonList(p));
+    }
+
+    /**
+     * Creates a sequential scan that only returns the tuples of the specified
+     * table that satisfy all of the specified predicates. Heap files evaluate
+     * them on the page data, so that tuples that don't satisfy them are never
+     * parsed, and skip the pages their {@link ZoneMap} rules out.
+     * 
+     * @param preds
+     *            the predicates, on the fields of the table (not the fields
+     *            this scan returns), or null to return every tuple
+     * @see #SeqScan(TransactionId, int, String, int[])
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields,
+            List<Predicate> preds) {
         // some code goes here
     	this.tid = tid;
     	this.alias = tableAlias;
     	this.tableId = tableid;
     	this.scan = Database.getCatalog().getDbFile(this.tableId);
-    	
+    	// other DbFiles cannot project, so they keep all fields
+    	this.fields = this.scan instanceof HeapFile ? fields : null;
+    	this.predicates = preds == null || preds.isEmpty() ? null : preds;
+    	init();
+    }
+
+    private void init() {
     	TupleDesc originalTD = this.scan.getTupleDesc();
+    	if (this.fields != null) {
+    		originalTD = HeapPage.projectTupleDesc(originalTD, this.fields);
+    	}
     	Type[] typeAr = new Type[originalTD.numFields()];
     	String[] fieldAr = new String[originalTD.numFields()];
     	for(int i=0; i<originalTD.numFields(); i++){
@@ -49,7 +107,88 @@ public class SeqScan implements DbIterator {
     	}
     	this.prefixedTupleDesc = new TupleDesc(typeAr, fieldAr);
     	
-    	this.seqScanIterator = this.scan.iterator(this.tid);
+    	if (this.scan instanceof HeapFile && (this.fields != null || this.predicates != null)) {
+    		this.seqScanIterator = ((HeapFile) this.scan).iterator(this.tid,
+    				this.predicates, this.fields);
+    	} else {
+    		this.seqScanIterator = this.scan.iterator(this.tid);
+    	}
+    }
+
+    /**
+     * @return the fields of the table this scan returns, or null if it
+     *         returns all of them
+     */
+    public int[] getFields() {
+        return this.fields;
+    }
+
+    /**
+     * @return the file this scan reads
+     */
+    DbFile getFile() {
+        return this.scan;
+    }
+
+    /**
+     * @return the transaction this scan runs in
+     */
+    TransactionId getTransactionId() {
+        return this.tid;
+    }
+
+    /**
+     * @return the predicates this scan evaluates, or null if it returns every
+     *         tuple
+     */
+    public List<Predicate> getPredicates() {
+        return this.predicates;
+    }
+
+    /**
+     * Add a predicate for this scan to evaluate, such as a
+     * {@link BloomFilter} pushed down by a join. The scan must not be open.
+     * 
+     * @param p
+     *            the predicate, on the fields of the table
+     */
+    public void addPredicate(Predicate p) {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        if (this.predicates != null)
+            preds.addAll(this.predicates);
+        preds.add(p);
+        this.predicates = preds;
+        init();
+    }
+
+    /**
+     * @return the number of pages the zone map lets this scan skip, as of
+     *         now; see {@link HeapFile#countSkippablePages}
+     */
+    public int countSkippablePages() {
+        if (this.predicates == null || !(this.scan instanceof HeapFile))
+            return 0;
+        return ((HeapFile) this.scan).countSkippablePages(this.predicates);
+    }
+
+    /**
+     * @return the number of pages skipped since this scan was last opened or
+     *         rewound
+     */
+    public int getPagesSkipped() {
+        if (this.seqScanIterator instanceof HeapFile.HeapFileIterator)
+            return ((HeapFile.HeapFileIterator) this.seqScanIterator).getPagesSkipped();
+        return 0;
+    }
+
+    /**
+     * @return the number of pages of the table this scan reads, if it is a
+     *         heap file, or 0 otherwise
+     */
+    public int numPages() {
+        if (!(this.scan instanceof HeapFile))
+            return 0;
+        return ((HeapFile) this.scan).numPages();
     }
 
     /**
@@ -85,18 +224,12 @@ public class SeqScan implements DbIterator {
     public void reset(int tableid, String tableAlias) {
         // some code goes here
     	this.tableId = tableid;
+    	this.alias = tableAlias;
     	this.scan = Database.getCatalog().getDbFile(this.tableId);
-    	
-    	TupleDesc originalTD = this.scan.getTupleDesc();
-    	Type[] typeAr = new Type[originalTD.numFields()];
-    	String[] fieldAr = new String[originalTD.numFields()];
-    	for(int i=0; i<originalTD.numFields(); i++){
-    		typeAr[i] = originalTD.getFieldType(i);
-    		fieldAr[i] = this.alias + "." + originalTD.getFieldName(i);
-    	}
-    	this.prefixedTupleDesc = new TupleDesc(typeAr, fieldAr);
-    	
-    	this.seqScanIterator = this.scan.iterator(this.tid);
+    	// the field numbers were for the old table
+    	this.fields = null;
+    	this.predicates = null;
+    	init();
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -105,6 +238,7 @@ public class SeqScan implements DbIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+    	this.nextMatch = null;
     	this.seqScanIterator.open();
     }
 
@@ -124,13 +258,29 @@ public class SeqScan implements DbIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return this.seqScanIterator.hasNext();
+        if (this.predicates == null || this.scan instanceof HeapFile)
+            return this.seqScanIterator.hasNext();
+        while (this.nextMatch == null && this.seqScanIterator.hasNext()) {
+            Tuple t = this.seqScanIterator.next();
+            boolean match = true;
+            for (Predicate p : this.predicates)
+                match = match && p.filter(t);
+            if (match)
+                this.nextMatch = t;
+        }
+        return this.nextMatch != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return this.seqScanIterator.next();
+        if (this.predicates == null || this.scan instanceof HeapFile)
+            return this.seqScanIterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException("No more tuples.");
+        Tuple t = this.nextMatch;
+        this.nextMatch = null;
+        return t;
     }
 
     public void close() {
@@ -141,6 +291,7 @@ public class SeqScan implements DbIterator {
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+    	this.nextMatch = null;
     	this.seqScanIterator.rewind();
     }
 }
@@ -8,6 +8,16 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // a trailing -slotted, -compressed or -pax picks the page format
+            HeapFile.Format format = HeapFile.Format.FIXED;
+            if (args[args.length-1].equals("-slotted"))
+                format = HeapFile.Format.SLOTTED;
+            else if (args[args.length-1].equals("-compressed"))
+                format = HeapFile.Format.COMPRESSED;
+            else if (args[args.length-1].equals("-pax"))
+                format = HeapFile.Format.PAX;
+            if (format != HeapFile.Format.FIXED)
+                args = Arrays.copyOf(args, args.length-1);
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -45,7 +55,7 @@ public class SimpleDb {
             }
 
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
+                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator,format);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -91,6 +101,19 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("server")) {
+            QueryServer.main(Arrays.copyOfRange(args, 1, args.length));
+        }
+        else if (args[0].equals("client")) {
+            QueryClient.main(Arrays.copyOfRange(args, 1, args.length));
+        }
+        else if (args[0].equals("loadgen")) {
+            try {
+                QueryLoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
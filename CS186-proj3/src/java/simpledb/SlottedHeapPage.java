@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * A HeapPage that stores variable-length records, so that strings only take
+ * up as much space as their actual length instead of
+ * {@link Type#STRING_LEN} bytes.
+ * <p>
+ * The page starts with a slot directory: a 2-byte count of slots followed
+ * by a 2-byte offset for every slot, where offset 0 marks an empty slot.
+ * Records are packed at the end of the page, growing towards the directory.
+ * In a record, integers take 4 bytes and strings a 2-byte length followed
+ * by their characters. Records are compacted each time the page is written,
+ * so deleting tuples never leaves holes on disk.
+ *
+ * @see HeapFile
+ * @see HeapFileEncoder
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** the tuple in each slot, or null for an empty slot */
+    private ArrayList<Tuple> slots = new ArrayList<Tuple>();
+    /** total size of the records in the used slots */
+    private int recordBytes;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     *
+     * @see SlottedHeapPage
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int numSlots = dis.readUnsignedShort();
+        int[] offsets = new int[numSlots];
+        for (int i = 0; i < numSlots; i++)
+            offsets[i] = dis.readUnsignedShort();
+        dis.close();
+
+        for (int i = 0; i < numSlots; i++) {
+            if (offsets[i] == 0) {
+                slots.add(null);
+                continue;
+            }
+            dis = new DataInputStream(new ByteArrayInputStream(data,
+                    offsets[i], data.length - offsets[i]));
+            Tuple t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, readField(td.getFieldType(j), dis));
+            slots.add(t);
+            recordBytes += recordSize(t);
+        }
+
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format described in {@link SlottedHeapPage}.
+     */
+    public byte[] getPageData() {
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        try {
+            for (Tuple t : slots)
+                records.add(t == null ? null : serialize(t));
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return layoutPage(records, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Delete the specified tuple from the page; the tuple should be updated
+     * to reflect that it is no longer stored on any page.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId()))
+            throw new DbException("Tuple not on this page.");
+        int i = rid.tupleno();
+        if (!isSlotUsed(i))
+            throw new DbException("Tuple slot is already empty.");
+        recordBytes -= recordSize(slots.get(i));
+        slots.get(i).setRecordId(null);
+        slots.set(i, null);
+        // trailing empty slots need no directory entry
+        while (!slots.isEmpty() && slots.get(slots.size() - 1) == null)
+            slots.remove(slots.size() - 1);
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to
+     * reflect that it is now stored on this page.
+     *
+     * @throws DbException if the page does not have room for the tuple or
+     *         tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc()))
+            throw new DbException("The TupleDesc is a mismatch.");
+        if (!hasRoomFor(t))
+            throw new DbException("The page is full.");
+
+        int i = slots.indexOf(null);
+        if (i < 0) {
+            i = slots.size();
+            slots.add(null);
+        }
+        t.setRecordId(new RecordId(this.pid, i));
+        slots.set(i, t);
+        recordBytes += recordSize(t);
+    }
+
+    /**
+     * Returns true if t fits in the free space of this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        int needed = recordSize(t);
+        if (slots.indexOf(null) < 0)
+            needed += 2;
+        return usedBytes() + needed <= BufferPool.PAGE_SIZE;
+    }
+
+    /**
+     * Returns the number of tuples whose strings are all empty that could
+     * still be added to this page; tuples with longer strings fit fewer.
+     */
+    public int getNumEmptySlots() {
+        int minRecord = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            minRecord += td.getFieldType(j) == Type.STRING_TYPE ? 2 : 4;
+        int free = BufferPool.PAGE_SIZE - usedBytes();
+        int reusable = slots.size() - numUsedSlots();
+        if (free < reusable * minRecord)
+            return free / minRecord;
+        return reusable + (free - reusable * minRecord) / (minRecord + 2);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < slots.size() && slots.get(i) != null;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this
+     *         iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+        for (Tuple t : slots) {
+            if (t != null)
+                tupleList.add(t);
+        }
+        return Collections.unmodifiableList(tupleList).iterator();
+    }
+
+    private int numUsedSlots() {
+        int used = 0;
+        for (Tuple t : slots) {
+            if (t != null)
+                used++;
+        }
+        return used;
+    }
+
+    private int usedBytes() {
+        return 2 + 2 * slots.size() + recordBytes;
+    }
+
+    /**
+     * @return the number of bytes t takes up on a slotted page
+     */
+    static int recordSize(Tuple t) {
+        int size = 0;
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+            Field f = t.getField(j);
+            if (f.getType() == Type.STRING_TYPE)
+                size += 2 + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN);
+            else
+                size += f.getType().getLen();
+        }
+        return size;
+    }
+
+    private static byte[] serialize(Tuple t) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+            writeField(t.getField(j), dos);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Write a field in the variable-length record format.
+     */
+    static void writeField(Field f, DataOutputStream dos) throws IOException {
+        if (f.getType() == Type.STRING_TYPE) {
+            String s = ((StringField) f).getValue();
+            if (s.length() > Type.STRING_LEN)
+                s = s.substring(0, Type.STRING_LEN);
+            dos.writeShort(s.length());
+            dos.writeBytes(s);
+        } else {
+            f.serialize(dos);
+        }
+    }
+
+    /**
+     * Read a field written by {@link #writeField}.
+     */
+    static Field readField(Type type, DataInputStream dis) throws IOException {
+        if (type == Type.STRING_TYPE) {
+            byte[] bs = new byte[dis.readUnsignedShort()];
+            dis.readFully(bs);
+            return new StringField(new String(bs), Type.STRING_LEN);
+        }
+        try {
+            return type.parse(dis);
+        } catch (java.text.ParseException e) {
+            throw new IOException("parsing error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lay out a slotted page: the slot directory at the start of the page,
+     * and the records packed at its end.
+     *
+     * @param records
+     *            the serialized record in each slot, or null for an empty
+     *            slot
+     * @param pageSize
+     *            the number of bytes in the page
+     * @return the page data
+     */
+    static byte[] layoutPage(List<byte[]> records, int pageSize) {
+        byte[] page = new byte[pageSize];
+        page[0] = (byte) (records.size() >> 8);
+        page[1] = (byte) records.size();
+        int end = pageSize;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] r = records.get(i);
+            if (r == null)
+                continue;
+            end -= r.length;
+            System.arraycopy(r, 0, page, end, r.length);
+            page[2 + 2 * i] = (byte) (end >> 8);
+            page[3 + 2 * i] = (byte) end;
+        }
+        return page;
+    }
+
+}
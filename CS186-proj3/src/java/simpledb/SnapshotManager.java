@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SnapshotManager keeps the earlier versions of pages, so that read-only
+ * transactions can read the database as it was when they started while other
+ * transactions modify it (multi-version concurrency control). Readers never
+ * wait for writers, nor writers for readers.
+ * <p>
+ * Each transaction that completes after modifying pages gets a commit time
+ * from a clock, and a read-only transaction gets the time of the clock when
+ * it starts: its snapshot. Before a page is first modified, the BufferPool
+ * hands it to {@link #beforeWrite}, which keeps a copy of it as of the last
+ * commit that modified it. A read-only transaction then reads the most recent
+ * version committed at or before its snapshot: one of the copies (see
+ * {@link #getVersion}), or a copy of the page itself taken while no one is
+ * modifying it (see {@link #readVersion}).
+ * <p>
+ * This tree has no page locks, so several transactions may modify a page at
+ * once; its changes only become visible to snapshots once all of them have
+ * completed. Aborted transactions are not rolled back, so their changes
+ * become visible like committed ones.
+ * <p>
+ * A copy is dropped, by a background thread every {@link #COLLECT_MILLIS}
+ * milliseconds (or by {@link #collect}), once every running snapshot can
+ * read a later version of the page.
+ */
+public class SnapshotManager {
+
+    /** how often old versions are collected, in milliseconds */
+    public static final long COLLECT_MILLIS = 1000;
+
+    private static final Timer collector = new Timer("version-collector", true);
+
+    /** The versions of a page */
+    private static class Versions {
+        /** the earlier versions and the times they were committed, oldest first */
+        final ArrayList<byte[]> images = new ArrayList<byte[]>();
+        final ArrayList<Long> times = new ArrayList<Long>();
+        /** the time the page was last committed, if it has no writers */
+        long committed = 0;
+        /** the transactions modifying the page */
+        final HashSet<TransactionId> writers = new HashSet<TransactionId>();
+    }
+
+    private long clock = 0;
+    /** the snapshot of each running read-only transaction */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots =
+            new ConcurrentHashMap<TransactionId, Long>();
+    /** the pages each running transaction modified */
+    private final HashMap<TransactionId, HashSet<PageId>> written =
+            new HashMap<TransactionId, HashSet<PageId>>();
+    private final HashMap<PageId, Versions> pages = new HashMap<PageId, Versions>();
+
+    public SnapshotManager() {
+        // the collector must not keep a buffer pool that was replaced alive
+        final WeakReference<SnapshotManager> ref = new WeakReference<SnapshotManager>(this);
+        collector.schedule(new TimerTask() {
+            public void run() {
+                SnapshotManager m = ref.get();
+                if (m == null)
+                    cancel();
+                else
+                    m.collect();
+            }
+        }, COLLECT_MILLIS, COLLECT_MILLIS);
+    }
+
+    /**
+     * Start a read-only transaction, which reads the database as of now
+     * until it completes.
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** @return true if tid is a read-only transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /**
+     * Note that tid is about to modify a page, keeping a copy of the page if
+     * no other transaction is modifying it. The copy is needed while the page
+     * is being modified, as a snapshot may start meanwhile, but it is dropped
+     * when the writers complete if no snapshot is running then.
+     *
+     * @throws DbException
+     *             if tid is read-only
+     */
+    public synchronized void beforeWrite(TransactionId tid, Page page)
+            throws DbException {
+        if (isSnapshot(tid))
+            throw new DbException("Transaction " + tid.getId() + " is read-only");
+        Versions v = pages.get(page.getId());
+        if (v == null) {
+            // a page without versions is older than any running snapshot
+            v = new Versions();
+            pages.put(page.getId(), v);
+        }
+        if (v.writers.isEmpty()) {
+            v.images.add(page.getPageData());
+            v.times.add(v.committed);
+        }
+        if (v.writers.add(tid)) {
+            HashSet<PageId> pids = written.get(tid);
+            if (pids == null)
+                written.put(tid, pids = new HashSet<PageId>());
+            pids.add(page.getId());
+        }
+    }
+
+    /**
+     * Return the version of a page that a read-only transaction reads, if it
+     * isn't the current page.
+     *
+     * @return the version, or null if tid reads the page itself
+     */
+    public Page getVersion(TransactionId tid, PageId pid) throws DbException {
+        byte[] image = versionData(tid, pid);
+        if (image == null)
+            return null;
+        return createPage(pid, image);
+    }
+
+    /**
+     * Return the version of a page that a read-only transaction reads, given
+     * the current page: an earlier version, or else a copy of the current
+     * page. The copy is taken before any other transaction can start
+     * modifying the page, so that the reader never sees their changes.
+     */
+    public Page readVersion(TransactionId tid, Page current) throws DbException {
+        byte[] image;
+        synchronized (this) {
+            image = versionData(tid, current.getId());
+            if (image == null)
+                image = current.getPageData();
+        }
+        return createPage(current.getId(), image);
+    }
+
+    /** @return a page of a HeapFile with the given data */
+    private static Page createPage(PageId pid, byte[] image) throws DbException {
+        HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
+        try {
+            return hf.createPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), image);
+        } catch (IOException e) {
+            throw new DbException("Unable to read a version of page " + pid.pageNumber()
+                    + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if tid reads an earlier version of a page than the
+     *         current one
+     */
+    public boolean hasVersion(TransactionId tid, PageId pid) {
+        return versionData(tid, pid) != null;
+    }
+
+    /** @return the data of the version of a page tid reads, or null */
+    private byte[] versionData(TransactionId tid, PageId pid) {
+        Long snapshot = tid == null ? null : snapshots.get(tid);
+        if (snapshot == null)
+            return null;
+        synchronized (this) {
+            Versions v = pages.get(pid);
+            if (v == null || (v.writers.isEmpty() && v.committed <= snapshot))
+                return null;
+            for (int i = v.times.size() - 1; i >= 0; i--) {
+                if (v.times.get(i) <= snapshot)
+                    return v.images.get(i);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Complete a transaction: a read-only transaction releases its snapshot,
+     * and the pages other transactions modified are committed (once no other
+     * transaction is modifying them).
+     */
+    public synchronized void transactionComplete(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            return;
+        HashSet<PageId> pids = written.remove(tid);
+        if (pids == null)
+            return;
+        long time = ++clock;
+        for (PageId pid : pids) {
+            Versions v = pages.get(pid);
+            v.writers.remove(tid);
+            if (!v.writers.isEmpty())
+                continue;
+            v.committed = time;
+            // any snapshot started from now on reads the page itself
+            if (snapshots.isEmpty())
+                pages.remove(pid);
+        }
+    }
+
+    /**
+     * Drop the versions of pages that no running snapshot reads anymore.
+     */
+    public synchronized void collect() {
+        long oldest = Long.MAX_VALUE;
+        for (long snapshot : snapshots.values())
+            oldest = Math.min(oldest, snapshot);
+        for (Iterator<Versions> it = pages.values().iterator(); it.hasNext();) {
+            Versions v = it.next();
+            // a version is needed until every snapshot reads a later one;
+            // while the page is being modified, the last committed version
+            // is needed by the snapshots still to start
+            int keep = v.writers.isEmpty() ? 0 : 1;
+            int drop = 0;
+            while (drop < v.times.size() - keep) {
+                long next = drop + 1 < v.times.size() ? v.times.get(drop + 1)
+                        : v.writers.isEmpty() ? v.committed : Long.MAX_VALUE;
+                if (next > oldest)
+                    break;
+                drop++;
+            }
+            v.images.subList(0, drop).clear();
+            v.times.subList(0, drop).clear();
+            if (v.images.isEmpty() && v.writers.isEmpty())
+                it.remove();
+        }
+    }
+
+    /** @return the number of earlier versions of pages kept */
+    public synchronized int numVersions() {
+        int n = 0;
+        for (Versions v : pages.values())
+            n += v.images.size();
+        return n;
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * StatementCache keeps the parsed logical plans of queries, by their
+ * normalized text, along with the decisions the optimizer made for them (see
+ * {@link LogicalPlan#replan}). Running a cached query again skips the parser
+ * and, as long as the table statistics are the same, the optimizer too.
+ * <p>
+ * A plan is dropped when the catalog changes, since its table names may now
+ * refer to other tables. When statistics are replaced (e.g. after a table is
+ * re-analyzed), the plan is kept but optimized again the next time it is
+ * built. The least recently used plans are dropped when the cache is full.
+ */
+public class StatementCache {
+
+    /** the number of plans kept by default */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** A cached query */
+    public static class Entry {
+        private final String sql;
+        private final LogicalPlan plan;
+        private final int catalogVersion;
+        /** the statistics the plan was optimized with; -1 if never */
+        private int statsVersion = -1;
+
+        /**
+         * @param sql
+         *            the normalized text of the query
+         * @param plan
+         *            its logical plan, which must be replannable
+         */
+        public Entry(String sql, LogicalPlan plan) {
+            this.sql = sql;
+            this.plan = plan;
+            this.catalogVersion = Database.getCatalog().getVersion();
+        }
+
+        /** @return the normalized text of the query */
+        public String getSql() {
+            return sql;
+        }
+
+        public LogicalPlan getLogicalPlan() {
+            return plan;
+        }
+
+        /** @return true if the catalog didn't change since the query was parsed */
+        public boolean isValid() {
+            return catalogVersion == Database.getCatalog().getVersion();
+        }
+
+        /**
+         * Build a physical plan for the query, optimizing it only if it was
+         * never optimized or the statistics changed since.
+         *
+         * @param parameters
+         *            the values of the parameters
+         * @param out
+         *            where the plan is explained, for the session running it
+         */
+        public synchronized DbIterator physicalPlan(TransactionId tid,
+                String[] parameters, boolean explain, PrintStream out)
+                throws ParsingException {
+            int stats = TableStats.getVersion();
+            if (stats == statsVersion)
+                return plan.replan(tid, parameters);
+            plan.setOutput(out);
+            DbIterator physicalPlan = plan.physicalPlan(tid,
+                    TableStats.getStatsMap(), explain, parameters);
+            statsVersion = stats;
+            return physicalPlan;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    public StatementCache(final int capacity) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the text of a statement with its whitespace (outside of string
+     *         constants) collapsed, ending with a single ';'
+     */
+    public static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length() + 1);
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0)
+                sb.append(' ');
+            space = false;
+            sb.append(c);
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+            end--;
+        sb.setLength(end);
+        return sb.append(';').toString();
+    }
+
+    /**
+     * @return the cached query with the (normalized) text sql, or null if
+     *         there is none, or it was parsed before the catalog changed
+     */
+    public synchronized Entry get(String sql) {
+        Entry e = entries.get(sql);
+        if (e != null && !e.isValid()) {
+            entries.remove(sql);
+            e = null;
+        }
+        return e;
+    }
+
+    /**
+     * Cache a query, replacing the one with the same text.
+     *
+     * @return e
+     */
+    public synchronized Entry put(Entry e) {
+        entries.put(e.getSql(), e);
+        return e;
+    }
+
+    /** @return the number of cached queries */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Drop every cached query */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -1,38 +1,313 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
  * 
+ * Statistics are saved next to the catalog (see
+ * {@link Catalog#getStatsFile}) and loaded on first use by
+ * {@link #getTableStats}. Inserts and deletes going through the BufferPool
+ * update them incrementally; once a table has changed by more than
+ * STALENESS_THRESHOLD of its size it is re-analyzed in the background.
+ * 
  * This class is not needed in implementing proj1 and proj2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /**
+     * incremented whenever the statistics of a table are replaced (e.g.
+     * re-analyzed), but not when they are first loaded or updated
+     * incrementally
+     */
+    private static final AtomicInteger version = new AtomicInteger(0);
+
     static final int IOCOSTPERPAGE = 1000;
     private int numTuples = 0;
     private int ioCost = IOCOSTPERPAGE;
-    private HeapFile targetTable;
+    private final int tableId;
+    private transient HeapFile targetTable;
+    private int analyzedPages;
+    private int modifications = 0;
+    private transient boolean reanalyzing = false;
     private TupleDesc tableTD;
-    private HashMap<Integer,Integer[]> intStats;
-    private HashMap<Integer, IntHistogram> intHists;
-    private HashMap<Integer, StringHistogram> stringHists;
+    private HashMap<Integer, EquiDepthHistogram<Integer>> intHists;
+    private HashMap<Integer, EquiDepthHistogram<String>> stringHists;
+    private HyperLogLog[] sketches;
+    private long[] sampledDistinct;
     
+    /**
+     * Fraction of a table that has to change (through inserts and deletes)
+     * before its statistics are considered stale and re-analyzed.
+     */
+    static final double STALENESS_THRESHOLD = 0.2;
+
+    /**
+     * Tables smaller than this are not re-analyzed before this many tuples
+     * have changed, however large a fraction of the table that is.
+     */
+    static final int MIN_STALE_MODIFICATIONS = 500;
+
+    /**
+     * The size of the data file is only compared with the analyzed size
+     * once every this many changes, since every look at it is a system call.
+     */
+    static final int PAGE_CHECK_INTERVAL = 256;
+
+    private static ExecutorService analyzer;
+
+    /**
+     * Return the statistics of a table. If they are not in memory yet they
+     * are read from the table's stats file, or computed (and saved) if there
+     * is no usable stats file.
+     * 
+     * @param tablename
+     *            the name of the table
+     * @return the statistics, or null if there is no such table
+     */
     public static TableStats getTableStats(String tablename) {
-        return statsMap.get(tablename);
+        TableStats s = statsMap.get(tablename);
+        if (s == null) {
+            s = loadStatistics(tablename);
+            if (s != null) {
+                TableStats prev = statsMap.putIfAbsent(tablename, s);
+                if (prev != null)
+                    s = prev;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Read the statistics of a table from its stats file, analyzing the
+     * table if the file is missing or unreadable.
+     */
+    private static TableStats loadStatistics(String tablename) {
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tablename);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        File f = Database.getCatalog().getStatsFile(tableid);
+        if (f != null && f.exists()) {
+            try {
+                ObjectInputStream in = new ObjectInputStream(
+                        new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    TableStats s = (TableStats) in.readObject();
+                    if (s.tableId == tableid
+                            && s.tableTD.equals(Database.getCatalog().getTupleDesc(tableid))) {
+                        s.checkStaleness(true);
+                        return s;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable stats file " + f + ": " + e);
+            } catch (ClassNotFoundException e) {
+                System.out.println("Ignoring unreadable stats file " + f + ": " + e);
+            }
+        }
+        TableStats s = new TableStats(tableid, IOCOSTPERPAGE, sampleRate);
+        s.save();
+        return s;
+    }
+
+    /**
+     * Write these statistics to the table's stats file. Does nothing if the
+     * catalog has no place to keep stats files.
+     */
+    public void save() {
+        File f = Database.getCatalog().getStatsFile(this.tableId);
+        if (f == null)
+            return;
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                synchronized (this) {
+                    out.writeObject(this);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f))
+                    throw new IOException("cannot rename " + tmp + " to " + f);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to save stats file " + f + ": " + e);
+        }
+    }
+
+    /**
+     * Save the statistics of every table that has been loaded.
+     */
+    public static void saveStatistics() {
+        for (TableStats s : statsMap.values()) {
+            s.save();
+        }
+    }
+
+    /**
+     * Update the statistics of a table, if they are loaded, after a tuple
+     * has been inserted into it.
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+        if (s != null)
+            s.addTuple(t);
+    }
+
+    /**
+     * Update the statistics of a table, if they are loaded, after a tuple
+     * has been deleted from it.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+        if (s != null)
+            s.removeTuple(t);
+    }
+
+    private synchronized void addTuple(Tuple t) {
+        this.numTuples += 1;
+        for (int i = 0; i < this.tableTD.numFields(); i++) {
+            Field f = t.getField(i);
+            this.sketches[i].addValue(f);
+            switch (f.getType()) {
+            case INT_TYPE:
+                this.intHists.get(i).addValue(((IntField) f).getValue());
+                break;
+            case STRING_TYPE:
+                this.stringHists.get(i).addValue(((StringField) f).getValue());
+                break;
+            }
+        }
+        this.modifications += 1;
+        checkStaleness(this.modifications % PAGE_CHECK_INTERVAL == 0);
+    }
+
+    private synchronized void removeTuple(Tuple t) {
+        this.numTuples = Math.max(0, this.numTuples - 1);
+        // the NDV sketches cannot forget values; they catch up at the next
+        // analysis
+        for (int i = 0; i < this.tableTD.numFields(); i++) {
+            Field f = t.getField(i);
+            switch (f.getType()) {
+            case INT_TYPE:
+                this.intHists.get(i).removeValue(((IntField) f).getValue());
+                break;
+            case STRING_TYPE:
+                this.stringHists.get(i).removeValue(((StringField) f).getValue());
+                break;
+            }
+        }
+        this.modifications += 1;
+        checkStaleness(this.modifications % PAGE_CHECK_INTERVAL == 0);
+    }
+
+    /**
+     * Schedule a background re-analysis of the table if it has changed too
+     * much since it was last analyzed, either through the incremental updates
+     * or behind our back (e.g. a regenerated data file).
+     * 
+     * @param checkPages
+     *            whether to also compare the size of the data file with the
+     *            size it had when it was analyzed
+     */
+    private synchronized void checkStaleness(boolean checkPages) {
+        if (this.reanalyzing)
+            return;
+        int slack = (int) Math.max(MIN_STALE_MODIFICATIONS,
+                STALENESS_THRESHOLD * this.numTuples);
+        boolean stale = this.modifications > slack;
+        if (!stale && checkPages) {
+            int pageSlack = (int) Math.max(1, STALENESS_THRESHOLD * this.analyzedPages);
+            stale = Math.abs(table().numPages() - this.analyzedPages) > pageSlack;
+        }
+        if (!stale)
+            return;
+        this.reanalyzing = true;
+        final int tableid = this.tableId;
+        final int cost = this.ioCost;
+        final double rate = sampleRate;
+        getAnalyzer().submit(new Runnable() {
+            public void run() {
+                try {
+                    String name = Database.getCatalog().getTableName(tableid);
+                    TableStats fresh = new TableStats(tableid, cost, rate);
+                    setTableStats(name, fresh);
+                    fresh.save();
+                } catch (RuntimeException e) {
+                    // the table may have been dropped in the meantime
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getAnalyzer() {
+        if (analyzer == null) {
+            analyzer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TableStats analyzer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return analyzer;
+    }
+
+    private HeapFile table() {
+        if (this.targetTable == null)
+            this.targetTable = (HeapFile) Database.getCatalog().getDbFile(this.tableId);
+        return this.targetTable;
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
-        statsMap.put(tablename, stats);
+        if (statsMap.put(tablename, stats) != null)
+            version.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever loaded statistics are replaced,
+     *         so that plans optimized with the old ones can be checked
+     */
+    public static int getVersion() {
+        return version.get();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -41,6 +316,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -57,14 +333,57 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Set the fraction of pages that computeStatistics reads from each table.
+     * 
+     * @param rate
+     *            the sample rate, in (0, 1]
+     */
+    public static void setSampleRate(double rate) {
+        if (rate <= 0 || rate > 1)
+            throw new IllegalArgumentException("sample rate must be in (0, 1]");
+        sampleRate = rate;
+    }
+
     public static void computeStatistics() {
+        computeStatistics(sampleRate, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compute statistics for every table in the catalog, analyzing several
+     * tables at the same time.
+     * 
+     * @param rate
+     *            the fraction of the pages to sample from each table
+     * @param threads
+     *            the number of tables to analyze in parallel
+     */
+    public static void computeStatistics(final double rate, int threads) {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
 
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            final int tableid = tableIt.next();
+            pending.add(pool.submit(new Runnable() {
+                public void run() {
+                    TableStats s = new TableStats(tableid, IOCOSTPERPAGE, rate);
+                    setTableStats(Database.getCatalog().getTableName(tableid), s);
+                    s.save();
+                }
+            }));
+        }
+        pool.shutdown();
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
         }
         System.out.println("Done.");
     }
@@ -76,6 +395,24 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Maximum number of tuples kept in the reservoir sample that the
+     * histograms are built from.
+     */
+    static final int SAMPLE_SIZE = 10000;
+
+    /**
+     * Tables with at most this many pages are always analyzed completely.
+     */
+    static final int MIN_SAMPLE_PAGES = 64;
+
+    /**
+     * Default fraction of the pages of a table read by computeStatistics.
+     */
+    static final double DEFAULT_SAMPLE_RATE = 0.1;
+
+    private static double sampleRate = DEFAULT_SAMPLE_RATE;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -87,6 +424,28 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+    	this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a block-level random sample of the
+     * table.
+     * 
+     * Pages that are not cached are read straight from the DbFile rather
+     * than through the BufferPool, so that analyzing a table does not evict
+     * the pages that queries are using; cached pages are used as they are,
+     * so changes that have not been flushed yet are still counted.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO. This doesn't differentiate between
+     *            sequential-scan IO and disk seeks.
+     * @param sampleRate
+     *            The fraction of the pages to read, in (0, 1]. Tables with at
+     *            most MIN_SAMPLE_PAGES pages are always read completely.
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -95,115 +454,169 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
-    	
-    	
-    	//NOTE: important design decision is made in the way we implement the 
-    	// iteration process. If we do tuple by tuple but compute all fields 
-    	// at the same time we take O(n) time but O(n^2) space. If we iterate 
-    	// over each field and then by each tuple, we take O(n^2) time and
-    	// O(n) space. 
-    	
+
+    	// A single pass over the sampled pages feeds one HyperLogLog sketch
+    	// and the min/max of each column, and keeps a reservoir sample of the
+    	// tuples; the histograms are then built from the reservoir, so the
+    	// memory used does not grow with the table.
     	this.ioCost = ioCostPerPage;
+    	this.tableId = tableid;
     	this.targetTable = (HeapFile) Database.getCatalog().getDbFile(tableid);
     	this.tableTD = this.targetTable.getTupleDesc();
-    	this.intStats = new HashMap<Integer,Integer[]>();
-    	this.intHists = new HashMap<Integer,IntHistogram>();
-    	this.stringHists = new HashMap<Integer,StringHistogram>();
-    	
-    	Transaction tran = new Transaction();
-    	tran.start();
-    	DbFileIterator iter = this.targetTable.iterator(tran.getId());
-    	
-    	// first scan through table, compute min and max. Fill in stringHist
-    	try {
-			iter.open();
-			while(iter.hasNext()){
-				Tuple tup = iter.next();
-				for(int i=0;i<this.tableTD.numFields();i++){
-					Field f = tup.getField(i);
-					Type fieldType = f.getType();
-					switch(fieldType){
-					case INT_TYPE:
-
-						Integer[] minAndMax = new Integer[2];
-						int fieldValue = ((IntField) f).getValue();
-						if(!this.intStats.containsKey(i)){
-							minAndMax[0] = fieldValue;
-							minAndMax[1] = fieldValue;
-						}else{
-							Integer min = this.intStats.get(i)[0];
-							Integer max = this.intStats.get(i)[1];
-							
-							if(fieldValue<min){
-								min = fieldValue;
-							}
-							if(fieldValue>max){
-								max = fieldValue;
-							}
-							minAndMax[0] = min;
-							minAndMax[1] = max;
-							
-						}
-
-						this.intStats.put(i, minAndMax);
-						break;
-					case STRING_TYPE:
-						StringField s = (StringField) tup.getField(i);
-						StringHistogram h;
-						if(!this.stringHists.containsKey(f)){
-							h = new StringHistogram(NUM_HIST_BINS); 
-							
-						}else{
-							h = this.stringHists.get(i);
-						}
-						h.addValue( ( ((StringField) f).getValue()));
-						this.stringHists.put(i, h);
-						break;
-					default:
-						System.out.println("Unsupported Field Type");
-						break;
-					}
+    	this.intHists = new HashMap<Integer,EquiDepthHistogram<Integer>>();
+    	this.stringHists = new HashMap<Integer,EquiDepthHistogram<String>>();
+    	this.sketches = new HyperLogLog[this.tableTD.numFields()];
+    	this.sampledDistinct = new long[this.tableTD.numFields()];
+    	for (int i = 0; i < this.sketches.length; i++) {
+    		this.sketches[i] = new HyperLogLog();
+    	}
+    	Field[] mins = new Field[this.tableTD.numFields()];
+    	Field[] maxs = new Field[this.tableTD.numFields()];
+
+    	ArrayList<Tuple> sample = new ArrayList<Tuple>();
+    	Random rand = new Random(tableid);
+
+    	int numPages = this.targetTable.numPages();
+    	this.analyzedPages = numPages;
+    	int[] pages = choosePages(numPages, sampleRate, rand);
+    	int seen = 0;
+    	for (int pgNo : pages) {
+    		// read from the data file rather than the buffer pool: cached
+    		// pages may be changed by writers while they are scanned here,
+    		// and committed pages have been flushed
+    		HeapPage page = (HeapPage) this.targetTable.readPage(new HeapPageId(tableid, pgNo));
+    		if (page == null) {
+    			continue;
+    		}
+    		Iterator<Tuple> it = page.iterator();
+    		while (it.hasNext()) {
+    			Tuple tup = it.next();
+    			for (int i = 0; i < this.tableTD.numFields(); i++) {
+    				Field f = tup.getField(i);
+    				this.sketches[i].addValue(f);
+    				if (mins[i] == null || f.compare(Predicate.Op.LESS_THAN, mins[i])) {
+    					mins[i] = f;
+    				}
+    				if (maxs[i] == null || f.compare(Predicate.Op.GREATER_THAN, maxs[i])) {
+    					maxs[i] = f;
+    				}
+    			}
+    			seen += 1;
+
+    			// reservoir sampling: every tuple ends up in the sample
+    			// with probability SAMPLE_SIZE/seen
+    			if (sample.size() < SAMPLE_SIZE) {
+    				sample.add(tup);
+    			} else {
+    				int slot = rand.nextInt(seen);
+    				if (slot < SAMPLE_SIZE) {
+    					sample.set(slot, tup);
+    				}
+    			}
+    		}
+    	}
+    	boolean sampled = pages.length < numPages;
+    	if (sampled && pages.length > 0) {
+    		this.numTuples = (int) Math.round((double) seen * numPages / pages.length);
+    	} else {
+    		this.numTuples = seen;
+    	}
+
+		for (int i = 0; i < this.tableTD.numFields(); i++) {
+			switch (this.tableTD.getFieldType(i)) {
+			case INT_TYPE:
+				ArrayList<Integer> ints = new ArrayList<Integer>(sample.size());
+				for (Tuple t : sample) {
+					ints.add(((IntField) t.getField(i)).getValue());
 				}
-				this.numTuples += 1;
-			}
-			iter.rewind();
-			
-			// second iteration to actually populate intHistogram
-			
-			while(iter.hasNext()){
-				Tuple tup = iter.next();
-				for(Entry<Integer, Integer[]> fieldStats:this.intStats.entrySet()){
-					int min = fieldStats.getValue()[0];
-					int max = fieldStats.getValue()[1];
-					
-					IntHistogram h; 
-					if(!this.intHists.containsKey(fieldStats.getKey())){
-						h = new IntHistogram(NUM_HIST_BINS,min,max);
-					} else {
-						h = this.intHists.get(fieldStats.getKey());
-					}
-					int v = ((IntField) tup.getField(fieldStats.getKey())).getValue();
-					
-					h.addValue(v);
-					this.intHists.put(fieldStats.getKey(), h);
+				Collections.sort(ints);
+				this.sampledDistinct[i] = sampled ? scaleDistinct(ints, this.numTuples) : 0;
+				EquiDepthHistogram<Integer> ih = new EquiDepthHistogram<Integer>(NUM_HIST_BINS,
+						EquiDepthHistogram.DEFAULT_MCVS, ints, this.numTuples, this.numDistinctValues(i));
+				if (mins[i] != null) {
+					ih.extendRange(((IntField) mins[i]).getValue(), ((IntField) maxs[i]).getValue());
+				}
+				this.intHists.put(i, ih);
+				break;
+			case STRING_TYPE:
+				ArrayList<String> strings = new ArrayList<String>(sample.size());
+				for (Tuple t : sample) {
+					strings.add(((StringField) t.getField(i)).getValue());
+				}
+				Collections.sort(strings);
+				this.sampledDistinct[i] = sampled ? scaleDistinct(strings, this.numTuples) : 0;
+				EquiDepthHistogram<String> sh = new EquiDepthHistogram<String>(NUM_HIST_BINS,
+						EquiDepthHistogram.DEFAULT_MCVS, strings, this.numTuples, this.numDistinctValues(i));
+				if (mins[i] != null) {
+					sh.extendRange(((StringField) mins[i]).getValue(), ((StringField) maxs[i]).getValue());
 				}
+				this.stringHists.put(i, sh);
+				break;
+			default:
+				System.out.println("Unsupported Field Type");
+				break;
 			}
-
-			iter.close();
-
-	    	tran.commit();
-		} catch (DbException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (TransactionAbortedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			
-			e.printStackTrace();
 		}
-    	
+    }
+
+    /**
+     * Pick the pages to read for a block-level sample of a table.
+     * 
+     * @return the sorted page numbers, so that the sample is read in file
+     *         order
+     */
+    private static int[] choosePages(int numPages, double sampleRate, Random rand) {
+    	int want = (int) Math.ceil(numPages * sampleRate);
+    	if (sampleRate >= 1.0 || numPages <= MIN_SAMPLE_PAGES) {
+    		want = numPages;
+    	}
+    	want = Math.min(numPages, Math.max(want, MIN_SAMPLE_PAGES));
+    	int[] pages = new int[want];
+    	if (want == numPages) {
+    		for (int i = 0; i < numPages; i++) {
+    			pages[i] = i;
+    		}
+    		return pages;
+    	}
+    	// selection sampling (Knuth's algorithm S) yields sorted page numbers
+    	int chosen = 0;
+    	for (int i = 0; i < numPages && chosen < want; i++) {
+    		if (rand.nextInt(numPages - i) < want - chosen) {
+    			pages[chosen++] = i;
+    		}
+    	}
+    	return pages;
+    }
+
+    /**
+     * Scale the number of distinct values seen in a sample up to the whole
+     * table with the GEE estimator: values seen more than once are assumed
+     * to be all there is of them, values seen exactly once stand for
+     * sqrt(N/n) values each.
+     * 
+     * @param sorted
+     *            the sampled values of a column, sorted
+     * @param total
+     *            the estimated number of tuples in the table
+     */
+    private static <T extends Comparable<T>> long scaleDistinct(List<T> sorted, int total) {
+    	if (sorted.isEmpty()) {
+    		return 0;
+    	}
+    	long distinct = 0, singles = 0;
+    	int run = 0;
+    	for (int i = 0; i < sorted.size(); i++) {
+    		run++;
+    		if (i == sorted.size() - 1 || sorted.get(i).compareTo(sorted.get(i + 1)) != 0) {
+    			distinct++;
+    			if (run == 1) {
+    				singles++;
+    			}
+    			run = 0;
+    		}
+    	}
+    	double scale = Math.sqrt((double) total / sorted.size());
+    	return Math.round(scale * singles + (distinct - singles));
     }
 
     /**
@@ -220,7 +633,7 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return this.targetTable.numPages()*this.ioCost;
+        return table().numPages()*this.ioCost;
     }
 
     /**
@@ -250,7 +663,31 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+    	double eq = 1.0 / Math.max(1, this.numDistinctValues(field));
+    	switch (op) {
+    	case EQUALS:
+    	case LIKE:
+    		return eq;
+    	case NOT_EQUALS:
+    		return 1.0 - eq;
+    	default:
+    		// on average half of the remaining values fall on either side
+    		return (1.0 - eq) / 2;
+    	}
+    }
+
+    /**
+     * Estimate the number of distinct values of a field, from its
+     * HyperLogLog sketch.
+     *
+     * @param field
+     *        the index of the field
+     * @return the estimated number of distinct values, never more than the
+     *         number of tuples in the table
+     */
+    public int numDistinctValues(int field) {
+    	long ndv = Math.max(this.sketches[field].estimate(), this.sampledDistinct[field]);
+    	return (int) Math.min(ndv, this.numTuples);
     }
 
     /**
@@ -266,16 +703,16 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
     	Type fieldType = this.tableTD.getFieldType(field);
     	// find field
     	switch(fieldType){
     	case INT_TYPE:
-    		IntHistogram h = this.intHists.get(field);
+    		EquiDepthHistogram<Integer> h = this.intHists.get(field);
     		return h.estimateSelectivity(op, ((IntField) constant).getValue());
     	case STRING_TYPE:
-    		StringHistogram s = this.stringHists.get(field);
+    		EquiDepthHistogram<String> s = this.stringHists.get(field);
     		return s.estimateSelectivity(op, ((StringField) constant).getValue());
     	default:
     		System.out.println("Unsupported Type");
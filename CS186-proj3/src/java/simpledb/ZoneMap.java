@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A ZoneMap keeps the minimum and maximum value of every field on each page of
+ * a {@link HeapFile}, so that a scan with a predicate can skip the pages on
+ * which no tuple can satisfy it (see {@link #mightMatch}).
+ * <p>
+ * The zone map of a file is stored in a sidecar file next to it (the data
+ * file's name with ".zm" appended). The sidecar starts with the size of an
+ * entry and the length of the data file it describes, followed by one
+ * fixed-size entry per page: a state byte (unknown, known or empty), then
+ * the minimum and maximum of each field in the order of the TupleDesc,
+ * serialized like the fields themselves. While pages of the data file are
+ * being written, the sidecar records no length, so a sidecar that doesn't
+ * match the data file's length is rebuilt rather than trusted.
+ * <p>
+ * Zone maps only ever have to be conservative: a page whose zone is unknown
+ * or wider than its contents is simply read. Deletes therefore leave the
+ * zone alone, and inserts widen it in memory until the page is written out,
+ * at which point {@link #update} recomputes it from the page; the sidecar
+ * is brought up to date once the write completes (see {@link #endWrite}).
+ */
+public class ZoneMap {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte KNOWN = 1;
+    private static final byte EMPTY = 2;
+
+    /** the entry size and the data file length at the start of the sidecar */
+    private static final int HEADER = 12;
+
+    private final File file;
+    private final TupleDesc td;
+    private final int entrySize;
+    /** the zone of each page; null if unknown, min and max null if empty */
+    private final ArrayList<Zone> zones = new ArrayList<Zone>();
+    /** the sidecar, kept open once it has been written */
+    private RandomAccessFile sidecar;
+    /** the pages whose zones changed since they were written to the sidecar */
+    private final BitSet changed = new BitSet();
+    /** the number of writes of the data file in progress */
+    private int writing = 0;
+
+    private static class Zone {
+        Field[] min;
+        Field[] max;
+    }
+
+    private ZoneMap(File file, TupleDesc td) {
+        this.file = file;
+        this.td = td;
+        int size = 1;
+        for (int j = 0; j < td.numFields(); j++)
+            size += 2 * td.getFieldType(j).getLen();
+        this.entrySize = size;
+    }
+
+    /**
+     * @return the sidecar file holding the zone map of a data file
+     */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".zm");
+    }
+
+    /**
+     * Load the zone map of a heap file from its sidecar. If there is no
+     * sidecar, or it doesn't describe the data file as it is, the zone map
+     * is rebuilt by reading every page of the file from disk. The sidecar of
+     * a file in the temporary directory is deleted when the JVM exits.
+     *
+     * @param hf
+     *            the file to load the zone map of; it must be in the catalog
+     * @return the zone map of hf
+     */
+    public static ZoneMap load(HeapFile hf) throws IOException {
+        ZoneMap zm = new ZoneMap(sidecarFor(hf.getFile()), hf.getTupleDesc());
+        if (isTemporary(hf.getFile()))
+            zm.file.deleteOnExit();
+        long length = hf.getFile().length();
+        if (zm.file.exists() && zm.read(length))
+            return zm;
+
+        zm.zones.clear();
+        for (int i = 0; i < length / BufferPool.PAGE_SIZE; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            zm.set(i, page == null ? null : page.iterator());
+        }
+        zm.write(length);
+        return zm;
+    }
+
+    /** @return true if a data file is in the temporary directory */
+    private static boolean isTemporary(File dataFile) {
+        File tmp = new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile();
+        return tmp.equals(dataFile.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Read the sidecar; returns false if it was written for another schema
+     * or another length of the data file
+     */
+    private boolean read(long dataLength) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (dis.readInt() != entrySize || dis.readLong() != dataLength)
+                return false;
+            int pages = (int) ((file.length() - HEADER) / entrySize);
+            for (int i = 0; i < pages; i++) {
+                byte state = dis.readByte();
+                Zone z = state == UNKNOWN ? null : new Zone();
+                if (state == KNOWN) {
+                    z.min = new Field[td.numFields()];
+                    z.max = new Field[td.numFields()];
+                }
+                for (int j = 0; j < td.numFields(); j++) {
+                    Type type = td.getFieldType(j);
+                    if (state == KNOWN) {
+                        z.min[j] = type.parse(dis);
+                        z.max[j] = type.parse(dis);
+                    } else {
+                        dis.skipBytes(2 * type.getLen());
+                    }
+                }
+                zones.add(z);
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } catch (java.text.ParseException e) {
+            return false;
+        } finally {
+            dis.close();
+        }
+    }
+
+    private RandomAccessFile sidecar() throws IOException {
+        if (sidecar == null)
+            sidecar = new RandomAccessFile(file, "rw");
+        return sidecar;
+    }
+
+    /** Write the whole sidecar, for a data file of the specified length */
+    private void write(long dataLength) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                HEADER + zones.size() * entrySize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(entrySize);
+        dos.writeLong(dataLength);
+        for (int i = 0; i < zones.size(); i++)
+            dos.write(encode(zones.get(i)));
+        dos.flush();
+        RandomAccessFile raf = sidecar();
+        raf.seek(0);
+        raf.write(baos.toByteArray());
+        raf.setLength(baos.size());
+        changed.clear();
+    }
+
+    /** @return the sidecar entry of a zone */
+    private byte[] encode(Zone z) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(entrySize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        if (z == null || z.min == null) {
+            dos.writeByte(z == null ? UNKNOWN : EMPTY);
+            dos.write(new byte[entrySize - 1]);
+        } else {
+            dos.writeByte(KNOWN);
+            for (int j = 0; j < td.numFields(); j++) {
+                z.min[j].serialize(dos);
+                z.max[j].serialize(dos);
+            }
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Note that pages of the data file are about to be written. Until the
+     * matching {@link #endWrite}, the sidecar records no data file length,
+     * so it is rebuilt if the process stops before it is brought up to date.
+     */
+    public synchronized void beginWrite() throws IOException {
+        if (writing++ > 0)
+            return;
+        RandomAccessFile raf = sidecar();
+        raf.seek(4);
+        raf.writeLong(-1);
+    }
+
+    /**
+     * Note that a write of pages of the data file has completed, after
+     * their zones were updated; once no other write is in progress, the
+     * zones that changed are written to the sidecar.
+     *
+     * @param dataLength
+     *            the length of the data file
+     */
+    public synchronized void endWrite(long dataLength) throws IOException {
+        if (--writing > 0)
+            return;
+        RandomAccessFile raf = sidecar();
+        if (raf.length() < HEADER + (long) zones.size() * entrySize) {
+            write(dataLength);
+            return;
+        }
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            raf.seek(HEADER + (long) i * entrySize);
+            raf.write(encode(zones.get(i)));
+        }
+        changed.clear();
+        raf.seek(4);
+        raf.writeLong(dataLength);
+    }
+
+    /** Set the zone of page i to exactly cover the specified tuples */
+    private void set(int i, Iterator<Tuple> tuples) {
+        while (zones.size() <= i)
+            zones.add(null);
+        if (tuples == null) {
+            zones.set(i, null);
+            return;
+        }
+        zones.set(i, new Zone());
+        while (tuples.hasNext())
+            widen(i, tuples.next());
+    }
+
+    /**
+     * Recompute the zone of a page from its contents; called when the page
+     * is written to disk. The sidecar is updated by {@link #endWrite}.
+     */
+    public synchronized void update(HeapPage page) {
+        int i = page.getId().pageNumber();
+        set(i, page.iterator());
+        changed.set(i);
+    }
+
+    /**
+     * Widen the zone of page i so that it covers t; called when t is inserted
+     * on that page. This only changes the zone in memory.
+     */
+    public synchronized void widen(int i, Tuple t) {
+        if (i >= zones.size())
+            return; // not known yet, so it won't be skipped
+        Zone z = zones.get(i);
+        if (z == null)
+            return;
+        if (z.min == null) {
+            z.min = new Field[td.numFields()];
+            z.max = new Field[td.numFields()];
+            for (int j = 0; j < td.numFields(); j++) {
+                z.min[j] = t.getField(j);
+                z.max[j] = t.getField(j);
+            }
+            return;
+        }
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (f.compare(Predicate.Op.LESS_THAN, z.min[j]))
+                z.min[j] = f;
+            if (f.compare(Predicate.Op.GREATER_THAN, z.max[j]))
+                z.max[j] = f;
+        }
+    }
+
+    /**
+     * Forget the zone of page i, e.g. because it was changed while the zone
+     * map was not being maintained.
+     */
+    public synchronized void invalidate(int i) {
+        if (i < zones.size()) {
+            zones.set(i, null);
+            changed.set(i);
+        }
+    }
+
+    /**
+     * @return false if no tuple on page i can satisfy p, true if some might
+     */
+    public synchronized boolean mightMatch(int i, Predicate p) {
+        if (i >= zones.size() || zones.get(i) == null)
+            return true;
+        Zone z = zones.get(i);
+        if (z.min == null)
+            return false;
+        return p.mightMatch(z.min[p.getField()], z.max[p.getField()]);
+    }
+
+}
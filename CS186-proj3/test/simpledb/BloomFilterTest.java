@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+    /**
+     * Create a two column table with c0 = i % keys and c1 = i, and compute
+     * its statistics.
+     */
+    private HeapFile createTable(String name, int rows, int keys,
+            HashMap<String, TableStats> stats) throws IOException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i % keys);
+            tuple.add(i);
+            tuples.add(tuple);
+        }
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.PAGE_SIZE, 2);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, name);
+        stats.put(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        return hf;
+    }
+
+    /**
+     * Keys that were added must always pass; other values should mostly not.
+     */
+    @Test public void falsePositives() {
+        BloomFilter bf = new BloomFilter(0, 1000, 0.01, "test");
+        assertTrue(bf.filter(new IntField(5)));
+        bf.clear();
+        assertFalse(bf.filter(new IntField(5)));
+
+        for (int i = 0; i < 1000; i++)
+            bf.add(new IntField(i * 7));
+        int passed = 0;
+        for (int i = 0; i < 7000; i++) {
+            if (i % 7 == 0)
+                assertTrue(bf.filter(new IntField(i)));
+            else if (bf.filter(new IntField(i)))
+                passed++;
+        }
+        assertTrue(passed < 6000 * 0.03);
+
+        // the range of the keys prunes zones that don't overlap it
+        assertTrue(bf.mightMatch(new IntField(-10), new IntField(0)));
+        assertFalse(bf.mightMatch(new IntField(7000), new IntField(8000)));
+    }
+
+    /**
+     * A hash join with a small, filtered build side should push a Bloom
+     * filter into the scan of its probe side, and still return every match.
+     */
+    @Test public void pushedIntoProbeScan() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        createTable("bloomdim", 200, 200, stats);
+        createTable("bloomfact", 5000, 100, stats);
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT f.c1 FROM bloomfact f, bloomdim d "
+                + "WHERE f.c0 = d.c0 AND d.c1 < 20;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+
+        DbIterator node = plan;
+        while (!(node instanceof HashEquiJoin))
+            node = ((Operator) node).getChildren()[0];
+        HashEquiJoin j = (HashEquiJoin) node;
+        BloomFilter bf = j.getBloomFilter();
+        assertNotNull(bf);
+        SeqScan probe = (SeqScan) j.getChildren()[1];
+        assertEquals("f", probe.getAlias());
+        assertTrue(probe.getPredicates().contains(bf));
+
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        // keys 0..19 each appear 50 times in the fact table
+        assertEquals(1000, n);
+
+        // without the filter, the dimension table has every key of the fact table
+        lp = p.generateLogicalPlan(tid, "SELECT f.c1 FROM bloomfact f, bloomdim d "
+                + "WHERE f.c0 = d.c0;");
+        node = lp.physicalPlan(tid, stats, false);
+        while (!(node instanceof HashEquiJoin))
+            node = ((Operator) node).getChildren()[0];
+        assertNull(((HashEquiJoin) node).getBloomFilter());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BloomFilterTest.class);
+    }
+}
@@ -0,0 +1,248 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 16;
+
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertTrue(hf.numPages() > 2 * POOL_PAGES);
+    }
+
+    /** A page used between passes of the clock hand stays in the pool */
+    @Test public void clock() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        HeapPageId hot = new HeapPageId(hf.getId(), 0);
+        for (int i = 1; i < hf.numPages(); i++) {
+            pool.releasePage(pool.getPage(tid, hot, Permissions.READ_ONLY));
+            pool.releasePage(pool.getPage(tid, new HeapPageId(hf.getId(), i),
+                    Permissions.READ_ONLY));
+            assertTrue(pool.numCachedPages() <= POOL_PAGES);
+        }
+        assertNotNull(pool.peekPage(hot));
+        assertTrue(pool.peekPage(new HeapPageId(hf.getId(), 1)) == null);
+    }
+
+    /** Threads reading the same pages get the same copies, and stay within the pool */
+    @Test public void concurrent() throws Exception {
+        final BufferPool pool = Database.getBufferPool();
+        final int pages = hf.numPages();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < 4000; j++) {
+                            // half the reads go to a few pages every thread shares
+                            int n = j % 2 == 0 ? j % 4 : (j * 31 + seed * 7) % pages;
+                            HeapPageId pid = new HeapPageId(hf.getId(), n);
+                            Page p = pool.getPage(tid, pid, Permissions.READ_ONLY);
+                            if (!p.getId().equals(pid))
+                                throw new AssertionError("read page " + p.getId().pageNumber()
+                                        + " for page " + n);
+                            pool.releasePage(p);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new RuntimeException(error.get());
+        assertTrue(pool.numCachedPages() <= POOL_PAGES);
+
+        // the table still scans whole
+        SeqScan scan = new SeqScan(new TransactionId(), hf.getId());
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(20000, n);
+        for (int i = 0; i < pages; i++)
+            assertEquals(0, pool.numPins(new HeapPageId(hf.getId(), i)));
+    }
+
+    /** Pinned pages aren't evicted, and a pool full of them can't read more */
+    @Test public void pins() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        ArrayList<Page> pinned = new ArrayList<Page>();
+        for (int i = 0; i < POOL_PAGES; i++)
+            pinned.add(pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+        HeapPageId next = new HeapPageId(hf.getId(), POOL_PAGES);
+        try {
+            pool.getPage(tid, next, Permissions.READ_ONLY);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(POOL_PAGES, pool.numCachedPages());
+        assertTrue(pool.peekPage(next) == null);
+
+        // a page pinned twice must be released twice
+        Page first = pinned.get(0);
+        assertTrue(first == pool.getPage(tid, first.getId(), Permissions.READ_ONLY));
+        assertEquals(2, pool.numPins(first.getId()));
+        pool.releasePage(first);
+        pool.releasePage(tid, first.getId());
+        assertEquals(0, pool.numPins(first.getId()));
+        pool.releasePage(pool.getPage(tid, next, Permissions.READ_ONLY));
+        assertTrue(pool.peekPage(first.getId()) == null);
+        for (int i = 1; i < POOL_PAGES; i++)
+            assertTrue(pool.peekPage(pinned.get(i).getId()) == pinned.get(i));
+    }
+
+    /**
+     * A pool full of pinned pages can't read more even while other threads
+     * keep using them, which sets their reference bits again.
+     */
+    @Test(timeout = 20000) public void pinsInUse() throws Exception {
+        final BufferPool pool = Database.getBufferPool();
+        final TransactionId tid = new TransactionId();
+        final ArrayList<Page> pinned = new ArrayList<Page>();
+        for (int i = 0; i < POOL_PAGES; i++)
+            pinned.add(pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY));
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread[] users = new Thread[4];
+        for (int n = 0; n < users.length; n++) {
+            final int first = n;
+            users[n] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = first; !done.get(); i = (i + 1) % POOL_PAGES)
+                            pool.releasePage(pool.getPage(tid, pinned.get(i).getId(),
+                                    Permissions.READ_ONLY));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            users[n].start();
+        }
+        try {
+            for (int i = 0; i < 200; i++) {
+                try {
+                    pool.getPage(tid, new HeapPageId(hf.getId(), POOL_PAGES), Permissions.READ_ONLY);
+                    fail("expected a DbException");
+                } catch (DbException e) {
+                    // expected
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread user : users)
+                user.join();
+        }
+        for (Page p : pinned)
+            pool.releasePage(p);
+    }
+
+    /** A scan keeps only the page it is reading pinned */
+    @Test public void scan() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        Tuple t = it.next();
+        PageId pid = t.getRecordId().getPageId();
+        assertEquals(1, pool.numPins(pid));
+        while (it.hasNext() && it.next().getRecordId().getPageId().equals(pid))
+            ;
+        assertEquals(0, pool.numPins(pid));
+        it.close();
+        for (int i = 0; i < hf.numPages(); i++)
+            assertEquals(0, pool.numPins(new HeapPageId(hf.getId(), i)));
+    }
+
+    /**
+     * Pages are read ahead in runs that leave out the pages already in the
+     * pool, which stay as they are.
+     */
+    @Test public void prefetch() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        Page cached = pool.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_WRITE);
+        cached.markDirty(true, tid);
+        pool.releasePage(cached);
+
+        final ArrayList<Runnable> reads = new ArrayList<Runnable>();
+        pool.prefetchPages(hf.getId(), 0, 5, new Executor() {
+            public void execute(Runnable r) {
+                reads.add(r);
+            }
+        });
+        assertEquals(2, reads.size());
+        for (Runnable r : reads)
+            r.run();
+        for (int i = 0; i < 5; i++)
+            assertNotNull(pool.peekPage(new HeapPageId(hf.getId(), i)));
+        assertTrue(pool.peekPage(cached.getId()) == cached);
+        assertEquals(tid, cached.isDirty());
+        assertEquals(4, pool.getPagesPrefetched());
+    }
+
+    /** Flushing writes the dirty pages out, and leaves them clean and unpinned */
+    @Test public void flushAll() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (int i = 0; i < 4; i++) {
+            HeapPage p = (HeapPage) pool.getPage(tid, new HeapPageId(hf.getId(), i),
+                    Permissions.READ_WRITE);
+            p.deleteTuple(p.iterator().next());
+            p.markDirty(true, tid);
+            dirty.add(p);
+        }
+        // a page still in use is written out too
+        pool.releasePage(dirty.get(0));
+        pool.releasePage(dirty.get(2));
+        pool.flushAllPages();
+        for (Page p : dirty) {
+            assertTrue(p.isDirty() == null);
+            assertArrayEquals(p.getPageData(), hf.readPage(p.getId()).getPageData());
+        }
+        assertEquals(0, pool.numPins(dirty.get(0).getId()));
+        assertEquals(1, pool.numPins(dirty.get(1).getId()));
+        pool.releasePage(dirty.get(1));
+        pool.releasePage(dirty.get(3));
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapPageTest extends SimpleDbTestBase {
+
+    private static final String[] GENRES = { "Action", "Comedy", "Drama", "Horror", "Western" };
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "mid", "genre" });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple genre(int mid, String genre) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(mid));
+        t.setField(1, new StringField(genre, Type.STRING_LEN));
+        return t;
+    }
+
+    private HeapFile writeGenres(int n) throws IOException {
+        File txt = File.createTempFile("genre", ".txt");
+        txt.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(txt));
+        for (int i = 0; i < n; i++)
+            bw.write((100000 + i / 3) + "," + GENRES[i % GENRES.length] + "\n");
+        bw.close();
+
+        File dat = File.createTempFile("genre", ".dat");
+        dat.deleteOnExit();
+        HeapFileEncoder.convert(txt, dat, BufferPool.PAGE_SIZE, 2,
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',', HeapFile.Format.COMPRESSED);
+        HeapFile hf = new HeapFile(dat, td, HeapFile.Format.COMPRESSED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * A repetitive table should compress to a small fraction of its
+     * fixed-size pages and read back unchanged.
+     */
+    @Test public void encoder() throws Exception {
+        HeapFile hf = writeGenres(20000);
+        int fixedPages = 20000 / ((BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1)) + 1;
+        assertTrue(hf.numPages() * 10 < fixedPages);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(100000 + i / 3), t.getField(0));
+            assertEquals(new StringField(GENRES[i % GENRES.length], Type.STRING_LEN), t.getField(1));
+            i++;
+        }
+        it.close();
+        assertEquals(20000, i);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Predicates evaluated on the encoded columns, including range
+     * predicates over the dictionary codes, should return the same tuples
+     * as a Filter would.
+     */
+    @Test public void predicate() throws Exception {
+        HeapFile hf = writeGenres(5000);
+        TransactionId tid = new TransactionId();
+
+        Predicate[] ps = {
+                new Predicate(1, Predicate.Op.EQUALS, new StringField("Drama", Type.STRING_LEN)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new StringField("Drama", Type.STRING_LEN)),
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(101000)) };
+        int[] expected = { 1000, 2000, 5000 - 3000 };
+        for (int k = 0; k < ps.length; k++) {
+            DbFileIterator it = hf.iterator(tid, ps[k]);
+            it.open();
+            int n = 0;
+            while (it.hasNext()) {
+                assertTrue(ps[k].filter(it.next()));
+                n++;
+            }
+            it.close();
+            assertEquals(expected[k], n);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts and deletes must survive re-encoding the page.
+     */
+    @Test public void modify() throws Exception {
+        CompressedHeapPage page = new CompressedHeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple[] ts = new Tuple[50];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = genre(i * 7, GENRES[i % 2]);
+            page.insertTuple(ts[i]);
+        }
+        page.deleteTuple(ts[10]);
+
+        CompressedHeapPage copy = new CompressedHeapPage(pid, page.getPageData());
+        assertFalse(copy.isSlotUsed(10));
+        assertTrue(copy.isSlotUsed(11));
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < ts.length; i++) {
+            if (i == 10)
+                continue;
+            Tuple t = it.next();
+            assertEquals(ts[i].getField(0), t.getField(0));
+            assertEquals(ts[i].getField(1), t.getField(1));
+            assertEquals(i, t.getRecordId().tupleno());
+        }
+        assertFalse(it.hasNext());
+
+        // fill the page up; the size estimate must never let it overflow
+        int i = 0;
+        while (copy.hasRoomFor(genre(i * 1000, "Genre " + i)))
+            copy.insertTuple(genre(i * 1000, "Genre " + i++));
+        assertTrue(i > 0);
+        new CompressedHeapPage(pid, copy.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CursorTest extends SimpleDbTestBase {
+
+    /** @return the name of a new table with the given number of rows */
+    private static String createTable(int rows) throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, rows, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        String name = "cur" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+        return name;
+    }
+
+    /**
+     * A cursor returns the results in batches of the fetch size, marking the
+     * last one.
+     */
+    @Test public void batches() throws Exception {
+        Cursor c = new Parser().openCursor("SELECT * FROM " + createTable(250) + " t;", 100);
+        assertEquals(2, c.getTupleDesc().numFields());
+        int[] sizes = { 100, 100, 50 };
+        for (int i = 0; i < sizes.length; i++) {
+            Cursor.Batch b = c.fetch();
+            assertEquals(sizes[i], b.size());
+            assertEquals(i == sizes.length - 1, b.isLast());
+            assertEquals(i == sizes.length - 1, c.isDone());
+        }
+        Cursor.Batch after = c.fetch();
+        assertEquals(0, after.size());
+        assertTrue(after.isLast());
+        c.close();
+
+        // a full last batch is marked too, and fetch can ask for any number
+        c = new Parser().openCursor("SELECT * FROM " + createTable(200) + " t;", 100);
+        assertEquals(30, c.fetch(30).size());
+        assertFalse(c.fetch(70).isLast());
+        assertTrue(c.fetch().isLast());
+        c.close();
+    }
+
+    /**
+     * Batches can be serialized, and keep their values.
+     */
+    @Test public void serializable() throws Exception {
+        Cursor c = new Parser().openCursor("SELECT * FROM " + createTable(50) + " t;", 20);
+        Cursor.Batch b = c.fetch();
+        c.close();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(b);
+        out.close();
+        Cursor.Batch copy = (Cursor.Batch) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(b.size(), copy.size());
+        assertEquals(b.getTupleDesc(), copy.getTupleDesc());
+        for (int i = 0; i < b.size(); i++)
+            assertEquals(b.getTuple(i).toString(), copy.getTuple(i).toString());
+    }
+
+    /**
+     * Only queries can be opened as cursors.
+     */
+    @Test(expected = ParsingException.class) public void notAQuery() throws Exception {
+        new Parser().openCursor("DELETE FROM " + createTable(10) + ";", 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CursorTest.class);
+    }
+}
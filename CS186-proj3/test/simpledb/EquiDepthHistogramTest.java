@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * A heavily skewed column: half of the tuples share a single value. A
+	 * fixed-width histogram smears that value over its bucket; the MCV list
+	 * should report it exactly and keep the other estimates sane.
+	 */
+	@Test public void skewTest() {
+		ArrayList<Integer> sample = new ArrayList<Integer>();
+		for (int c = 0; c < 5000; c++) {
+			sample.add(7);
+		}
+		for (int c = 0; c < 5000; c++) {
+			sample.add(c % 1000);
+		}
+		EquiDepthHistogram<Integer> h = new EquiDepthHistogram<Integer>(100,
+				EquiDepthHistogram.DEFAULT_MCVS, sample, 10000, 1000);
+
+		Assert.assertEquals(7, (int) h.getMostCommonValues().get(0));
+		Assert.assertEquals(0.5005, h.estimateSelectivity(Op.EQUALS, 7), 0.001);
+		Assert.assertEquals(0.0005, h.estimateSelectivity(Op.EQUALS, 500), 0.0005);
+		Assert.assertEquals(0.75, h.estimateSelectivity(Op.LESS_THAN, 500), 0.02);
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 500), 0.02);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 5000), 0.0001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, 5000), 0.0001);
+	}
+
+	/**
+	 * A bucket may span more than Integer.MAX_VALUE values, from
+	 * Integer.MIN_VALUE to positive ones.
+	 */
+	@Test public void wideBucketTest() {
+		ArrayList<Integer> sample = new ArrayList<Integer>();
+		for (int c = 0; c < 100; c++) {
+			sample.add(c % 2 == 0 ? Integer.MIN_VALUE + c : Integer.MAX_VALUE - c);
+		}
+		EquiDepthHistogram<Integer> h = new EquiDepthHistogram<Integer>(1, 0,
+				sample, 100, 100);
+		for (int v : new int[] { -1000000, 0, 1000000, Integer.MAX_VALUE - 200 }) {
+			double lt = h.estimateSelectivity(Op.LESS_THAN, v);
+			Assert.assertTrue(lt >= 0.0 && lt <= 1.0);
+		}
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, 0), 0.05);
+	}
+
+	/**
+	 * Strings are histogrammed on their full value, not just a prefix.
+	 */
+	@Test public void stringTest() {
+		ArrayList<String> sample = new ArrayList<String>();
+		for (int c = 0; c < 1000; c++) {
+			sample.add("prefix" + (c % 100));
+		}
+		EquiDepthHistogram<String> h = new EquiDepthHistogram<String>(10,
+				EquiDepthHistogram.DEFAULT_MCVS, sample, 1000, 100);
+
+		Assert.assertEquals(0.01, h.estimateSelectivity(Op.EQUALS, "prefix42"), 0.005);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, "prefix"), 0.0001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, "prefix0"), 0.0001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, "zzz"), 0.0001);
+	}
+
+	/**
+	 * The HyperLogLog sketch should estimate the number of distinct values
+	 * within a few percent, no matter how many duplicates are added.
+	 */
+	@Test public void distinctValuesTest() {
+		HyperLogLog hll = new HyperLogLog();
+		for (int c = 0; c < 200000; c++) {
+			hll.addValue(c % 20000);
+		}
+		Assert.assertEquals(20000, hll.estimate(), 20000 * 0.1);
+
+		HyperLogLog small = new HyperLogLog();
+		for (int c = 0; c < 1000; c++) {
+			small.addValue("value" + (c % 50));
+		}
+		Assert.assertEquals(50, small.estimate(), 5);
+	}
+}
@@ -3,6 +3,10 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -120,6 +124,37 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Conjuncts should be ordered so that cheap, selective predicates go first
+   */
+  @Test public void orderConjuncts() {
+    Predicate all = new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(-10));
+    Predicate few = new Predicate(1, Predicate.Op.EQUALS, TestUtil.getField(0));
+    Predicate half = new Predicate(2, Predicate.Op.LESS_THAN, TestUtil.getField(0));
+    List<Predicate> ordered = Filter.orderConjuncts(Arrays.asList(all, few, half),
+        Arrays.asList(1.0, 0.1, 0.5), scan.getTupleDesc());
+    assertEquals(Arrays.asList(few, half, all), ordered);
+  }
+
+  /**
+   * An adaptive Filter should move the predicate that rejects most tuples
+   * to the front, without changing its output
+   */
+  @Test public void adaptiveReorder() throws Exception {
+    this.scan = new TestUtil.MockScan(0, 5000, testWidth);
+    Predicate all = new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(-1));
+    Predicate few = new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(10));
+    Filter op = new Filter(Arrays.asList(all, few), scan, true);
+    op.open();
+    TestUtil.compareDbIterators(op, new TestUtil.MockScan(0, 10, testWidth));
+    assertTrue(TestUtil.checkExhausted(op));
+    assertEquals(Arrays.asList(few, all), op.getPredicates());
+
+    op.rewind();
+    TestUtil.compareDbIterators(op, new TestUtil.MockScan(0, 10, testWidth));
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -77,6 +77,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        // more pages than a single read moves
+        int pages = HeapFile.MAX_IO_PAGES + 10;
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        assertEquals(pages, big.numPages());
+        List<Page> read = big.readPages(3, pages);
+        assertEquals(pages - 3, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), i + 3);
+            assertEquals(pid, read.get(i).getId());
+            assertArrayEquals(big.readPage(pid).getPageData(), read.get(i).getPageData());
+        }
+        assertEquals(0, big.readPages(pages, 5).size());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
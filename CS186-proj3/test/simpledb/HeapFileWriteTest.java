@@ -43,6 +43,30 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.writePages()
+     */
+    @Test public void writePages() throws Exception {
+        for (int i = 0; i < 504 * 5; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(5, empty.numPages());
+        // written with writePages as well
+        Database.getBufferPool().flushAllPages();
+
+        // pages 0, 1 and 3 in another order, each with its first tuple deleted
+        java.util.ArrayList<Page> pages = new java.util.ArrayList<Page>();
+        for (int n : new int[] { 3, 0, 1 }) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), n));
+            p.deleteTuple(p.iterator().next());
+            pages.add(p);
+        }
+        empty.writePages(pages);
+        for (int n = 0; n < 5; n++) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), n));
+            assertEquals(n == 2 || n == 4 ? 0 : 1, p.getNumEmptySlots());
+        }
+    }
+
     /**
      * JUnit suite target
      */
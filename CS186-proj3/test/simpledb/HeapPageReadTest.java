@@ -112,6 +112,54 @@ public class HeapPageReadTest extends SimpleDbTestBase {
 //        } catch (UnsupportedOperationException e) {}
 //    }
 
+    /**
+     * Unit test for HeapPage.iterator(List, int[]): predicates are evaluated
+     * on the page data, without parsing the whole page.
+     */
+    @Test public void predicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+                new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(44947)));
+        Iterator<Tuple> it = page.iterator(preds, new int[] { 1 });
+
+        for (int i = 0; i < EXAMPLE_VALUES.length; i++) {
+            int[] tup = EXAMPLE_VALUES[i];
+            if (tup[0] <= 20000 || tup[1] > 44947)
+                continue;
+            Tuple t = it.next();
+            assertEquals(1, t.getTupleDesc().numFields());
+            assertEquals(new IntField(tup[1]), t.getField(0));
+            assertEquals(i, t.getRecordId().tupleno());
+        }
+        assertFalse(it.hasNext());
+        assertNull(page.tuples);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+    }
+
+    /**
+     * A page whose data can't be parsed stays unparsed, and can still be
+     * scanned as far as its data goes.
+     */
+    @Test public void parseFailure() throws Exception {
+        int len = new HeapPage(pid, EXAMPLE_DATA).getHeaderSize() + EXAMPLE_VALUES.length * 8;
+        byte[] truncated = Arrays.copyOf(EXAMPLE_DATA, len);
+        HeapPage page = new HeapPage(pid, truncated);
+        try {
+            page.iterator();
+            fail("expected a NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        assertNull(page.tuples);
+        assertArrayEquals(truncated, page.getPageData());
+
+        Iterator<Tuple> it = page.iterator(null, null);
+        for (int[] tup : EXAMPLE_VALUES)
+            assertEquals(new IntField(tup[0]), it.next().getField(0));
+        assertFalse(it.hasNext());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
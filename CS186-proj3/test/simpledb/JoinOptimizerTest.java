@@ -466,4 +466,196 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		// Make sure that "a" is the outermost table in the join
 		Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a") || result.get(result.size() - 1).t1Alias.equals("a"));
 	}
+
+	/**
+	 * Both bushy and left-deep orderings must list every join after the joins
+	 * that build its two sides; in a left-deep ordering one side of every
+	 * join must be a base table.
+	 */
+	@Test public void bushyOrderJoinsTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		final int IO_COST = 103;
+		String[] names = { "a", "b", "c", "d", "e", "f" };
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		TransactionId tid = new TransactionId();
+
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile first = SystemTestUtil.createRandomHeapFile(2, 200, 100, null, tuples, "c");
+		for (int i = 0; i < names.length; i++) {
+			HeapFile hf = i == 0 ? first : createDuplicateHeapFile(tuples, 2, "c");
+			Database.getCatalog().addTable(hf, names[i]);
+			stats.put(names[i], new TableStats(hf.getId(), IO_COST));
+			// selective filters on both ends of the chain
+			filterSelectivities.put(names[i], i == 2 || i == 3 ? 1.0 : 0.05);
+		}
+
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		for (int i = 0; i < names.length - 1; i++) {
+			nodes.add(new LogicalJoinNode(names[i], names[i + 1], "c" + (i % 2), "c" + (i % 2), Predicate.Op.EQUALS));
+		}
+		Collections.shuffle(nodes);
+
+		Parser p = new Parser();
+		LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT COUNT(a.c0) FROM a, b, c, d, e, f WHERE a.c0 = b.c0 AND b.c1 = c.c1 AND c.c0 = d.c0 AND d.c1 = e.c1 AND e.c0 = f.c0;");
+
+		for (boolean bushy : new boolean[] { true, false }) {
+			JoinOptimizer j = new JoinOptimizer(lp, nodes);
+			j.setBushy(bushy);
+			Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+			Assert.assertEquals(nodes.size(), result.size());
+
+			HashMap<String, String> component = new HashMap<String, String>();
+			for (String name : names) {
+				component.put(name, name);
+			}
+			for (LogicalJoinNode lj : result) {
+				String c1 = component.get(lj.t1Alias), c2 = component.get(lj.t2Alias);
+				Assert.assertFalse(c1.equals(c2));
+				if (!bushy) {
+					Assert.assertTrue(lj.t1Alias.equals(c1) && !hasJoined(component, c1)
+							|| lj.t2Alias.equals(c2) && !hasJoined(component, c2));
+				}
+				for (String name : names) {
+					if (component.get(name).equals(c2))
+						component.put(name, c1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create tables prefix0 .. prefix(n-1) of different sizes, with their
+	 * statistics and filter selectivities.
+	 *
+	 * @return a plan that scans all of them
+	 */
+	private static LogicalPlan createTables(String prefix, int n, HashMap<String, TableStats> stats,
+			HashMap<String, Double> filterSelectivities) throws Exception {
+		StringBuilder sql = new StringBuilder("SELECT * FROM ");
+		for (int i = 0; i < n; i++) {
+			String name = prefix + i;
+			HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 50 + (i * 173) % 600,
+					20 + (i * 37) % 300, null, new ArrayList<ArrayList<Integer>>(), "c");
+			Database.getCatalog().addTable(hf, name);
+			stats.put(name, new TableStats(hf.getId(), 101));
+			filterSelectivities.put(name, i % 3 == 0 ? 0.1 : 1.0);
+			sql.append(i == 0 ? "" : ", ").append(name);
+		}
+		return new Parser().generateLogicalPlan(new TransactionId(), sql.append(";").toString());
+	}
+
+	/** @return a join between tables prefix + i and prefix + j */
+	private static LogicalJoinNode join(String prefix, int i, int j) {
+		return new LogicalJoinNode(prefix + i, prefix + j, "c" + (i % 2), "c" + (j % 2),
+				Predicate.Op.EQUALS);
+	}
+
+	/** @return the joins of a chain, star, cycle or clique over n tables */
+	private static Vector<LogicalJoinNode> graph(String shape, String prefix, int n) {
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				if (shape.equals("clique")
+						|| shape.equals("star") && i == 0
+						|| (shape.equals("chain") || shape.equals("cycle")) && j == i + 1
+						|| shape.equals("cycle") && i == 0 && j == n - 1)
+					nodes.add(join(prefix, i, j));
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * DPccp only considers pairs of connected subgraphs, but must find plans
+	 * as cheap as trying every split of every set of tables, for trees and
+	 * cyclic join graphs alike.
+	 */
+	@Test public void dpMatchesExhaustiveTest() throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		LogicalPlan lp = createTables("dp", 6, stats, filterSelectivities);
+		String[] shapes = { "chain", "star", "cycle", "clique" };
+		for (String shape : shapes) {
+			Vector<LogicalJoinNode> nodes = graph(shape, "dp", shape.equals("clique") ? 5 : 6);
+			for (boolean bushy : new boolean[] { true, false }) {
+				JoinOptimizer j = new JoinOptimizer(lp, nodes);
+				j.setBushy(bushy);
+				CostCard dp = j.planJoins(stats, filterSelectivities);
+				CostCard all = j.planJoinsExhaustively(stats, filterSelectivities);
+				Assert.assertEquals(shape + (bushy ? " bushy" : ""), all.cost, dp.cost, all.cost * 1e-9);
+				// cyclic graphs apply the joins that close a cycle too
+				Assert.assertEquals(nodes.size(), dp.plan.size());
+				Assert.assertEquals(nodes.size(),
+						j.orderJoins(stats, filterSelectivities, false).size());
+			}
+		}
+	}
+
+	/**
+	 * A disconnected join graph is ordered greedily, returning every join.
+	 */
+	@Test public void disconnectedOrderJoinsTest() throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		LogicalPlan lp = createTables("dc", 6, stats, filterSelectivities);
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(join("dc", 0, 1));
+		nodes.add(join("dc", 1, 2));
+		nodes.add(join("dc", 3, 4));
+		nodes.add(join("dc", 4, 5));
+		nodes.add(join("dc", 5, 3));
+		JoinOptimizer j = new JoinOptimizer(lp, nodes);
+		Assert.assertNull(j.planJoinsExhaustively(stats, filterSelectivities));
+		Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(nodes.size(), result.size());
+		Assert.assertTrue(result.containsAll(nodes));
+	}
+
+	/**
+	 * 15-way joins are ordered within milliseconds: a chain with DPccp, and
+	 * a star, whose (15 - 1) * 2^13 csg-cmp pairs exceed MAX_DP_PAIRS, with
+	 * the greedy (GOO) fallback.
+	 */
+	@Test public void fifteenWayOrderJoinsTest() throws Exception {
+		final int n = 15;
+		Assert.assertTrue((n - 1) * (1 << (n - 2)) > JoinOptimizer.MAX_DP_PAIRS);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		LogicalPlan lp = createTables("fw", n, stats, filterSelectivities);
+		for (String shape : new String[] { "chain", "star" }) {
+			Vector<LogicalJoinNode> nodes = graph(shape, "fw", n);
+			for (boolean bushy : new boolean[] { true, false }) {
+				JoinOptimizer j = new JoinOptimizer(lp, nodes);
+				j.setBushy(bushy);
+				long start = System.currentTimeMillis();
+				Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+				long millis = System.currentTimeMillis() - start;
+				Assert.assertTrue(shape + " took " + millis + " ms", millis < 1000);
+				Assert.assertEquals(nodes.size(), result.size());
+
+				// every join comes after the joins that build its two sides
+				HashMap<String, String> component = new HashMap<String, String>();
+				for (int i = 0; i < n; i++) {
+					component.put("fw" + i, "fw" + i);
+				}
+				for (LogicalJoinNode lj : result) {
+					String c1 = component.get(lj.t1Alias), c2 = component.get(lj.t2Alias);
+					Assert.assertFalse(c1.equals(c2));
+					for (int i = 0; i < n; i++) {
+						if (component.get("fw" + i).equals(c2))
+							component.put("fw" + i, c1);
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean hasJoined(HashMap<String, String> component, String c) {
+		int members = 0;
+		for (String v : component.values()) {
+			if (v.equals(c))
+				members++;
+		}
+		return members > 1;
+	}
 }
@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MaterializedViewTest extends SimpleDbTestBase {
+
+    private String table;
+    private int tableId;
+    private Parser parser;
+
+    @Before public void createTable() throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(3, 2000, 20, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile hf = new HeapFile(random.getFile(), Utility.getTupleDesc(3, "c"));
+        table = "mv" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, table);
+        tableId = hf.getId();
+        parser = new Parser();
+    }
+
+    /** @return the rows of a query, as group -> value */
+    private HashMap<Field, Integer> query(String sql) throws Exception {
+        Cursor c = parser.openCursor(sql, 100);
+        HashMap<Field, Integer> rows = new HashMap<Field, Integer>();
+        while (!c.isDone()) {
+            for (Tuple t : c.fetch().getTuples()) {
+                Field g = t.getTupleDesc().numFields() == 1 ? null : t.getField(0);
+                int v = ((IntField) t.getField(t.getTupleDesc().numFields() - 1)).getValue();
+                assertEquals(null, rows.put(g, v));
+            }
+        }
+        c.close();
+        return rows;
+    }
+
+    /** @return the rows an Aggregate over the table computes, as group -> value */
+    private HashMap<Field, Integer> aggregate(int afield, int gfield, Aggregator.Op op,
+            Predicate filter) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator child = new SeqScan(tid, tableId);
+        if (filter != null)
+            child = new Filter(filter, child);
+        Aggregate agg = new Aggregate(child, afield, gfield, op);
+        HashMap<Field, Integer> rows = new HashMap<Field, Integer>();
+        agg.open();
+        while (agg.hasNext()) {
+            Tuple t = agg.next();
+            Field g = gfield == Aggregator.NO_GROUPING ? null : t.getField(0);
+            rows.put(g, ((IntField) t.getField(t.getTupleDesc().numFields() - 1)).getValue());
+        }
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    private MaterializedView createView(String sql) {
+        String name = "v" + SystemTestUtil.getUUID().replace("-", "");
+        parser.processNextStatement("CREATE MATERIALIZED VIEW " + name + " AS " + sql);
+        for (MaterializedView v : Database.getCatalog().getViews(tableId))
+            if (v.getName().equals(name))
+                return v;
+        return null;
+    }
+
+    /** @return true if the plan of the query reads the view */
+    private boolean readsView(String sql, MaterializedView view) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = parser.generateLogicalPlan(tid, sql).physicalPlan(tid,
+                TableStats.getStatsMap(), false);
+        while (plan instanceof Operator && ((Operator) plan).getChildren().length > 0)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan instanceof SeqScan
+                && ((SeqScan) plan).getTableName().equals(view.getName());
+    }
+
+    @Test public void answers() throws Exception {
+        String sum = "SELECT t.c0, SUM(t.c1) FROM " + table + " t GROUP BY t.c0;";
+        String count = "SELECT c0, COUNT(c2) FROM " + table + " GROUP BY c0;";
+        String avg = "SELECT t.c0, AVG(t.c1) FROM " + table + " t GROUP BY t.c0 ORDER BY t.c0;";
+        String other = "SELECT t.c0, SUM(t.c2) FROM " + table + " t GROUP BY t.c0;";
+        HashMap<Field, Integer> sums = query(sum);
+        HashMap<Field, Integer> counts = query(count);
+        HashMap<Field, Integer> avgs = query(avg);
+
+        MaterializedView view = createView(sum);
+        assertEquals(sums.size(), view.size());
+        assertTrue(readsView(sum, view));
+        assertTrue(readsView(count, view));
+        assertTrue(readsView(avg, view));
+        assertFalse(readsView(other, view));
+        assertEquals(sums, query(sum));
+        assertEquals(counts, query(count));
+        assertEquals(avgs, query(avg));
+    }
+
+    /** Inserts and deletes are applied to the view as deltas */
+    @Test public void maintenance() throws Exception {
+        String sql = "SELECT t.c1, AVG(t.c2) FROM " + table + " t WHERE t.c0 < 10 GROUP BY t.c1;";
+        MaterializedView view = createView(sql);
+        Predicate filter = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10));
+        assertEquals(aggregate(2, 1, Aggregator.Op.AVG, filter), query(sql));
+
+        // new groups, existing groups and tuples the filter drops
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 50; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(3, "c"));
+            t.setField(0, new IntField(i % 15));
+            t.setField(1, new IntField(i % 30));
+            t.setField(2, new IntField(i * 7));
+            Database.getBufferPool().insertTuple(tid, tableId, t);
+        }
+        assertEquals(aggregate(2, 1, Aggregator.Op.AVG, filter), query(sql));
+        assertEquals(aggregate(2, 1, Aggregator.Op.COUNT, filter),
+                query("SELECT t.c1, COUNT(t.c1) FROM " + table + " t WHERE t.c0 < 10 GROUP BY t.c1;"));
+
+        // delete whole groups, and part of others
+        parser.processNextStatement("DELETE FROM " + table + " WHERE " + table + ".c1 < 5;");
+        parser.processNextStatement("DELETE FROM " + table + " WHERE " + table + ".c2 > 15;");
+        HashMap<Field, Integer> expected = aggregate(2, 1, Aggregator.Op.AVG, filter);
+        assertEquals(expected, query(sql));
+        assertEquals(expected.size(), view.size());
+        assertTrue(readsView(sql, view));
+    }
+
+    @Test public void ungrouped() throws Exception {
+        String sql = "SELECT SUM(c1) FROM " + table + ";";
+        MaterializedView view = createView(sql);
+        assertTrue(readsView(sql, view));
+        assertTrue(readsView("SELECT COUNT(c0) FROM " + table + ";", view));
+        Tuple t = new Tuple(Utility.getTupleDesc(3, "c"));
+        for (int i = 0; i < 3; i++)
+            t.setField(i, new IntField(1000));
+        Database.getBufferPool().insertTuple(new TransactionId(), tableId, t);
+        assertEquals(aggregate(1, Aggregator.NO_GROUPING, Aggregator.Op.SUM, null),
+                query(sql));
+        assertEquals(1, view.size());
+    }
+
+    @Test public void invalid() throws Exception {
+        TransactionId tid = new TransactionId();
+        String[] queries = {
+                "SELECT MAX(c1) FROM " + table + ";",
+                "SELECT c1 FROM " + table + ";",
+                "SELECT a.c0, COUNT(a.c1) FROM " + table + " a, " + table
+                        + " b WHERE a.c0 = b.c0 GROUP BY a.c0;",
+                "SELECT c0, SUM(c1) FROM " + table + " GROUP BY c0 ORDER BY c0;" };
+        for (String q : queries) {
+            try {
+                MaterializedView.create("bad", parser.generateLogicalPlan(tid, q), tid);
+                fail("expected a ParsingException for " + q);
+            } catch (ParsingException e) {
+                // expected
+            }
+        }
+        assertEquals(0, Database.getCatalog().getViews(tableId).size());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MaterializedViewTest.class);
+    }
+}
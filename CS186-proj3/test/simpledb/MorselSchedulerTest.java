@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.BitSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MorselSchedulerTest extends SimpleDbTestBase {
+
+    @Before public void setUp() {
+        MorselScheduler.setThreads(3);
+    }
+
+    @After public void tearDown() {
+        MorselScheduler.setThreads(Math.max(1,
+                Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /** A fragment that records the pages it was run on */
+    private static class Pages implements MorselScheduler.Fragment<BitSet> {
+        private final int failAt;
+
+        Pages(int failAt) {
+            this.failAt = failAt;
+        }
+
+        public BitSet run(int start, int end, BitSet partial) throws DbException {
+            if (partial == null)
+                partial = new BitSet();
+            for (int i = start; i < end; i++) {
+                if (i == failAt)
+                    throw new DbException("page " + i);
+                if (partial.get(i))
+                    throw new IllegalStateException("page " + i + " twice");
+                partial.set(i);
+            }
+            return partial;
+        }
+
+        public BitSet merge(BitSet a, BitSet b) {
+            if (a.intersects(b))
+                throw new IllegalStateException("overlapping partials");
+            a.or(b);
+            return a;
+        }
+    }
+
+    /**
+     * Every page must be processed exactly once, in parallel or not.
+     */
+    @Test public void everyPageOnce() throws Exception {
+        int[] sizes = { 1, MorselScheduler.MORSEL_PAGES, MorselScheduler.MORSEL_PAGES + 1, 1000 };
+        for (int n : sizes) {
+            BitSet pages = MorselScheduler.run(n, new Pages(-1));
+            assertEquals(n, pages.cardinality());
+            assertEquals(n, pages.nextClearBit(0));
+        }
+        assertNull(MorselScheduler.run(0, new Pages(-1)));
+
+        MorselScheduler.setThreads(0);
+        assertEquals(1000, MorselScheduler.run(1000, new Pages(-1)).cardinality());
+    }
+
+    /**
+     * A failure in any worker must be thrown to the caller.
+     */
+    @Test public void failure() throws Exception {
+        try {
+            MorselScheduler.run(1000, new Pages(777));
+            fail("expected DbException");
+        } catch (DbException e) {
+            assertEquals("page 777", e.getMessage());
+        }
+        // the pool is still usable
+        assertEquals(1000, MorselScheduler.run(1000, new Pages(-1)).cardinality());
+    }
+
+    /**
+     * Concurrent queries share the pool and each get their full result.
+     */
+    @Test public void concurrentQueries() throws Exception {
+        final int[] counts = new int[4];
+        Thread[] threads = new Thread[counts.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int q = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        counts[q] = MorselScheduler.run(2000, new Pages(-1)).cardinality();
+                    } catch (Exception e) {
+                        counts[q] = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (int c : counts)
+            assertEquals(2000, c);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MorselSchedulerTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxPageTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private HeapFile hf;
+    private String name;
+
+    /**
+     * Write a wide table in the PAX layout.
+     */
+    @Before public void createTable() throws IOException {
+        this.td = new TupleDesc(
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "id", "title", "year", "votes" });
+        File txt = File.createTempFile("movie", ".txt");
+        txt.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(txt));
+        for (int i = 0; i < 500; i++)
+            bw.write(i + ",title " + i + "," + (1900 + i % 100) + "," + (i * 10) + "\n");
+        bw.close();
+
+        File dat = File.createTempFile("movie", ".dat");
+        dat.deleteOnExit();
+        HeapFileEncoder.convert(txt, dat, BufferPool.PAGE_SIZE, 4,
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+                ',', HeapFile.Format.PAX);
+        this.hf = new HeapFile(dat, td, HeapFile.Format.PAX);
+        this.name = "pax" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+    }
+
+    /**
+     * A scan of some of the columns should only return those columns.
+     */
+    @Test public void projectedScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, hf.getId(), "m", new int[] { 3, 0 });
+        assertEquals(2, ss.getTupleDesc().numFields());
+        assertEquals("m.votes", ss.getTupleDesc().getFieldName(0));
+        assertEquals("m.id", ss.getTupleDesc().getFieldName(1));
+
+        ss.open();
+        int i = 0;
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            assertEquals(new IntField(i * 10), t.getField(0));
+            assertEquals(new IntField(i), t.getField(1));
+            i++;
+        }
+        ss.close();
+        assertEquals(500, i);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages must survive modification and round-trip through getPageData.
+     */
+    @Test public void modify() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        PaxPage page = (PaxPage) hf.readPage(pid);
+        int free = page.getNumEmptySlots();
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        page.deleteTuple(first);
+
+        Tuple added = new Tuple(td);
+        added.setField(0, new IntField(-1));
+        added.setField(1, new StringField("added", Type.STRING_LEN));
+        added.setField(2, new IntField(2000));
+        added.setField(3, new IntField(7));
+        page.insertTuple(added);
+        assertEquals(free, page.getNumEmptySlots());
+
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        Iterator<Tuple> pit = copy.iterator(null, new int[] { 1 });
+        assertEquals(new StringField("added", Type.STRING_LEN), pit.next().getField(0));
+        assertEquals(new StringField("title 1", Type.STRING_LEN), pit.next().getField(0));
+    }
+
+    /**
+     * physicalPlan should push the referenced columns down into the scan.
+     */
+    @Test public void columnPruning() throws Exception {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT m.title FROM " + name + " m WHERE m.year > 1990;");
+        DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        DbIterator node = plan;
+        while (!(node instanceof SeqScan))
+            node = ((Operator) node).getChildren()[0];
+        assertArrayEquals(new int[] { 1 }, ((SeqScan) node).getFields());
+
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            assertFalse(t.getField(0).toString().isEmpty());
+            n++;
+        }
+        plan.close();
+        assertEquals(45, n);
+
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " m;");
+        node = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        while (!(node instanceof SeqScan))
+            node = ((Operator) node).getChildren()[0];
+        assertNull(((SeqScan) node).getFields());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
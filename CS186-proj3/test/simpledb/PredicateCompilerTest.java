@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PredicateCompilerTest extends SimpleDbTestBase {
+
+    private static final TupleDesc td = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+    private static Tuple tuple(int a, String b, int c) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(a));
+        t.setField(1, new StringField(b, Type.STRING_LEN));
+        t.setField(2, new IntField(c));
+        return t;
+    }
+
+    private static void assertSameResults(List<Predicate> preds,
+            PredicateCompiler.CompiledPredicate cp) {
+        String[] strings = { "", "a", "ab", "b", "ba", "cab" };
+        for (int a = -2; a <= 2; a++) {
+            for (String b : strings) {
+                Tuple t = tuple(a, b, -a);
+                boolean expected = true;
+                for (Predicate p : preds)
+                    expected = expected && p.filter(t);
+                assertEquals(preds + " on " + t, expected, cp.filter(t));
+            }
+        }
+    }
+
+    /**
+     * Compiled predicates must agree with Predicate.filter for every operator
+     * on both field types.
+     */
+    @Test public void everyOperator() {
+        for (Predicate.Op op : Predicate.Op.values()) {
+            List<Predicate> preds = Collections.singletonList(
+                    new Predicate(0, op, new IntField(0)));
+            assertSameResults(preds, PredicateCompiler.compile(preds, td));
+
+            preds = Collections.singletonList(
+                    new Predicate(1, op, new StringField("ab", Type.STRING_LEN)));
+            assertSameResults(preds, PredicateCompiler.compile(preds, td));
+        }
+    }
+
+    /**
+     * A conjunction compiles into one class, which is reused for the same
+     * shape with other constants.
+     */
+    @Test public void conjunction() {
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(-1)),
+                new Predicate(1, Predicate.Op.LIKE, new StringField("a", Type.STRING_LEN)),
+                new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(0)));
+        PredicateCompiler.CompiledPredicate cp = PredicateCompiler.compile(preds, td);
+        assertFalse(cp.getClass().isAnonymousClass());
+        assertSameResults(preds, cp);
+
+        List<Predicate> others = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1)),
+                new Predicate(1, Predicate.Op.LIKE, new StringField("b", Type.STRING_LEN)),
+                new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(-2)));
+        PredicateCompiler.CompiledPredicate other = PredicateCompiler.compile(others, td);
+        assertSame(cp.getClass(), other.getClass());
+        assertSameResults(others, other);
+
+        List<Predicate> reordered = Arrays.asList(preds.get(2), preds.get(0), preds.get(1));
+        assertNotSame(cp.getClass(), PredicateCompiler.compile(reordered, td).getClass());
+    }
+
+    /**
+     * Predicates that can't be compiled are still evaluated correctly.
+     */
+    @Test public void fallback() {
+        BloomFilter bf = new BloomFilter(0, 10, 0.01, "test");
+        bf.clear();
+        bf.add(new IntField(1));
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(2)), bf);
+        PredicateCompiler.CompiledPredicate cp = PredicateCompiler.compile(preds, td);
+        assertSameResults(preds, cp);
+        assertTrue(cp.filter(tuple(1, "", 0)));
+    }
+
+    /**
+     * The cache of generated classes doesn't grow beyond MAX_CLASSES shapes,
+     * and shapes evicted from it still compile.
+     */
+    @Test public void boundedCache() {
+        Predicate.Op[] ops = Predicate.Op.values();
+        List<Predicate> first = null;
+        PredicateCompiler.CompiledPredicate cp = null;
+        for (int i = 0; i < PredicateCompiler.MAX_CLASSES + 100; i++) {
+            List<Predicate> preds = new ArrayList<Predicate>();
+            for (int n = i; preds.size() < 5; n /= ops.length)
+                preds.add(new Predicate(2, ops[n % ops.length], new IntField(preds.size() - 2)));
+            cp = PredicateCompiler.compile(preds, td);
+            assertFalse(cp.getClass().isAnonymousClass());
+            if (first == null)
+                first = preds;
+        }
+        assertTrue(PredicateCompiler.numCached() <= PredicateCompiler.MAX_CLASSES);
+        cp = PredicateCompiler.compile(first, td);
+        assertFalse(cp.getClass().isAnonymousClass());
+        assertSameResults(first, cp);
+    }
+
+    /**
+     * Compiled join predicates must agree with JoinPredicate.filter.
+     */
+    @Test public void joinPredicate() {
+        for (Predicate.Op op : Predicate.Op.values()) {
+            JoinPredicate jp = new JoinPredicate(0, op, 2);
+            PredicateCompiler.CompiledJoinPredicate cjp = PredicateCompiler.compile(jp, td, td);
+            assertFalse(cjp.getClass().isAnonymousClass());
+            jp = new JoinPredicate(1, op, 1);
+            PredicateCompiler.CompiledJoinPredicate sjp = PredicateCompiler.compile(jp, td, td);
+            for (int a = -2; a <= 2; a++) {
+                for (int c = -2; c <= 2; c++) {
+                    Tuple t1 = tuple(a, "x" + a, 0);
+                    Tuple t2 = tuple(0, "x" + c, c);
+                    assertEquals(new JoinPredicate(0, op, 2).filter(t1, t2), cjp.filter(t1, t2));
+                    assertEquals(jp.filter(t1, t2), sjp.filter(t1, t2));
+                }
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PredicateCompilerTest.class);
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+    private String a, b;
+    private Parser parser;
+
+    /** @return the name of a new table */
+    private static String createTable(int rows, int maxValue) throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        String name = "ps" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+        return name;
+    }
+
+    @Before public void createTables() throws Exception {
+        a = createTable(1000, 100);
+        b = createTable(200, 100);
+        parser = new Parser();
+    }
+
+    /** @return the number of rows of a cursor */
+    private static int count(Cursor c) throws Exception {
+        int n = 0;
+        while (!c.isDone())
+            n += c.fetch().size();
+        c.close();
+        return n;
+    }
+
+    private int count(String sql) throws Exception {
+        return count(parser.openCursor(sql, 100));
+    }
+
+    @Test public void normalize() {
+        assertEquals("SELECT * FROM t WHERE t.a = 'x  y';",
+                StatementCache.normalize("  SELECT *\n FROM\tt WHERE t.a = 'x  y' ;;\n"));
+        assertEquals("SELECT * FROM t;", StatementCache.normalize("SELECT * FROM t"));
+    }
+
+    /**
+     * A prepared statement gives the same results as the query with the
+     * constants in its text, for each binding, and is only parsed once.
+     */
+    @Test public void bind() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM " + a + " x, " + b
+                + " y WHERE x.c0 = y.c0 AND x.c1 < ? AND y.c1 >= ?;");
+        assertEquals(2, ps.getParameterCount());
+        StatementCache.Entry e = Database.getStatementCache().get(ps.getSql());
+        assertNotNull(e);
+        for (int i = 0; i < 5; i++) {
+            int lo = 20 * i, hi = 100 - 15 * i;
+            ps.setInt(1, hi);
+            ps.setInt(2, lo);
+            assertEquals(count("SELECT * FROM " + a + " x, " + b
+                    + " y WHERE x.c0 = y.c0 AND x.c1 < " + hi + " AND y.c1 >= " + lo + ";"),
+                    count(parser.openCursor(ps, 100)));
+        }
+        // preparing the same text again reuses the plan
+        assertSame(e.getLogicalPlan(), Database.getStatementCache().get(
+                parser.prepare("SELECT * FROM " + a + " x, " + b
+                + " y WHERE x.c0 = y.c0 AND x.c1 < ?  AND y.c1 >= ?").getSql())
+                .getLogicalPlan());
+    }
+
+    /**
+     * Replanning requires a plan the optimizer has built before.
+     */
+    @Test public void replanNeedsOptimizer() throws Exception {
+        LogicalPlan lp = parser.generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM " + a + " x WHERE x.c0 < 10;");
+        try {
+            lp.replan(new TransactionId(), null);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        TransactionId tid = new TransactionId();
+        lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNotNull(lp.replan(tid, null));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Changing the catalog drops cached plans, which prepared statements
+     * parse again; replacing statistics keeps them.
+     */
+    @Test public void invalidation() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM " + a + " x WHERE x.c0 < ?;");
+        ps.setInt(1, 50);
+        int expected = count(parser.openCursor(ps, 100));
+        TableStats.setTableStats(a, TableStats.getTableStats(a));
+        assertNotNull(Database.getStatementCache().get(ps.getSql()));
+        assertEquals(expected, count(parser.openCursor(ps, 100)));
+
+        createTable(10, 10);
+        assertNull(Database.getStatementCache().get(ps.getSql()));
+        assertEquals(expected, count(parser.openCursor(ps, 100)));
+        assertNotNull(Database.getStatementCache().get(ps.getSql()));
+    }
+
+    /**
+     * Missing or mistyped parameters and unsupported statements are
+     * rejected.
+     */
+    @Test public void errors() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM " + a + " x WHERE x.c0 < ?;");
+        try {
+            ps.newQuery(new TransactionId());
+            fail("expected ParsingException");
+        } catch (ParsingException expected) {
+        }
+        ps.setString(1, "abc");
+        try {
+            ps.newQuery(new TransactionId());
+            fail("expected ParsingException");
+        } catch (ParsingException expected) {
+        }
+        try {
+            ps.setInt(2, 1);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            parser.prepare("DELETE FROM " + a + " WHERE " + a + ".c0 < 1;");
+            fail("expected ParsingException");
+        } catch (ParsingException expected) {
+        }
+        try {
+            parser.openCursor("SELECT * FROM " + a + " x WHERE x.c0 < ?;", 10);
+            fail("expected ParsingException");
+        } catch (ParsingException expected) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class QueryServerTest extends SimpleDbTestBase {
+
+    private String name;
+    private QueryServer server;
+
+    @Before public void createTable() throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, 500, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        this.name = "srv" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+    }
+
+    @After public void stopServer() {
+        if (server != null)
+            server.stop();
+    }
+
+    private QueryClient connect(boolean compress) throws Exception {
+        if (server == null)
+            server = new QueryServer(4, compress);
+        int port = server.start(0).getPort();
+        return new QueryClient("localhost", port, compress);
+    }
+
+    /**
+     * Several clients run queries at the same time, each getting the output
+     * of its own statements.
+     */
+    @Test public void concurrentSessions() throws Exception {
+        server = new QueryServer(4, false);
+        final int port = server.start(0).getPort();
+        final String[] outputs = new String[4];
+        Thread[] threads = new Thread[outputs.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int c = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        QueryClient client = new QueryClient("localhost", port, false);
+                        // a different number of rows for each client
+                        outputs[c] = client.execute("SELECT * FROM " + name
+                                + " t WHERE t.c0 < " + (25 * (c + 1)) + ";");
+                        client.close();
+                    } catch (Exception e) {
+                        outputs[c] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (int i = 0; i < outputs.length; i++) {
+            String expected = " " + rows("t.c0 < " + (25 * (i + 1))) + " rows.";
+            assertTrue(outputs[i], outputs[i].contains(expected));
+        }
+    }
+
+    /** @return the number of rows of the table that satisfy where */
+    private int rows(String where) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator it = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + name + " t WHERE " + where + ";").physicalPlan(
+                tid, TableStats.getStatsMap(), false);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * A session survives invalid statements, and statements may span lines.
+     */
+    @Test public void errors() throws Exception {
+        QueryClient client = connect(false);
+        assertTrue(client.execute("SELECT * FROM nosuchtable;").contains("Invalid SQL"));
+        String out = client.execute("SELECT COUNT(t.c0)\nFROM " + name + " t;");
+        assertTrue(out, out.contains(" 1 rows."));
+        assertTrue(out, out.contains("500"));
+        client.close();
+    }
+
+    /**
+     * Compressed connections give the same output.
+     */
+    @Test public void compressed() throws Exception {
+        QueryClient client = connect(true);
+        String out = client.execute("SELECT * FROM " + name + " t;");
+        assertTrue(out, out.contains(" 500 rows."));
+        assertTrue(out, out.contains("t.c0\tt.c1"));
+        client.close();
+    }
+
+    /**
+     * What the parser and the optimizer report while they build a plan goes
+     * to the session, not to the server's output.
+     */
+    @Test public void planOutput() throws Exception {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream serverOut = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(serverOut, true));
+        try {
+            QueryClient client = connect(false);
+            String out = client.execute("SELECT COUNT(t.c0) FROM " + name + " t;");
+            assertTrue(out, out.contains("Added scan of table t"));
+            assertTrue(out, out.contains("Aggregate field is t.c0"));
+            client.close();
+        } finally {
+            System.setOut(stdout);
+        }
+        assertFalse(serverOut.toString(), serverOut.toString().contains("Added"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryServerTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        Database.resetBufferPool(64);
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    @After public void restoreThreads() {
+        ReadAhead.setThreads(2);
+    }
+
+    /** @return the number of tuples a scan of the table returns */
+    private int scan() throws Exception {
+        DbFileIterator it = hf.iterator(new TransactionId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** @return true once the page is in the buffer pool, within a few seconds */
+    private static boolean awaitPage(PageId pid) throws InterruptedException {
+        for (int i = 0; i < 500 && Database.getBufferPool().peekPage(pid) == null; i++)
+            Thread.sleep(10);
+        return Database.getBufferPool().peekPage(pid) != null;
+    }
+
+    /** A sequential scan reads the pages after the one it reads */
+    @Test public void sequential() throws Exception {
+        assertEquals(ROWS, scan());
+        assertTrue(Database.getBufferPool().getPagesPrefetched() > 0);
+
+        Database.resetBufferPool(64);
+        ReadAhead ra = new ReadAhead(hf, new TransactionId(), null, null);
+        ra.pageRead(0);
+        ra.pageRead(1);
+        assertTrue(awaitPage(new HeapPageId(hf.getId(), 1 + ReadAhead.MIN_WINDOW)));
+        assertTrue(Database.getBufferPool().peekPage(
+                new HeapPageId(hf.getId(), 2 + ReadAhead.MIN_WINDOW)) == null);
+    }
+
+    /** Pages read out of order aren't read ahead */
+    @Test public void random() throws Exception {
+        ReadAhead ra = new ReadAhead(hf, new TransactionId(), null, null);
+        for (int n : new int[] { 5, 20, 3, 11, 30 })
+            ra.pageRead(n);
+        Thread.sleep(100);
+        assertEquals(0, Database.getBufferPool().getPagesPrefetched());
+    }
+
+    /** The window grows while the scan outpaces the reads, and shrinks after */
+    @Test public void window() throws Exception {
+        ReadAhead ra = new ReadAhead(hf, new TransactionId(), null, null);
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+        ra.adapt(true);
+        assertEquals(2 * ReadAhead.MIN_WINDOW, ra.getWindow());
+        // at most a quarter of the buffer pool
+        for (int i = 0; i < 10; i++)
+            ra.adapt(true);
+        assertEquals(64 / 4, ra.getWindow());
+
+        // a window of pages in a row that were read in time shrinks it
+        for (int i = 0; i < 64 / 4 - 1; i++)
+            ra.adapt(false);
+        assertEquals(64 / 4, ra.getWindow());
+        ra.adapt(false);
+        assertEquals(64 / 4 - 1, ra.getWindow());
+        for (int i = 0; i < 1000; i++)
+            ra.adapt(false);
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+    }
+
+    /** Scans are the same without read-ahead */
+    @Test public void disabled() throws Exception {
+        ReadAhead.setThreads(0);
+        assertEquals(ROWS, scan());
+        assertEquals(0, Database.getBufferPool().getPagesPrefetched());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
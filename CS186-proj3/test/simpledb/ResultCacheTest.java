@@ -0,0 +1,167 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ResultCacheTest extends SimpleDbTestBase {
+
+    private String a, b;
+    private Parser parser;
+    private ResultCache cache;
+
+    /** @return the name of a new table */
+    private static String createTable(int rows) throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, rows, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        String name = "rc" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+        return name;
+    }
+
+    @Before public void createTables() throws Exception {
+        a = createTable(100);
+        b = createTable(100);
+        parser = new Parser();
+        cache = Database.getResultCache();
+        cache.setCapacity(1 << 20);
+    }
+
+    /** @return the number of rows of a cursor */
+    private static int count(Cursor c) throws Exception {
+        int n = 0;
+        while (!c.isDone())
+            n += c.fetch().size();
+        c.close();
+        return n;
+    }
+
+    private int count(String sql) throws Exception {
+        return count(parser.openCursor(sql, 10));
+    }
+
+    @Test public void disabled() throws Exception {
+        Database.reset();
+        ResultCache c = Database.getResultCache();
+        assertFalse(c.isEnabled());
+        DbIterator plan = new TupleIterator(Utility.getTupleDesc(1),
+                new ArrayList<Tuple>());
+        assertSame(plan, c.open("q", new int[0], plan));
+        assertEquals(0, c.getHits() + c.getMisses());
+    }
+
+    /** Running a query again returns the cached result */
+    @Test public void hit() throws Exception {
+        String sql = "SELECT * FROM " + a + " x WHERE x.c0 < 50;";
+        int n = count(sql);
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(n, count("SELECT *  FROM " + a + " x\nWHERE x.c0 < 50 ;"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 1e-9);
+        assertTrue(cache.getMemoryUsed() >= n * 64);
+
+        // another constant is another query
+        count("SELECT * FROM " + a + " x WHERE x.c0 < 60;");
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    /** Parameter values are part of the key */
+    @Test public void parameters() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM " + a
+                + " x WHERE x.c1 < ?;");
+        ps.setInt(1, 30);
+        int lo = count(parser.openCursor(ps, 10));
+        ps.setInt(1, 70);
+        int hi = count(parser.openCursor(ps, 10));
+        assertEquals(2, cache.getMisses());
+        assertEquals(lo, count("SELECT * FROM " + a + " x WHERE x.c1 < 30;"));
+        assertEquals(hi, count("SELECT * FROM " + a + " x WHERE x.c1 < 70;"));
+        ps.setInt(1, 30);
+        assertEquals(lo, count(parser.openCursor(ps, 10)));
+    }
+
+    /** Modifying a table invalidates the results computed from it */
+    @Test public void invalidation() throws Exception {
+        String join = "SELECT * FROM " + a + " x, " + b + " y WHERE x.c0 = y.c0;";
+        String scan = "SELECT * FROM " + a + " x;";
+        count(join);
+        assertEquals(100, count(scan));
+
+        int tableId = Database.getCatalog().getTableId(b);
+        long version = BufferPool.getTableVersion(tableId);
+        Tuple t = new Tuple(Utility.getTupleDesc(2, "c"));
+        t.setField(0, new IntField(0));
+        t.setField(1, new IntField(0));
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, tableId, t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(BufferPool.getTableVersion(tableId) > version);
+
+        // the join reads b again, the scan of a is still cached
+        count(join);
+        assertEquals(0, cache.getHits());
+        assertEquals(100, count(scan));
+        assertEquals(1, cache.getHits());
+
+        tableId = Database.getCatalog().getTableId(a);
+        Database.getBufferPool().insertTuple(tid, tableId, t);
+        assertEquals(101, count(scan));
+        assertEquals(1, cache.getHits());
+        assertEquals(101, count(scan));
+        assertEquals(2, cache.getHits());
+    }
+
+    /** The least recently used results are dropped to stay within capacity */
+    @Test public void eviction() throws Exception {
+        String qa = "SELECT * FROM " + a + " x;";
+        String qb = "SELECT * FROM " + b + " x;";
+        count(qa);
+        long bytes = cache.getMemoryUsed();
+        cache.setCapacity(bytes * 3 / 2);
+        assertEquals(1, cache.size());
+
+        count(qb);
+        assertEquals(1, cache.size());
+        assertTrue(cache.getMemoryUsed() <= cache.getCapacity());
+        count(qb);
+        assertEquals(1, cache.getHits());
+        count(qa);
+        assertEquals(1, cache.getHits());
+
+        // a result larger than the cache isn't kept
+        cache.setCapacity(bytes / 2);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemoryUsed());
+        count(qa);
+        count(qa);
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.size());
+    }
+
+    /** A query that isn't read to the end isn't cached */
+    @Test public void partial() throws Exception {
+        Cursor c = parser.openCursor("SELECT * FROM " + a + " x;", 10);
+        c.fetch();
+        c.close();
+        assertEquals(0, cache.size());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ResultCacheTest.class);
+    }
+}
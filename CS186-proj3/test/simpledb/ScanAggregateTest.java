@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanAggregateTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private String name;
+
+    @Before public void createTable() throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null,
+                new ArrayList<ArrayList<Integer>>());
+        this.hf = new HeapFile(random.getFile(), Utility.getTupleDesc(3, "c"));
+        this.name = "agg" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+    }
+
+    /** @return the tuples of it, as sorted strings */
+    private static List<String> results(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private void assertSameAsAggregate(int[] fields, List<Predicate> preds,
+            int afield, int gfield, Aggregator.Op op) throws Exception {
+        TransactionId tid = new TransactionId();
+        List<String> expected = results(new Aggregate(
+                new SeqScan(tid, hf.getId(), "t", fields, preds), afield, gfield, op));
+        List<String> actual = results(new ScanAggregate(
+                new SeqScan(tid, hf.getId(), "t", fields, preds), afield, gfield, op));
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Every aggregate should give the same result as Aggregate, with and
+     * without grouping, predicates and projection.
+     */
+    @Test public void sameAsAggregate() throws Exception {
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10)),
+                new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(40)));
+        for (Aggregator.Op op : Aggregator.Op.values()) {
+            assertSameAsAggregate(null, null, 1, Aggregator.NO_GROUPING, op);
+            assertSameAsAggregate(null, null, 1, 0, op);
+            assertSameAsAggregate(null, preds, 1, 2, op);
+            assertSameAsAggregate(new int[] { 2, 1 }, preds, 1, 0, op);
+        }
+        // nothing matches
+        assertSameAsAggregate(null, Collections.singletonList(
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0))),
+                1, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+    }
+
+    /**
+     * Pages that were already parsed are aggregated from their tuples.
+     */
+    @Test public void parsedPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        for (int i = 0; i < 3; i++)
+            t.setField(i, new IntField(1000));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+        for (Aggregator.Op op : Aggregator.Op.values())
+            assertSameAsAggregate(null, null, 1, 0, op);
+    }
+
+    /**
+     * A table of more than one morsel is aggregated in parallel, with the
+     * same results.
+     */
+    @Test public void parallel() throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(3, 20000, 50, null,
+                new ArrayList<ArrayList<Integer>>());
+        this.hf = new HeapFile(random.getFile(), Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(hf, name);
+        assertTrue(hf.numPages() > 2 * MorselScheduler.MORSEL_PAGES);
+        MorselScheduler.setThreads(3);
+        try {
+            List<Predicate> preds = Collections.singletonList(
+                    new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10)));
+            for (Aggregator.Op op : Aggregator.Op.values()) {
+                assertSameAsAggregate(null, null, 1, Aggregator.NO_GROUPING, op);
+                assertSameAsAggregate(null, preds, 1, 2, op);
+            }
+        } finally {
+            MorselScheduler.setThreads(Math.max(1,
+                    Runtime.getRuntime().availableProcessors() - 1));
+        }
+    }
+
+    /**
+     * physicalPlan should fuse an aggregate over a single table.
+     */
+    @Test public void fusedPlan() throws Exception {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT t.c0, MAX(t.c1) FROM "
+                + name + " t WHERE t.c2 < 10 GROUP BY t.c0;");
+        DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        DbIterator node = plan;
+        while (!(node instanceof Aggregate))
+            node = ((Operator) node).getChildren()[0];
+        assertTrue(node instanceof ScanAggregate);
+        assertTrue(results(plan).size() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanAggregateTest.class);
+    }
+}
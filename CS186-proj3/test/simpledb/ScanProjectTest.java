@@ -0,0 +1,124 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanProjectTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private String name;
+
+    @Before public void createTable() throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null,
+                new ArrayList<ArrayList<Integer>>());
+        this.hf = new HeapFile(random.getFile(), Utility.getTupleDesc(3, "c"));
+        this.name = "prj" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(hf, name);
+    }
+
+    /** @return the tuples of it and their record ids, in order */
+    private static List<String> results(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(it.getTupleDesc(), t.getTupleDesc());
+            rows.add(t + " " + t.getRecordId().getPageId().pageNumber()
+                    + ":" + t.getRecordId().tupleno());
+        }
+        it.rewind();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        assertEquals(rows.size(), n);
+        it.close();
+        return rows;
+    }
+
+    private static ArrayList<Integer> list(Integer... fields) {
+        return new ArrayList<Integer>(Arrays.asList(fields));
+    }
+
+    private void assertSameAsProject(int[] fields, List<Predicate> preds,
+            ArrayList<Integer> out) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t", fields, preds);
+        ArrayList<Type> types = new ArrayList<Type>();
+        for (int f : out)
+            types.add(scan.getTupleDesc().getFieldType(f));
+        List<String> expected = results(new Project(out, types, scan));
+        List<String> actual = results(new ScanProject(out, types,
+                new SeqScan(tid, hf.getId(), "t", fields, preds)));
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * ScanProject should return the same tuples as Project, in the same
+     * order, with and without predicates and projection in the scan.
+     */
+    @Test public void sameAsProject() throws Exception {
+        List<Predicate> preds = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10)),
+                new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(40)));
+        assertSameAsProject(null, null, list(0, 1, 2));
+        assertSameAsProject(null, null, list(2, 0));
+        assertSameAsProject(null, preds, list(1));
+        assertSameAsProject(new int[] { 2, 1 }, preds, list(1, 0, 1));
+        // nothing matches
+        assertSameAsProject(null, Collections.singletonList(
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0))), list(0));
+    }
+
+    /**
+     * Pages that were already parsed are projected from their tuples.
+     */
+    @Test public void parsedPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        for (int i = 0; i < 3; i++)
+            t.setField(i, new IntField(30));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertSameAsProject(null, null, list(2, 0));
+        assertSameAsProject(new int[] { 2, 0 }, Collections.singletonList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20))), list(1));
+    }
+
+    /**
+     * physicalPlan should fuse the projection of a single table.
+     */
+    @Test public void fusedPlan() throws Exception {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT t.c2, t.c0 FROM "
+                + name + " t WHERE t.c1 < 10;");
+        DbIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        assertTrue(plan instanceof ScanProject);
+        assertTrue(results(plan).size() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanProjectTest.class);
+    }
+}
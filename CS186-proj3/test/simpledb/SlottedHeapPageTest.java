@@ -0,0 +1,134 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "title" });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple movie(int id, String title) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(title, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Short strings should take up only their own length, so many more
+     * tuples fit on a page than with fixed-size slots.
+     */
+    @Test public void capacity() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int count = 0;
+        while (page.hasRoomFor(movie(count, "a twenty char title!")))
+            page.insertTuple(movie(count++, "a twenty char title!"));
+
+        // 4 + 2 + 20 bytes per record plus a 2 byte slot
+        assertEquals((BufferPool.PAGE_SIZE - 2) / 28, count);
+        assertTrue(count > 4 * (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1));
+    }
+
+    /**
+     * getPageData and the constructor must round-trip, including empty
+     * slots left by deletes.
+     */
+    @Test public void roundTrip() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple[] ts = new Tuple[10];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = movie(i, "title " + i + "xxxxxxxxxx".substring(i));
+            page.insertTuple(ts[i]);
+        }
+        page.deleteTuple(ts[3]);
+        page.deleteTuple(ts[7]);
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        assertFalse(copy.isSlotUsed(3));
+        assertTrue(copy.isSlotUsed(4));
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < ts.length; i++) {
+            if (i == 3 || i == 7)
+                continue;
+            Tuple t = it.next();
+            assertEquals(ts[i].getField(0), t.getField(0));
+            assertEquals(ts[i].getField(1), t.getField(1));
+            assertEquals(i, t.getRecordId().tupleno());
+        }
+        assertFalse(it.hasNext());
+
+        // freed slots are reused
+        Tuple t = movie(42, "");
+        copy.insertTuple(t);
+        assertEquals(3, t.getRecordId().tupleno());
+    }
+
+    /**
+     * HeapFileEncoder should be able to write slotted pages that a slotted
+     * HeapFile can read back.
+     */
+    @Test public void encoder() throws Exception {
+        File txt = File.createTempFile("movies", ".txt");
+        txt.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(txt));
+        for (int i = 0; i < 1000; i++)
+            bw.write(i + ",movie number " + i + "\n");
+        bw.close();
+
+        File dat = File.createTempFile("movies", ".dat");
+        dat.deleteOnExit();
+        HeapFileEncoder.convert(txt, dat, BufferPool.PAGE_SIZE, 2,
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',', HeapFile.Format.SLOTTED);
+        HeapFile hf = new HeapFile(dat, td, HeapFile.Format.SLOTTED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertTrue(hf.numPages() < 10);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new StringField("movie number " + i, Type.STRING_LEN), t.getField(1));
+            i++;
+        }
+        it.close();
+        assertEquals(1000, i);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,226 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotManagerTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    private int tableId;
+
+    @Before public void createTable() throws Exception {
+        HeapFile random = SystemTestUtil.createRandomHeapFile(2, ROWS, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile hf = new HeapFile(random.getFile(), Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        tableId = hf.getId();
+    }
+
+    /** @return the number of tuples of the table tid sees that satisfy p */
+    private int count(TransactionId tid, Predicate p) throws Exception {
+        List<Predicate> preds = p == null ? null : Collections.singletonList(p);
+        SeqScan scan = new SeqScan(tid, tableId, "t", null, preds);
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    private static Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2, "c"));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /** A read-only transaction doesn't see changes committed after it started */
+    @Test public void snapshot() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(reader.getId(), null));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(writer.getId(), tableId, tuple(i, 1000));
+        SeqScan scan = new SeqScan(writer.getId(), tableId);
+        scan.open();
+        for (int i = 0; i < 100 && scan.hasNext(); i++)
+            Database.getBufferPool().deleteTuple(writer.getId(), scan.next());
+        scan.close();
+        // the writer sees its own changes, the reader doesn't
+        assertEquals(ROWS + 400, count(writer.getId(), null));
+        assertEquals(ROWS, count(reader.getId(), null));
+
+        writer.commit();
+        assertEquals(ROWS, count(reader.getId(), null));
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(ROWS + 400, count(later.getId(), null));
+        later.commit();
+        reader.commit();
+    }
+
+    /** Scans of a snapshot don't skip pages by the zone map of the current pages */
+    @Test public void zoneMap() throws Exception {
+        Predicate small = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50));
+        TransactionId before = new TransactionId();
+        int matching = count(before, small);
+        Transaction reader = new Transaction(true);
+        reader.start();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        SeqScan scan = new SeqScan(writer.getId(), tableId);
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (((IntField) t.getField(0)).getValue() < 50)
+                Database.getBufferPool().deleteTuple(writer.getId(), t);
+        }
+        scan.close();
+        writer.commit();
+        // writing the pages out narrows their zones
+        Database.getBufferPool().flushAllPages();
+        ((HeapFile) Database.getCatalog().getDbFile(tableId)).getZoneMap();
+
+        assertEquals(0, count(new TransactionId(), small));
+        assertEquals(matching, count(reader.getId(), small));
+        reader.commit();
+    }
+
+    @Test public void readOnly() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertTrue(Database.getBufferPool().readsSnapshot(reader.getId()));
+        try {
+            Database.getBufferPool().insertTuple(reader.getId(), tableId, tuple(1, 2));
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        SeqScan scan = new SeqScan(reader.getId(), tableId);
+        scan.open();
+        try {
+            Database.getBufferPool().deleteTuple(reader.getId(), scan.next());
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        scan.close();
+        HeapPageId pid = new HeapPageId(tableId, 0);
+        try {
+            Database.getBufferPool().getPage(reader.getId(), pid, Permissions.READ_WRITE);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(0, Database.getBufferPool().numPins(pid));
+        reader.commit();
+        assertEquals(ROWS, count(new TransactionId(), null));
+
+        Parser parser = new Parser();
+        parser.processNextStatement("SET TRANSACTION READ ONLY;");
+        assertTrue(parser.getTransaction().isReadOnly());
+        parser.processNextStatement("COMMIT;");
+    }
+
+    /** Versions are kept while a snapshot may read them, and dropped after */
+    @Test public void collect() throws Exception {
+        SnapshotManager versions = Database.getBufferPool().getSnapshotManager();
+        Transaction reader = new Transaction(true);
+        reader.start();
+        for (int round = 0; round < 3; round++) {
+            Transaction writer = new Transaction();
+            writer.start();
+            Database.getBufferPool().insertTuple(writer.getId(), tableId, tuple(round, round));
+            writer.commit();
+        }
+        versions.collect();
+        assertTrue(versions.numVersions() > 0);
+        assertEquals(ROWS, count(reader.getId(), null));
+        reader.commit();
+        versions.collect();
+        assertEquals(0, versions.numVersions());
+        assertEquals(ROWS + 3, count(new TransactionId(), null));
+    }
+
+    /**
+     * The version of a page being modified is kept for the snapshots that
+     * start while it is, and versions no snapshot can read aren't kept.
+     */
+    @Test public void collectWhileWriting() throws Exception {
+        SnapshotManager versions = Database.getBufferPool().getSnapshotManager();
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().insertTuple(writer.getId(), tableId, tuple(1, 2));
+        versions.collect();
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(reader.getId(), null));
+        reader.commit();
+        writer.commit();
+        assertEquals(0, versions.numVersions());
+        assertEquals(ROWS + 1, count(new TransactionId(), null));
+    }
+
+    /**
+     * Readers running alongside a writer only ever see whole transactions,
+     * even when they span pages.
+     */
+    @Test public void concurrent() throws Exception {
+        final int batch = 150;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        Transaction w = new Transaction();
+                        w.start();
+                        for (int j = 0; j < batch; j++)
+                            Database.getBufferPool().insertTuple(w.getId(), tableId, tuple(i, j));
+                        w.commit();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            Transaction reader = new Transaction(true);
+            reader.start();
+            int n = count(reader.getId(), null);
+            assertEquals(0, (n - ROWS) % batch);
+            assertEquals(n, count(reader.getId(), null));
+            reader.commit();
+        }
+        writer.join();
+        if (error.get() != null)
+            throw new RuntimeException(error.get());
+        assertEquals(ROWS + 20 * batch, count(new TransactionId(), null));
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotManagerTest.class);
+    }
+}
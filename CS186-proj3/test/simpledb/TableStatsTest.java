@@ -151,4 +151,50 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics built from a block sample should still get the cardinality
+	 * and the selectivities about right.
+	 */
+	@Test public void sampledStatsTest() throws IOException, DbException, TransactionAbortedException {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*200, 32, null, tuples);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats s = new TableStats(Database.getCatalog().getTableId(name), IO_COST, 0.1);
+
+		Assert.assertEquals(992*200, s.totalTuples(), 992*200*0.05);
+		Assert.assertEquals(32, s.numDistinctValues(0), 3);
+		Assert.assertEquals(1.0/32.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(16)), 0.015);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(32)), 0.001);
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool should be reflected in the
+	 * statistics without re-analyzing the table.
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TransactionId tid = new TransactionId();
+
+		int[] values = new int[10];
+		java.util.Arrays.fill(values, 100);
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 50; i++) {
+			Tuple t = Utility.getHeapTuple(values);
+			Database.getBufferPool().insertTuple(tid, this.tableId, t);
+			inserted.add(t);
+		}
+		Assert.assertEquals(1070, s.totalTuples());
+		Assert.assertEquals(50.0/1070.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.01);
+		Assert.assertEquals(1.0 - 50.0/1070.0, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(100)), 0.01);
+
+		for (Tuple t : inserted) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Assert.assertEquals(1020, s.totalTuples());
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)) < 0.02);
+		Database.getBufferPool().transactionComplete(tid);
+	}
 }
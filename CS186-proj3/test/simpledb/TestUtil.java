@@ -214,6 +214,14 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public List<Page> readPages(int start, int count) throws IOException {
+            throw new RuntimeException("not implemented");
+        }
+
+        public void writePages(List<Page> pages) throws IOException {
+            throw new RuntimeException("not implemented");
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+
+    private File dat;
+    private HeapFile hf;
+
+    /**
+     * Create a two column table sorted on its second column, so that a range
+     * predicate on it rules out most pages.
+     */
+    @Before public void createTable() throws IOException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i % 7);
+            tuple.add(i);
+            tuples.add(tuple);
+        }
+        this.dat = File.createTempFile("zone", ".dat");
+        dat.deleteOnExit();
+        ZoneMap.sidecarFor(dat).deleteOnExit();
+        HeapFileEncoder.convert(tuples, dat, BufferPool.PAGE_SIZE, 2);
+        this.hf = Utility.openHeapFile(2, dat);
+    }
+
+    private int count(SeqScan ss) throws Exception {
+        ss.open();
+        int n = 0;
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            for (Predicate p : ss.getPredicates())
+                assertTrue(p.filter(t));
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
+    /**
+     * A range scan should return the same tuples as a Filter would, without
+     * reading the pages the zone map rules out.
+     */
+    @Test public void skipPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 100));
+        SeqScan ss = new SeqScan(tid, hf.getId(), "t", null, p);
+        assertEquals(100, count(ss));
+        assertTrue(ZoneMap.sidecarFor(dat).exists());
+        assertEquals(hf.numPages() - 1, ss.getPagesSkipped());
+        assertEquals(hf.numPages() - 1, ss.countSkippablePages());
+
+        p = new Predicate(1, Predicate.Op.EQUALS, new IntField(-1));
+        assertEquals(0, count(new SeqScan(tid, hf.getId(), "t", null, p)));
+
+        // a predicate on an unsorted column can't skip anything
+        p = new Predicate(0, Predicate.Op.EQUALS, new IntField(3));
+        ss = new SeqScan(tid, hf.getId(), "t", null, p);
+        assertTrue(count(ss) > 0);
+        assertEquals(0, ss.getPagesSkipped());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts must widen the zone of the page they go on, and the zone must
+     * still cover them after the page is written out and the sidecar read
+     * back in.
+     */
+    @Test public void maintainOnInsert() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(ROWS * 2));
+        assertEquals(0, count(new SeqScan(tid, hf.getId(), "t", null, p)));
+
+        // free up a slot on the first page, then insert a tuple onto it
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(0));
+        t.setField(1, new IntField(ROWS * 3));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+
+        assertEquals(1, count(new SeqScan(tid, hf.getId(), "t", null, p)));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a fresh HeapFile has to read the zone map from the sidecar
+        long written = ZoneMap.sidecarFor(dat).lastModified();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = new HeapFile(dat, hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, reopened.getId(), "t", null, p);
+        assertEquals(1, count(ss));
+        assertEquals(reopened.numPages() - 1, ss.getPagesSkipped());
+        assertEquals(written, ZoneMap.sidecarFor(dat).lastModified());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A data file rewritten right after its sidecar was written doesn't use
+     * the zones of the old contents, whatever the file times say.
+     */
+    @Test public void rewrittenFile() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(0));
+        assertEquals(0, count(new SeqScan(tid, hf.getId(), "t", null, p)));
+        File sidecar = ZoneMap.sidecarFor(dat);
+        assertTrue(sidecar.exists());
+
+        // the same number of rows, now with negative values
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i % 7);
+            tuple.add(-i);
+            tuples.add(tuple);
+        }
+        long length = dat.length();
+        HeapFileEncoder.convert(tuples, dat, BufferPool.PAGE_SIZE, 2);
+        assertEquals(length, dat.length());
+        dat.setLastModified(sidecar.lastModified());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = new HeapFile(dat, hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(ROWS - 1, count(new SeqScan(tid, reopened.getId(), "t", null, p)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}